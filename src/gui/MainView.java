@@ -35,8 +35,16 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import javax.swing.Box;
 import javax.swing.GroupLayout;
@@ -50,6 +58,7 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeNode;
 import javax.swing.tree.TreePath;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
@@ -62,7 +71,10 @@ import javax.swing.JToolBar;
 import javax.swing.JTree;
 import javax.swing.LayoutStyle;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -91,6 +103,29 @@ public class MainView extends javax.swing.JFrame {
 	private String lockFileName = null;
 	private File lockFile = null;
 	
+	/** Saves the changes in the background. */
+	private final TaskAutoSaver autoSaver;
+	/** Notices changes made to the task file by other programs. */
+	private final TaskFileWatcher fileWatcher;
+	
+	/** Most tasks selected by a search. */
+	private static final int MAX_SEARCH_RESULTS = 50;
+	/** Milliseconds without typing before the search box is searched. */
+	private static final int SEARCH_DELAY = 100;
+	/** Searches the search box once typing pauses (see @ref searchTextChanged). */
+	private final Timer searchTimer;
+	/** Thread where searches run (see @ref searchTextChanged). */
+	private final ExecutorService searcher;
+	/** Is a search running? */
+	private boolean searchRunning = false;
+	/** Text typed while a search was running (null if none). */
+	private String searchPending = null;
+	/** Nodes selected by the last search (null if none are shown). */
+	private HashSet<TreePath> searchSelection = null;
+	/** Nodes of the tasks by task id, to find search results (see
+	 * @ref nodeOf). Entries may be out of date: they are checked. */
+	private final HashMap<String, DefaultMutableTreeNode> searchNodes = new HashMap<>();
+	
 	public MainView() {
 		// instantiate the System Info singleton before anything else...
 		SystemInfo sysinfo = SystemInfo.getInstance();
@@ -110,13 +145,39 @@ public class MainView extends javax.swing.JFrame {
 		medPriorNode = (DefaultMutableTreeNode) root.getChildAt(1);
 		lowPriorNode = (DefaultMutableTreeNode) root.getChildAt(2);
 		
-		treeTasks.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
+		// several tasks can be selected to change their state at once
+		treeTasks.getSelectionModel().setSelectionMode(TreeSelectionModel.DISCONTIGUOUS_TREE_SELECTION);
 		
 		CustomTreeCellRenderer renderer = new CustomTreeCellRenderer(14);
 		treeTasks.setCellRenderer(renderer);
 		
 		setTextToComponents();
 		setChangesSaved();
+		
+		// save bursts of changes 2 seconds after the last one, and
+		// never more than 10 seconds after the first one
+		autoSaver = new TaskAutoSaver(2000, 10000, (success, pending) -> {
+			SwingUtilities.invokeLater(() -> { autoSaveFinished(success); });
+		});
+		fileWatcher = new TaskFileWatcher((r) -> {
+			SwingUtilities.invokeLater(() -> { reloadChangedFile(r); });
+		});
+		
+		searcher = Executors.newSingleThreadExecutor((r) -> {
+			Thread t = new Thread(r, "Task searcher");
+			t.setDaemon(true);
+			return t;
+		});
+		searchTimer = new Timer(SEARCH_DELAY, (e) -> { searchTextChanged(); });
+		searchTimer.setRepeats(false);
+		textBoxSearch.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) { searchTimer.restart(); }
+			@Override
+			public void removeUpdate(DocumentEvent e) { searchTimer.restart(); }
+			@Override
+			public void changedUpdate(DocumentEvent e) { }
+		});
 	}
 
 	/**
@@ -181,6 +242,9 @@ public class MainView extends javax.swing.JFrame {
         labelAuthorName = new JLabel();
         jSeparator3 = new JToolBar.Separator();
         labelUnsavedChanges = new JLabel();
+        jSeparator4 = new JToolBar.Separator();
+        labelSearch = new JLabel();
+        textBoxSearch = new JTextField();
         jMenuBar1 = new JMenuBar();
         menuItemFile = new JMenu();
         menuItemNewTaskFile = new JMenuItem();
@@ -641,6 +705,14 @@ public class MainView extends javax.swing.JFrame {
         labelUnsavedChanges.setText("There are unsaved changes");
         labelUnsavedChanges.setEnabled(false);
         jToolBar1.add(labelUnsavedChanges);
+        jToolBar1.add(jSeparator4);
+
+        labelSearch.setText("Search");
+        jToolBar1.add(labelSearch);
+
+        textBoxSearch.setMaximumSize(new Dimension(250, 2147483647));
+        textBoxSearch.setPreferredSize(new Dimension(200, 25));
+        jToolBar1.add(textBoxSearch);
 
         menuItemFile.setText("File");
 
@@ -815,6 +887,8 @@ public class MainView extends javax.swing.JFrame {
 		labelAuthorName.setToolTipText(tr.labelAuthorName);
 		labelUnsavedChanges.setText(tr.labelUnsavedChanges);
 		labelUnsavedChanges.setToolTipText(tr.labelUnsavedChanges);
+		labelSearch.setText(tr.labelSearch);
+		labelSearch.setToolTipText(tr.labelSearch);
 		
 		labelTaskName.setText(tr.labelTaskName);
 		labelTaskName.setToolTipText(tr.labelTaskName);
@@ -921,6 +995,7 @@ public class MainView extends javax.swing.JFrame {
 			buttonSaveTasks.setEnabled(true);
 			menuItemSaveTasks.setEnabled(true);
 		}
+		autoSaver.changesMade();
 	}
 	
 	private void setChangesSaved() {
@@ -931,6 +1006,27 @@ public class MainView extends javax.swing.JFrame {
 	}
 	private boolean areChangesSaved() { return changesSaved; }
 	
+	/** Called (in the EDT) after the changes were saved in the background. */
+	private void autoSaveFinished(boolean success) {
+		if (!success) {
+			issueWarningMsg(Translate.getInstance().warning_AutoSaveFailed);
+			return;
+		}
+		log.info("Changes saved in the background in " + autoSaver.getLastSaveMillis() +
+				 " ms (" + autoSaver.getLastSaveLatency() + " ms after the first change).");
+		// changes made after the save are still unsaved
+		if (!autoSaver.hasUnsavedChanges()) {
+			setChangesSaved();
+		}
+	}
+	
+	/** Saves the changes not saved in the background yet, if possible. */
+	private void flushAutoSave() {
+		if (!areChangesSaved() && autoSaver.flush()) {
+			setChangesSaved();
+		}
+	}
+	
 	private void updateAuthor(String n) {
 		authorName = n;
 		labelAuthorName.setText(authorName);
@@ -961,12 +1057,24 @@ public class MainView extends javax.swing.JFrame {
 		log.info("Saving tasks to disk");
 		TaskManager tm = TaskManager.getInstance();
 		tm.writeTasks(true); // do a backup
+		autoSaver.clear();
 		log.info("Tasks created/edited so far have been saved to disk");
 		setChangesSaved();
 		// there is no need to manipulate the log files
 	}
 	
+	/** Saves the changes without blocking the interface, if possible. */
+	private void saveChanges() {
+		if (TaskManager.getInstance().canSaveJournal()) {
+			log.info("Saving tasks to disk in the background");
+			autoSaver.saveNow();
+			return;
+		}
+		overwriteChanges();
+	}
+	
 	private void openFile() {
+		flushAutoSave();
 		if (!areChangesSaved()) {
 			promptSaveChanges();
 		}
@@ -975,8 +1083,9 @@ public class MainView extends javax.swing.JFrame {
 		log.info("Choosing file for opening...");
 		
 		JFileChooser fc = new JFileChooser();
-		fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
-		fc.addChoosableFileFilter(new FileNameExtensionFilter("TodoListManager Documents", "tlm"));
+		// workspaces are directories
+		fc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+		fc.addChoosableFileFilter(new FileNameExtensionFilter("TodoListManager Documents", "tlm", "tlmd", "tlmp"));
 		fc.setAcceptAllFileFilterUsed(true);
 		
 		int returnVal = fc.showOpenDialog(jPanel3);
@@ -1039,7 +1148,10 @@ public class MainView extends javax.swing.JFrame {
 		// expand the tree
 		setTreeExpandedState(true);
 		// technically, there are no changes so...
+		autoSaver.clear();
 		setChangesSaved();
+		// show the changes other programs make to the file
+		fileWatcher.watch(newFileName);
 	}
 	
 	private void saveChangesAs() {
@@ -1057,7 +1169,12 @@ public class MainView extends javax.swing.JFrame {
 			return;
         }
 		File file = fc.getSelectedFile();
-		String newFileName = file.getAbsolutePath() + ".tlm";
+		String newFileName = file.getAbsolutePath();
+		// names ending in '.tlmd' are saved as workspaces, and names
+		// ending in '.tlmp' as page stores
+		if (!newFileName.endsWith(TaskWorkspace.EXTENSION) && !newFileName.endsWith(TaskPageStore.EXTENSION)) {
+			newFileName += ".tlm";
+		}
 		buttonSaveTasks.setEnabled(true);
 		
 		TaskManager tm = TaskManager.getInstance();
@@ -1076,7 +1193,9 @@ public class MainView extends javax.swing.JFrame {
 			tm.setTaskFile(newFileName);
 		}
 		tm.writeTasks(do_backup);
+		autoSaver.clear();
 		setChangesSaved();
+		fileWatcher.watch(newFileName);
 	}
 	
 	/** assuming there are unsaved changes... */
@@ -1119,11 +1238,14 @@ public class MainView extends javax.swing.JFrame {
 	private void clearContentsAndFile() {
 		log.info("About to clear the current created/loaded tasks");
 		
+		flushAutoSave();
 		if (!areChangesSaved()) {
 			log.info("There are changes to be saved: should they be saved?");
 			promptSaveChanges();
 		}
+		fileWatcher.stop();
 		deleteLockFile();
+		autoSaver.clear();
 		setChangesSaved();
 		menuItemNewTaskFile.setEnabled(false);
 		buttonNewTaskFile.setEnabled(false);
@@ -1183,6 +1305,143 @@ public class MainView extends javax.swing.JFrame {
 		return treeTasks.getSelectionCount() > 0;
 	}
 	
+	/**
+	 * @brief Is exactly one node of the tree selected?
+	 *
+	 * Only the state changes apply to all the selected tasks: the other
+	 * actions are made on one task and are refused when several are selected.
+	 * @param msg Error shown when nothing is selected.
+	 */
+	private boolean treeHasOneSelected(String msg) {
+		if (!treeHasSelection(msg)) { return false; }
+		if (treeTasks.getSelectionCount() > 1) {
+			issueWarningMsg(Translate.getInstance().warning_SelectOnlyOneTask);
+			return false;
+		}
+		return true;
+	}
+	
+	// -------------------------------------------------------------------------
+	// Search as you type
+	
+	/**
+	 * @brief The text of the search box changed.
+	 *
+	 * Called when no key has been typed for @ref SEARCH_DELAY
+	 * milliseconds, so that a word typed quickly is searched once, not
+	 * once per letter. Searches run one at a time in the searcher thread.
+	 * What is typed while a search runs is searched when it finishes, and
+	 * the results of that search are dropped: only the last text typed
+	 * is searched.
+	 */
+	private void searchTextChanged() {
+		if (searchRunning) {
+			searchPending = textBoxSearch.getText();
+			return;
+		}
+		startSearch(textBoxSearch.getText());
+	}
+	
+	/**
+	 * Searches the text of the search box, as a query (see
+	 * @ref TaskQuery). What the query needs of the tasks is copied in
+	 * this thread, and the query is evaluated in the searcher thread.
+	 * The results of the last search are unselected when the box is
+	 * emptied or its query is not valid.
+	 */
+	private void startSearch(String query) {
+		if (query.trim().isEmpty()) {
+			clearSearchResults();
+			return;
+		}
+		TaskQuery q;
+		try {
+			q = TaskQuery.parse(query);
+		}
+		catch (ParseException ex) {
+			// the query is not completely typed yet
+			clearSearchResults();
+			return;
+		}
+		if (q.getText() == null && !q.hasFilters()) {
+			clearSearchResults();
+			return;
+		}
+		searchRunning = true;
+		Supplier<ArrayList<Integer>> job = TaskManager.getInstance().newQuery(q, MAX_SEARCH_RESULTS);
+		searcher.execute(() -> {
+			ArrayList<Integer> ids = job.get();
+			SwingUtilities.invokeLater(() -> { searchFinished(query, ids); });
+		});
+	}
+	
+	private void searchFinished(String query, ArrayList<Integer> ids) {
+		searchRunning = false;
+		if (searchPending != null) {
+			String p = searchPending;
+			searchPending = null;
+			startSearch(p);
+			return;
+		}
+		if (ids == null) {
+			// the tasks were read again meanwhile
+			startSearch(query);
+			return;
+		}
+		showSearchResults(ids);
+	}
+	
+	/** Selects the nodes of some tasks, and scrolls to the first one. */
+	private void showSearchResults(ArrayList<Integer> ids) {
+		TaskManager tm = TaskManager.getInstance();
+		ArrayList<TreePath> paths = new ArrayList<>(ids.size());
+		boolean indexed = false;
+		for (int id : ids) {
+			Task t = tm.getTask(id);
+			if (t == null) { continue; }
+			DefaultMutableTreeNode n = nodeOf(t);
+			if (n == null && !indexed) {
+				// new nodes, or nodes replaced: index them all once
+				searchNodes.clear();
+				indexNodes((DefaultMutableTreeNode) treeModel.getRoot(), searchNodes);
+				indexed = true;
+				n = nodeOf(t);
+			}
+			if (n != null) { paths.add(new TreePath(n.getPath())); }
+		}
+		searchSelection = new HashSet<>(paths);
+		if (paths.isEmpty()) {
+			treeTasks.clearSelection();
+			return;
+		}
+		treeTasks.setSelectionPaths(paths.toArray(new TreePath[paths.size()]));
+		treeTasks.scrollPathToVisible(paths.get(0));
+	}
+	
+	/**
+	 * Unselects the results of the last search, unless the user has
+	 * selected other nodes since: the state buttons act on the selection.
+	 */
+	private void clearSearchResults() {
+		if (searchSelection == null) { return; }
+		TreePath[] sel = treeTasks.getSelectionPaths();
+		HashSet<TreePath> current = new HashSet<>();
+		if (sel != null) { Collections.addAll(current, sel); }
+		if (current.equals(searchSelection)) { treeTasks.clearSelection(); }
+		searchSelection = null;
+	}
+	
+	/**
+	 * The node of a task in the tree, found in @ref searchNodes (null if
+	 * it is not there or its entry is out of date). Nodes are moved with
+	 * their tasks, so an entry stays valid while its node is in the tree.
+	 */
+	private DefaultMutableTreeNode nodeOf(Task t) {
+		DefaultMutableTreeNode n = searchNodes.get(t.getId());
+		if (n == null || n.getUserObject() != t || n.getRoot() != treeModel.getRoot()) { return null; }
+		return n;
+	}
+	
     private void buttonTaskClearMouseClicked(MouseEvent evt) {//GEN-FIRST:event_buttonTaskClearMouseClicked
         clearBoxesTask();
     }//GEN-LAST:event_buttonTaskClearMouseClicked
@@ -1191,8 +1450,8 @@ public class MainView extends javax.swing.JFrame {
         if (!treeHasSelection()) { return; }
 		DefaultMutableTreeNode sel
 			= (DefaultMutableTreeNode) treeTasks.getLastSelectedPathComponent();
-		if (sel.getLevel() <= 1) {
-			// clear text boxes (nothing selected so nothing to show)
+		if (sel.getLevel() <= 1 || treeTasks.getSelectionCount() > 1) {
+			// clear text boxes (no single task selected so nothing to show)
 			clearBoxesTask();
 			// disable edit button
 			buttonTaskEdit.setEnabled(false);
@@ -1206,7 +1465,7 @@ public class MainView extends javax.swing.JFrame {
     }//GEN-LAST:event_treeTasksValueChanged
 
 	private void moveTaskUpDown(String dir, int incr) {
-		if (!treeHasSelection(Translate.getInstance().error_NeedTaskSelectedMove)) { return; }
+		if (!treeHasOneSelected(Translate.getInstance().error_NeedTaskSelectedMove)) { return; }
 		DefaultMutableTreeNode sel
 			= (DefaultMutableTreeNode) treeTasks.getLastSelectedPathComponent();
 		if (sel.getLevel() <= 1) {
@@ -1240,15 +1499,15 @@ public class MainView extends javax.swing.JFrame {
 			TaskManager tm = TaskManager.getInstance();
 			int i;
 			if (prior.equals("high")) {
-				i = tm.deleteHighTask(t.getId());
+				i = tm.deleteHighTask(t.getNumericId());
 				tm.insertHighTask(i + incr, t);
 			}
 			else if (prior.equals("med")) {
-				i = tm.deleteMedTask(t.getId());
+				i = tm.deleteMedTask(t.getNumericId());
 				tm.insertMedTask(i + incr, t);
 			}
 			else if (prior.equals("low")) {
-				i = tm.deleteLowTask(t.getId());
+				i = tm.deleteLowTask(t.getNumericId());
 				tm.insertLowTask(i + incr, t);
 			}
 			else { return; }
@@ -1260,7 +1519,7 @@ public class MainView extends javax.swing.JFrame {
 		Task parent_task = t.getParentTask();
 		if (parent_task != null) {
 			log.info("    Moving task within the parent task's list of subtasks.");
-			parent_task.moveSubtaskBy(t.getId(), incr);
+			parent_task.moveSubtaskBy(t.getNumericId(), incr);
 		}
 		
 		// move the task in the tree
@@ -1275,7 +1534,7 @@ public class MainView extends javax.swing.JFrame {
 	}
 	
 	private void changeTaskPriority(String dir, int incr) {
-		if (!treeHasSelection(Translate.getInstance().error_NeedTaskSelectedMove)) {
+		if (!treeHasOneSelected(Translate.getInstance().error_NeedTaskSelectedMove)) {
 			return;
 		}
 		updateAuthorNameIfNone();
@@ -1340,9 +1599,9 @@ public class MainView extends javax.swing.JFrame {
 		from_prior.remove(sel);
 		to_prior.insert(sel, 0);
 		
-		if (cur_prior.equals("high"))     { tm.deleteHighTask(t.getId()); }
-		else if (cur_prior.equals("med")) { tm.deleteMedTask(t.getId()); }
-		else if (cur_prior.equals("low")) { tm.deleteLowTask(t.getId()); }
+		if (cur_prior.equals("high"))     { tm.deleteHighTask(t.getNumericId()); }
+		else if (cur_prior.equals("med")) { tm.deleteMedTask(t.getNumericId()); }
+		else if (cur_prior.equals("low")) { tm.deleteLowTask(t.getNumericId()); }
 		
 		if (new_prior.equals("high"))     { tm.insertHighTask(0, t); }
 		else if (new_prior.equals("med")) { tm.insertMedTask(0, t); }
@@ -1374,13 +1633,125 @@ public class MainView extends javax.swing.JFrame {
 		t.getSubtasks().forEach((st) -> { taskToNode(new_node, st); });
 	}
 	
+	/**
+	 * Shows the contents of the task file written by some other program.
+	 * Only the nodes of the tasks that changed are updated.
+	 */
+	private void reloadChangedFile(TaskReload r) {
+		TaskManager tm = TaskManager.getInstance();
+		if (!areChangesSaved()) {
+			// saving overwrites the file
+			issueWarningMsg(Translate.getInstance().warning_FileChangedOnDisk);
+			return;
+		}
+		if (!tm.applyReload(r)) {
+			// changed again: the watcher reads it again
+			return;
+		}
+		
+		// remember the state of the tree by task id
+		DefaultMutableTreeNode root = (DefaultMutableTreeNode) treeModel.getRoot();
+		HashSet<String> expanded = new HashSet<>();
+		Enumeration<TreePath> paths = treeTasks.getExpandedDescendants(new TreePath(root));
+		while (paths != null && paths.hasMoreElements()) {
+			DefaultMutableTreeNode n = (DefaultMutableTreeNode) paths.nextElement().getLastPathComponent();
+			if (n.getUserObject() instanceof Task) { expanded.add(((Task) n.getUserObject()).getId()); }
+		}
+		ArrayList<String> selected = new ArrayList<>();
+		TreePath[] selPaths = treeTasks.getSelectionPaths();
+		for (int i = 0; selPaths != null && i < selPaths.length; ++i) {
+			DefaultMutableTreeNode n = (DefaultMutableTreeNode) selPaths[i].getLastPathComponent();
+			if (n.getUserObject() instanceof Task) { selected.add(((Task) n.getUserObject()).getId()); }
+		}
+		HashMap<String, DefaultMutableTreeNode> nodes = new HashMap<>();
+		indexNodes(root, nodes);
+		
+		reconcileNode(highPriorNode, tm.getHighPriorTasks(), nodes, r);
+		reconcileNode(medPriorNode, tm.getMedPriorTasks(), nodes, r);
+		reconcileNode(lowPriorNode, tm.getLowPriorTasks(), nodes, r);
+		
+		// nodes moved elsewhere were collapsed
+		for (String id : expanded) {
+			DefaultMutableTreeNode n = nodes.get(id);
+			if (n != null && n.getRoot() == root) { treeTasks.expandPath(new TreePath(n.getPath())); }
+		}
+		// the tasks still in the tree stay selected
+		ArrayList<TreePath> kept = new ArrayList<>();
+		for (String id : selected) {
+			DefaultMutableTreeNode n = nodes.get(id);
+			if (n != null && n.getRoot() == root) { kept.add(new TreePath(n.getPath())); }
+		}
+		if (kept.size() == 1 && kept.get(0).equals(treeTasks.getSelectionPath())
+			&& treeTasks.getSelectionCount() == 1)
+		{
+			DefaultMutableTreeNode sel = (DefaultMutableTreeNode) kept.get(0).getLastPathComponent();
+			refreshBoxesTask((Task) sel.getUserObject());
+		}
+		else if (!kept.isEmpty()) {
+			treeTasks.setSelectionPaths(kept.toArray(new TreePath[kept.size()]));
+		}
+		else if (!selected.isEmpty()) {
+			clearBoxesTask();
+		}
+	}
+	
+	private static void indexNodes(DefaultMutableTreeNode n, HashMap<String, DefaultMutableTreeNode> nodes) {
+		if (n.getUserObject() instanceof Task) { nodes.put(((Task) n.getUserObject()).getId(), n); }
+		for (int i = 0; i < n.getChildCount(); ++i) {
+			indexNodes((DefaultMutableTreeNode) n.getChildAt(i), nodes);
+		}
+	}
+	
+	/**
+	 * @brief Makes the children of a node show a list of tasks.
+	 *
+	 * The node of every task is reused (found by id), wherever it was.
+	 * Nodes are moved only when their position changed and repainted
+	 * only when their task was modified.
+	 */
+	private void reconcileNode(
+		DefaultMutableTreeNode n, ArrayList<Task> tasks,
+		HashMap<String, DefaultMutableTreeNode> nodes, TaskReload r
+	)
+	{
+		for (int i = 0; i < tasks.size(); ++i) {
+			Task t = tasks.get(i);
+			DefaultMutableTreeNode child = nodes.get(t.getId());
+			if (child == null) {
+				child = new DefaultMutableTreeNode(t);
+				treeModel.insertNodeInto(child, n, i);
+			}
+			else {
+				child.setUserObject(t);
+				if (child.getParent() != n || n.getIndex(child) != i) {
+					detachNode(child);
+					treeModel.insertNodeInto(child, n, i);
+				}
+				else if (r.isModified(t.getId())) {
+					treeModel.nodeChanged(child);
+				}
+			}
+			reconcileNode(child, t.getSubtasks(), nodes, r);
+		}
+		// tasks removed, or moved elsewhere
+		while (n.getChildCount() > tasks.size()) {
+			treeModel.removeNodeFromParent((DefaultMutableTreeNode) n.getLastChild());
+		}
+	}
+	
+	private void detachNode(DefaultMutableTreeNode n) {
+		if (n.getParent() == null) { return; }
+		if (n.getRoot() == treeModel.getRoot()) { treeModel.removeNodeFromParent(n); }
+		else { n.removeFromParent(); }
+	}
+	
     private void menuItemOpenFileMousePressed(MouseEvent evt) {//GEN-FIRST:event_menuItemOpenFileMousePressed
 		openFile();
     }//GEN-LAST:event_menuItemOpenFileMousePressed
 
     private void buttonTaskEditMouseClicked(MouseEvent evt) {//GEN-FIRST:event_buttonTaskEditMouseClicked
         Translate tr = Translate.getInstance();
-		if (!treeHasSelection(tr.error_NeedTaskSelectedEdit)) {
+		if (!treeHasOneSelected(tr.error_NeedTaskSelectedEdit)) {
 			return;
 		}
 		updateAuthorNameIfNone();
@@ -1432,8 +1803,9 @@ public class MainView extends javax.swing.JFrame {
     }//GEN-LAST:event_buttonTaskEditMouseClicked
 
 	/**
-	 * Change a task's state.
-	 * @param s The change of state of the task.
+	 * Change the state of the selected tasks, all at once (see
+	 * @ref TaskManager.changeStates).
+	 * @param s The change of state of the tasks.
 	 * @param use_reason Should I prompt the user for a reason?
 	 */
 	private void changeTaskState(TaskStateEnum s, boolean promptUser)
@@ -1443,16 +1815,26 @@ public class MainView extends javax.swing.JFrame {
 		}
 		updateAuthorNameIfNone();
 		
-		DefaultMutableTreeNode sel
-			= (DefaultMutableTreeNode) treeTasks.getLastSelectedPathComponent();
-		Task t = (Task) sel.getUserObject();
-		String r = t.askChangeState(s);
+		ArrayList<Integer> ids = new ArrayList<>();
+		ArrayList<String> names = new ArrayList<>();
+		ArrayList<DefaultMutableTreeNode> nodes = new ArrayList<>();
+		for (TreePath path : treeTasks.getSelectionPaths()) {
+			DefaultMutableTreeNode n = (DefaultMutableTreeNode) path.getLastPathComponent();
+			if (n.getUserObject() instanceof Task) {
+				ids.add(((Task) n.getUserObject()).getNumericId());
+				names.add(((Task) n.getUserObject()).getId());
+				nodes.add(n);
+			}
+		}
+		if (ids.isEmpty()) {
+			issueErrorMsg(Translate.getInstance().error_SelectionMustBeTask);
+			return;
+		}
+		
+		TaskManager tm = TaskManager.getInstance();
+		String r = tm.askChangeStates(ids, s);
 		if (!r.equals("")) {
-			Translate tr = Translate.getInstance();
-			String msg = tr.getInstance().error_CantChangeTaskState;
-			msg = msg.replace("%s1", t.getId());
-			msg = msg.replace("%s2", r);
-			issueErrorMsg(msg);
+			issueCantChangeStateMsg(names, r);
 			return;
 		}
 		String reason = null;
@@ -1465,12 +1847,46 @@ public class MainView extends javax.swing.JFrame {
 				JOptionPane.PLAIN_MESSAGE // no icon
 			);
 		}
-		t.changeState(getAuthorName(), reason, s);
-		refreshBoxesTask(t);
-		treeModel.reload(sel);
+		// checked again: the tasks may have been reloaded meanwhile
+		r = tm.changeStates(ids, getAuthorName(), reason, s);
+		if (!r.equals("")) {
+			issueCantChangeStateMsg(names, r);
+			return;
+		}
+		
+		DefaultMutableTreeNode sel
+			= (DefaultMutableTreeNode) treeTasks.getLastSelectedPathComponent();
+		if (treeTasks.getSelectionCount() == 1 && sel.getUserObject() instanceof Task) {
+			refreshBoxesTask((Task) sel.getUserObject());
+		}
+		nodesChanged(nodes);
 		setChangesUnsaved();
 	}
 	
+	/**
+	 * Tells the tree model that some nodes changed (not their children):
+	 * one event for all the changed children of each parent.
+	 */
+	private void nodesChanged(ArrayList<DefaultMutableTreeNode> nodes) {
+		HashMap<TreeNode, ArrayList<Integer>> byParent = new HashMap<>();
+		for (DefaultMutableTreeNode n : nodes) {
+			TreeNode p = n.getParent();
+			// the nodes may have been removed while the user was asked
+			if (p != null) { byParent.computeIfAbsent(p, (x) -> new ArrayList<>()).add(p.getIndex(n)); }
+		}
+		for (Map.Entry<TreeNode, ArrayList<Integer>> e : byParent.entrySet()) {
+			int[] indices = e.getValue().stream().mapToInt(Integer::intValue).sorted().toArray();
+			treeModel.nodesChanged(e.getKey(), indices);
+		}
+	}
+	
+	private void issueCantChangeStateMsg(ArrayList<String> ids, String reason) {
+		String msg = Translate.getInstance().error_CantChangeTaskState;
+		msg = msg.replace("%s1", String.join(", ", ids));
+		msg = msg.replace("%s2", reason);
+		issueErrorMsg(msg);
+	}
+	
     private void buttonTaskDoneMouseClicked(MouseEvent evt) {//GEN-FIRST:event_buttonTaskDoneMouseClicked
         changeTaskState(TaskStateEnum.Done, false);
     }//GEN-LAST:event_buttonTaskDoneMouseClicked
@@ -1510,9 +1926,11 @@ public class MainView extends javax.swing.JFrame {
     }//GEN-LAST:event_menuItemAboutMousePressed
 
     private void formWindowClosing(WindowEvent evt) {//GEN-FIRST:event_formWindowClosing
+        flushAutoSave();
         if (!areChangesSaved()) {
 			promptSaveChanges();
 		}
+		fileWatcher.stop();
 		deleteLockFile();
 		log.info("Closing TodoListManager...");
 		log.end();
@@ -1528,7 +1946,7 @@ public class MainView extends javax.swing.JFrame {
 
     private void buttonSaveTasksMouseClicked(MouseEvent evt) {//GEN-FIRST:event_buttonSaveTasksMouseClicked
         if (buttonSaveTasks.isEnabled()) {
-			overwriteChanges();
+			saveChanges();
 		}
     }//GEN-LAST:event_buttonSaveTasksMouseClicked
 
@@ -1544,7 +1962,7 @@ public class MainView extends javax.swing.JFrame {
 
     private void menuItemSaveTasksMouseClicked(MouseEvent evt) {//GEN-FIRST:event_menuItemSaveTasksMouseClicked
 		if (menuItemSaveTasks.isEnabled()) {
-			overwriteChanges();
+			saveChanges();
 		}
     }//GEN-LAST:event_menuItemSaveTasksMouseClicked
 
@@ -1581,6 +1999,10 @@ public class MainView extends javax.swing.JFrame {
             issueWarningMsg(Translate.getInstance().warning_CantAddTask);
             return;
         }
+        if (treeTasks.getSelectionCount() > 1) {
+            issueWarningMsg(Translate.getInstance().warning_SelectOnlyOneTask);
+            return;
+        }
 
         updateAuthorNameIfNone();
         Translate tr = Translate.getInstance();
@@ -1643,8 +2065,6 @@ public class MainView extends javax.swing.JFrame {
             Task node_task = (Task) sel.getUserObject();
             // add the new task as a subtask
             node_task.addSubtask(new_t);
-			// set the new task's parent
-			new_t.setParent(node_task);
             // change state
             node_task.changeState(taskCreator, new_t.getId(), TaskStateEnum.AddedSubtask);
             // fill in the text boxes
@@ -1661,7 +2081,7 @@ public class MainView extends javax.swing.JFrame {
     }//GEN-LAST:event_buttonNewTaskMouseClicked
 
     private void buttonRemoveTaskMouseClicked(MouseEvent evt) {//GEN-FIRST:event_buttonRemoveTaskMouseClicked
-        if (!treeHasSelection(Translate.getInstance().error_NeedTaskSelectedDelete)) { return; }
+        if (!treeHasOneSelected(Translate.getInstance().error_NeedTaskSelectedDelete)) { return; }
 
         DefaultMutableTreeNode sel
         = (DefaultMutableTreeNode) treeTasks.getLastSelectedPathComponent();
@@ -1674,12 +2094,12 @@ public class MainView extends javax.swing.JFrame {
         Task node_task = (Task) sel.getUserObject();
         
 		if (sel.getLevel() == 2) {
-			tm.deleteTask(node_task.getId());
+			tm.deleteTask(node_task.getNumericId());
 		}
 		else {
 			// get parent task
 			Task parent_task = node_task.getParentTask();
-			boolean d = parent_task.deleteSubtask(node_task.getId());
+			boolean d = parent_task.deleteSubtask(node_task.getNumericId());
 			if (!d) {
 				log.warning("Could not remove subtask with id '" + node_task.getId() + "'");
 				log.warning("from parent task with id '" + parent_task.getId() + "'.");
@@ -1792,8 +2212,10 @@ public class MainView extends javax.swing.JFrame {
     private JPopupMenu.Separator jSeparator1;
     private JToolBar.Separator jSeparator2;
     private JToolBar.Separator jSeparator3;
+    private JToolBar.Separator jSeparator4;
     private JToolBar jToolBar1;
     private JLabel labelAuthorName;
+    private JLabel labelSearch;
     private JLabel labelTaskAuthor;
     private JLabel labelTaskDate;
     private JLabel labelTaskDescription;
@@ -1815,6 +2237,7 @@ public class MainView extends javax.swing.JFrame {
     private JTextArea textAreaTaskChanges;
     private JTextArea textAreaTaskDescription;
     private JTextField textBoxError;
+    private JTextField textBoxSearch;
     private JTextField textBoxTaskAuthor;
     private JTextField textBoxTaskDate;
     private JTextField textBoxTaskName;
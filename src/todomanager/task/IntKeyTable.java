@@ -0,0 +1,139 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.util.Arrays;
+
+/**
+ * @brief Table with non-negative int keys, the values left to the subclasses.
+ *
+ * Open addressing with linear probing over an array of primitive keys:
+ * looking a key up neither boxes it nor allocates anything. Removing an
+ * entry shifts back the entries of its cluster instead of leaving a
+ * tombstone, so lookups never get slower with time. The table is kept
+ * at most half full.
+ *
+ * The values are in an array of type @e A (an array of objects or of a
+ * primitive type) in which the value of a key is at the position of the
+ * key in @ref keys. Entries of new keys start with the default value of
+ * the array (null, 0, ...).
+ * @author Lluís Alemany Puig
+ */
+abstract class IntKeyTable<A> {
+
+	/** Key of the empty entries. */
+	static final int EMPTY = -1;
+
+	/** Keys of the entries. */
+	int[] keys;
+	/** Values of the entries. */
+	A values;
+	/** Number of entries. */
+	int size = 0;
+	/** A value to empty the entries with. */
+	private final A blank;
+
+	/** A table with room for @e capacity/2 keys (a power of 2). */
+	IntKeyTable(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = newValues(capacity);
+		blank = newValues(1);
+	}
+
+	/** A new array of values of a length. */
+	abstract A newValues(int length);
+	/** Copies the value at position @e i of @e from to position @e j of @e to. */
+	abstract void copy(A from, int i, A to, int j);
+
+	/** Position of the first entry that may contain a key. */
+	private static int slot(int key, int mask) {
+		int h = key*0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/** Position of the entry of a key, or -1. */
+	final int find(int key) {
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+			if (keys[i] == key) { return i; }
+		}
+		return -1;
+	}
+
+	/** Position of the entry of a key, added if there was none. */
+	final int insert(int key) {
+		if (2*(size + 1) > keys.length) { resize(2*keys.length); }
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while (keys[i] != EMPTY && keys[i] != key) { i = (i + 1) & mask; }
+		if (keys[i] == EMPTY) {
+			keys[i] = key;
+			++size;
+		}
+		return i;
+	}
+
+	/** Removes the entry at a position (see @ref find). */
+	final void removeAt(int i) {
+		int mask = keys.length - 1;
+		// move back the entries that would not be found past the hole
+		int hole = i;
+		for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			int home = slot(keys[j], mask);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = keys[j];
+				copy(values, j, values, hole);
+				hole = j;
+			}
+		}
+		keys[hole] = EMPTY;
+		copy(blank, 0, values, hole);
+		--size;
+	}
+
+	void clear() {
+		Arrays.fill(keys, EMPTY);
+		values = newValues(keys.length);
+		size = 0;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		A oldValues = values;
+		keys = new int[capacity];
+		values = newValues(capacity);
+		Arrays.fill(keys, EMPTY);
+		int mask = capacity - 1;
+		for (int k = 0; k < oldKeys.length; ++k) {
+			if (oldKeys[k] == EMPTY) { continue; }
+			int i = slot(oldKeys[k], mask);
+			while (keys[i] != EMPTY) { i = (i + 1) & mask; }
+			keys[i] = oldKeys[k];
+			copy(oldValues, k, values, i);
+		}
+	}
+}
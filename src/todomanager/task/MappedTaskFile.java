@@ -0,0 +1,166 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @brief Read-only view of a binary task file mapped into memory.
+ *
+ * Only the header of the file and the index of its top-level tasks are
+ * read when the file is opened. Top-level tasks (with their subtasks) are
+ * decoded from the mapped file the first time they are requested, so
+ * only the pages of the tasks actually used are read from disk, and
+ * files much larger than the heap can be opened.
+ *
+ * Decoded tasks are kept while there is memory to spare. They are
+ * detached from the @ref TaskManager: modifying them is not recorded
+ * anywhere.
+ *
+ * The view shows the task file as it was last written: changes recorded
+ * in its journal and not yet compacted into it are not visible (see
+ * @ref hasJournal).
+ * @author Lluís Alemany Puig
+ */
+public class MappedTaskFile {
+
+	/** Index of each priority in @ref offsets and @ref cache. */
+	private static final int LOW = 0, MED = 1, HIGH = 2;
+
+	/** The file mapped. */
+	private final String filename;
+	/** Reader positioned after the header of the file. */
+	private final TaskBinaryReader header;
+	/** Offsets of the top-level tasks. */
+	private final long[][] offsets;
+	/** Top-level tasks already decoded. */
+	private final SoftReference<Task>[][] cache;
+	/** Generation of the file. */
+	private final long generation;
+
+	@SuppressWarnings("unchecked")
+	private MappedTaskFile(String _filename, TaskBinaryReader _header, long[][] _offsets, long _generation) {
+		filename = _filename;
+		header = _header;
+		offsets = _offsets;
+		generation = _generation;
+		cache = (SoftReference<Task>[][]) new SoftReference<?>[3][];
+		for (int k = 0; k < 3; ++k) {
+			cache[k] = (SoftReference<Task>[]) new SoftReference<?>[offsets[k].length];
+		}
+	}
+
+	/**
+	 * @brief Maps a task file into memory.
+	 * @param filename The task file. It has to be an uncompressed binary
+	 * task file with an index (see @ref TaskBinaryFormat) of at most 2 GiB.
+	 * @return Returns the view of the file.
+	 * @throws IOException When the file could not be mapped or it is not
+	 * a binary task file with an index.
+	 */
+	static MappedTaskFile open(String filename) throws IOException {
+		Path path = Paths.get(filename);
+		try (InputStream in = Files.newInputStream(path)) {
+			byte[] head = new byte[TaskBinaryFormat.MAGIC.length];
+			int n = in.read(head);
+			if (n >= 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) {
+				throw new IOException("File '" + filename + "' is compressed and cannot be mapped.");
+			}
+			if (!TaskBinaryFormat.isBinary(head, n)) {
+				throw new IOException("File '" + filename + "' is not a binary task file.");
+			}
+		}
+
+		MappedByteBuffer map;
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (ch.size() > Integer.MAX_VALUE) {
+				throw new IOException("File '" + filename + "' is too large to be mapped.");
+			}
+			// the mapping stays valid after the channel is closed
+			map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+
+		TaskBinaryReader reader = new TaskBinaryReader(map);
+		reader.setDetached();
+		reader.readHeader();
+		long gen = reader.getGeneration();
+		long[][] offsets = reader.duplicate().readIndex();
+		return new MappedTaskFile(filename, reader, offsets, gen);
+	}
+
+	public String getFilename() { return filename; }
+	public long getGeneration() { return generation; }
+
+	/** Does the task file have a journal with changes not shown by this view? */
+	public boolean hasJournal() {
+		return Files.exists(TaskJournal.journalPath(filename));
+	}
+
+	public int getLowPriorCount() { return offsets[LOW].length; }
+	public int getMedPriorCount() { return offsets[MED].length; }
+	public int getHighPriorCount() { return offsets[HIGH].length; }
+
+	/**
+	 * @brief The i-th low priority task.
+	 * @throws IOException When the task could not be decoded.
+	 */
+	public Task getLowPriorTask(int i) throws IOException { return getTask(LOW, i); }
+	/**
+	 * @brief The i-th medium priority task.
+	 * @throws IOException When the task could not be decoded.
+	 */
+	public Task getMedPriorTask(int i) throws IOException { return getTask(MED, i); }
+	/**
+	 * @brief The i-th high priority task.
+	 * @throws IOException When the task could not be decoded.
+	 */
+	public Task getHighPriorTask(int i) throws IOException { return getTask(HIGH, i); }
+
+	private Task getTask(int prior, int i) throws IOException {
+		SoftReference<Task> ref;
+		synchronized (cache) {
+			ref = cache[prior][i];
+		}
+		Task t = (ref == null ? null : ref.get());
+		if (t != null) { return t; }
+
+		// decode with a reader of our own, so that several threads
+		// can decode tasks at the same time
+		t = header.duplicate().readTaskAt(offsets[prior][i]);
+		synchronized (cache) {
+			cache[prior][i] = new SoftReference<>(t);
+		}
+		return t;
+	}
+}
@@ -25,7 +25,10 @@
 
 package todomanager.task;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Set;
 
 import todomanager.util.SystemInfo;
 import todomanager.util.Tools;
@@ -45,11 +48,20 @@ public class Task {
 		TaskStateEnum s
 	)
 	{
-		changes.add(new TaskState(authorName, cdate, pdate, why, pTN, nTN, pTD, nTD, s));
+		TaskState ts = new TaskState(authorName, cdate, pdate, why, pTN, nTN, pTD, nTD, s);
+		TaskState prev = current;
+		changes().add(ts);
+		if (isStateChange(s)) { setCurrent(ts); }
+		TaskManager.getInstance().stateAdded(this, ts, prev);
 	}
 	
+	/** Minimum number of digits of the ids of the tasks in text */
+	private static final int ID_DIGITS = 6;
+	/** Number of task states */
+	private static final int STATES = TaskStateEnum.values().length;
+	
 	/** Task's id (used to uniquely identify the task) */
-	private String id = "";
+	private int id = -1;
 	/** Task's name */
 	private String name = "";
 	/** Task's description */
@@ -58,12 +70,27 @@ public class Task {
 	private String compDate = "";
 	/** Task's creation date (pretty) */
 	private String prettyDate = "";
-	/** List of state changes of this task */
+	/** List of state changes of this task (null until @ref history is decoded) */
 	private ArrayList<TaskState> changes = new ArrayList<>();
+	/** State changes read from a task file and not decoded yet */
+	private TaskHistory history = null;
+	/** First state change in @ref history */
+	private TaskState historyFirst = null;
+	/** Last state change that changed the state (see @ref currentState) */
+	private TaskState current = null;
 	/** The subtasks of this task */
 	private ArrayList<Task> subtasks = new ArrayList<>();
 	/** Parent task */
 	private Task parentTask = null;
+	/** Number of direct subtasks in each state, indexed by ordinal
+	 * (null when there are no subtasks) */
+	private int[] childCounts = null;
+	/** Number of subtasks at any depth in each state, indexed by ordinal
+	 * (null when there are no subtasks) */
+	private int[] subtreeCounts = null;
+	/** The task does not belong to the Task Manager (e.g., it was
+	 * read from a read-only view): its changes are not recorded. */
+	private boolean detached = false;
 	
 	/**
 	 * Task constructor.
@@ -73,8 +100,23 @@ public class Task {
 	 * @param descr Task's description.
 	 * @param _cdate Date in comparable format.
 	 * @param _pdate Date in a pretty format.
+	 * @throws NumberFormatException When the id is not a number (see
+	 * @ref parseId).
 	 */
 	public Task(String _author, String _id, String _name, String descr, String _cdate, String _pdate) {
+		this(_author, checkedId(_id), _name, descr, _cdate, _pdate);
+	}
+	
+	/**
+	 * Task constructor.
+	 * @param _author Name of the person constructing the task.
+	 * @param _id Task's id (not negative).
+	 * @param _name Task's name.
+	 * @param descr Task's description.
+	 * @param _cdate Date in comparable format.
+	 * @param _pdate Date in a pretty format.
+	 */
+	public Task(String _author, int _id, String _name, String descr, String _cdate, String _pdate) {
 		id = _id;
 		name = _name;
 		description = descr;
@@ -87,80 +129,341 @@ public class Task {
 		
 		// the task's name and description changed from "nothing"
 		// to "something". However, no need to capture this change
-		addChangeState(_author, _cdate, _pdate, "Opened task", null, null, null, null, TaskStateEnum.Opened);
+		current = new TaskState(_author, _cdate, _pdate, "Opened task", null, null, null, null, TaskStateEnum.Opened);
+		changes.add(current);
 	}
 	
-	public String getCreator() { return changes.get(0).getAuthor(); }
-	public String getId() { return id; }
+	public String getCreator() {
+		if (changes == null) { return historyFirst.getAuthor(); }
+		return changes.get(0).getAuthor();
+	}
+	/** The id, as written in task files and shown to the user (see @ref formatId). */
+	public String getId() { return formatId(id); }
+	public int getNumericId() { return id; }
 	public String getName() { return name; }
 	public void setName(String n) { name = n; }
 	public String getDescription() { return description; }
 	public void setDescription(String d) { description = d; }
 	public String getCompDate() { return compDate; }
 	public String getPrettyDate() { return prettyDate; }
-	public ArrayList<TaskState> getChanges() { return changes; }
+	/**
+	 * The state changes. Add changes through the methods of the task only.
+	 * @throws UncheckedIOException When they could not be decoded.
+	 */
+	public ArrayList<TaskState> getChanges() { return changes(); }
+	/** Number of state changes (without decoding them). */
+	int changeCount() { return changes == null ? history.size() : changes.size(); }
 	public ArrayList<Task> getSubtasks() { return subtasks; }
-	public void setParent(Task t) { parentTask = t; }
 	public Task getParentTask() { return parentTask; }
+	/** Is this task outside the Task Manager? Its changes are not recorded. */
+	public boolean isDetached() { return detached; }
+	void setDetached() { detached = true; }
 	
 	@Override
 	public String toString() { return name + " -- (id: " + getId() + ")"; }
 	
-	public void hardSetChanges(ArrayList<TaskState> c) { changes = c; }
-	public void hardSetSubtasks(ArrayList<Task> s) { subtasks = s; }
+	/**
+	 * @brief The text of an id.
+	 *
+	 * Ids are padded with zeros up to 6 digits. Larger ids are written
+	 * with all their digits.
+	 */
+	public static String formatId(int id) {
+		String s = Integer.toString(id);
+		if (s.length() >= ID_DIGITS) { return s; }
+		return "000000".substring(s.length()) + s;
+	}
+	
+	/**
+	 * @brief The id written in a text (see @ref formatId).
+	 * @return Returns the id, or -1 if the text is not a valid id.
+	 */
+	public static int parseId(String s) {
+		if (s == null || s.isEmpty() || s.length() > 10) { return -1; }
+		long v = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') { return -1; }
+			v = v*10 + (c - '0');
+		}
+		return v > Integer.MAX_VALUE ? -1 : (int)v;
+	}
+	
+	private static int checkedId(String s) {
+		int v = parseId(s);
+		if (v == -1) { throw new NumberFormatException("Task id '" + s + "' is not a number."); }
+		return v;
+	}
+	
+	public void hardSetChanges(ArrayList<TaskState> c) {
+		changes = c;
+		history = null;
+		historyFirst = null;
+		setCurrent(lastStateChange(c));
+	}
+	
+	/**
+	 * @brief Sets the state changes to be decoded when they are needed.
+	 * @param h The encoded state changes.
+	 * @param first The first state change.
+	 * @param cur The current state (see @ref currentState).
+	 */
+	void setHistory(TaskHistory h, TaskState first, TaskState cur) {
+		changes = null;
+		history = h;
+		historyFirst = first;
+		setCurrent(cur);
+	}
+	
+	/**
+	 * The state changes, decoded if they were not yet. If they cannot be
+	 * decoded they are left encoded, so that they are not replaced by
+	 * the states known, and an UncheckedIOException is thrown.
+	 */
+	private ArrayList<TaskState> changes() {
+		if (changes == null) {
+			try {
+				changes = decodeHistory();
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			history = null;
+			historyFirst = null;
+			current = lastStateChange(changes);
+		}
+		return changes;
+	}
+	
+	/** The last change in @e c that changed the state (see @ref isStateChange) */
+	private static TaskState lastStateChange(ArrayList<TaskState> c) {
+		int i = c.size() - 1;
+		while (i >= 0 && !isStateChange(c.get(i).getState())) { --i; }
+		return i >= 0 ? c.get(i) : null;
+	}
+	
+	/** The encoded state changes, while they are not decoded (null otherwise). */
+	TaskHistory encodedHistory() { return changes == null ? history : null; }
+	
+	/**
+	 * @brief The state changes, without keeping them decoded.
+	 *
+	 * Used to write the task into a file without filling the memory
+	 * with the history of every task.
+	 * @throws IOException When they could not be decoded.
+	 */
+	ArrayList<TaskState> peekChanges() throws IOException {
+		if (changes == null) { return decodeHistory(); }
+		return changes;
+	}
+	
+	private ArrayList<TaskState> decodeHistory() throws IOException {
+		try {
+			return history.decode();
+		}
+		catch (IOException ex) {
+			Logger log = Logger.getInstance();
+			log.error("Could not decode the history of task '" + getId() + "'.");
+			log.error("    " + ex.getMessage());
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Does a state change of this kind change the state of the task?
+	 * (Edits, new subtasks and priority changes do not)
+	 */
+	static boolean isStateChange(TaskStateEnum s) {
+		return s != TaskStateEnum.Edited &&
+			   s != TaskStateEnum.AddedSubtask &&
+			   s != TaskStateEnum.PriorityChanged;
+	}
+	/**
+	 * Replaces the subtasks. A new subtask that has another parent is
+	 * removed from it first, so that the counts of both stay right.
+	 */
+	public void hardSetSubtasks(ArrayList<Task> s) {
+		uncountUp();
+		for (Task st : subtasks) { st.parentTask = null; }
+		for (Task st : s) {
+			if (st.parentTask != null && st.parentTask != this) {
+				st.parentTask.removeSubtask(st.id);
+			}
+			st.parentTask = this;
+		}
+		subtasks = s;
+		recount();
+	}
+	
+	/**
+	 * The current state: the last state change that changed the state
+	 * (see @ref isStateChange). It is kept up to date as changes are
+	 * added, so this does not look at the changes.
+	 */
+	public TaskState currentState() { return current; }
+	
+	/** Sets the current state and updates the counts of the ancestors. */
+	private void setCurrent(TaskState ts) {
+		TaskState prev = current;
+		current = ts;
+		if (parentTask == null || prev == null || ts == null) { return; }
+		if (prev.getState() != ts.getState()) {
+			parentTask.childStateChanged(prev.getState(), ts.getState());
+		}
+	}
+	
+	// -------------------------------------------------------------------------
+	// Counts of the states of the subtasks. They are kept up to date as
+	// states change and subtasks are added or removed, so checking the
+	// states of the subtasks does not need to look at them.
+	
+	/** Number of subtasks at any depth */
+	public int subtreeSize() {
+		if (subtreeCounts == null) { return 0; }
+		int n = 0;
+		for (int c : subtreeCounts) { n += c; }
+		return n;
+	}
+	/** Number of subtasks at any depth whose current state is @e s */
+	public int subtreeCount(TaskStateEnum s) {
+		return subtreeCounts == null ? 0 : subtreeCounts[s.ordinal()];
+	}
+	
+	private static int maskOf(int[] counts) {
+		if (counts == null) { return 0; }
+		int m = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			if (counts[i] > 0) { m |= 1 << i; }
+		}
+		return m;
+	}
+	
+	/** The state of direct subtask changed from @e from to @e to. */
+	private void childStateChanged(TaskStateEnum from, TaskStateEnum to) {
+		--childCounts[from.ordinal()];
+		++childCounts[to.ordinal()];
+		for (Task a = this; a != null; a = a.parentTask) {
+			--a.subtreeCounts[from.ordinal()];
+			++a.subtreeCounts[to.ordinal()];
+		}
+	}
+	
+	/**
+	 * Adds (@e d = 1) or removes (@e d = -1) the direct subtask @e t,
+	 * and its subtasks, to the counts of this task and its ancestors.
+	 */
+	private void countSubtask(Task t, int d) {
+		int s = t.current.getState().ordinal();
+		for (Task a = this; a != null; a = a.parentTask) {
+			if (a.subtreeCounts == null) {
+				a.childCounts = new int[STATES];
+				a.subtreeCounts = new int[STATES];
+			}
+			a.subtreeCounts[s] += d;
+			if (t.subtreeCounts != null) {
+				for (int i = 0; i < STATES; ++i) { a.subtreeCounts[i] += d*t.subtreeCounts[i]; }
+			}
+		}
+		childCounts[s] += d;
+	}
+	
+	/** Removes this task from the counts of its ancestors. */
+	private void uncountUp() {
+		if (parentTask != null) { parentTask.countSubtask(this, -1); }
+	}
 	
-	public TaskState currentState() {
-		ArrayList<TaskStateEnum> null_states = new ArrayList<>();
-		null_states.add(TaskStateEnum.Edited);
-		null_states.add(TaskStateEnum.AddedSubtask);
-		null_states.add(TaskStateEnum.PriorityChanged);
-		int i = changes.size() - 1;
-		while (i >= 0 && null_states.contains(changes.get(i).getState())) { --i; }
-		return changes.get(i);
+	/**
+	 * Counts the subtasks again, after the list of subtasks was replaced,
+	 * and adds this task back to the counts of its ancestors (see
+	 * @ref uncountUp).
+	 */
+	private void recount() {
+		childCounts = null;
+		subtreeCounts = null;
+		if (!subtasks.isEmpty()) {
+			childCounts = new int[STATES];
+			subtreeCounts = new int[STATES];
+			for (Task t : subtasks) {
+				int s = t.current.getState().ordinal();
+				++childCounts[s];
+				++subtreeCounts[s];
+				if (t.subtreeCounts != null) {
+					for (int i = 0; i < STATES; ++i) { subtreeCounts[i] += t.subtreeCounts[i]; }
+				}
+			}
+		}
+		if (parentTask != null) { parentTask.countSubtask(this, 1); }
 	}
 	
-	public boolean deleteSubtask(String id) {
-		int j = -1;
-		for (int i = 0; i < subtasks.size() && j == -1; ++i) {
-			if (subtasks.get(i).getId().equals(id)) {
-				j = i;
+	private int indexOfSubtask(int id) {
+		for (int i = 0; i < subtasks.size(); ++i) {
+			if (subtasks.get(i).id == id) {
+				return i;
 			}
 		}
-		if (j != -1) { subtasks.remove(j); }
-		return j != -1;
+		return -1;
+	}
+	
+	public boolean deleteSubtask(String id) { return deleteSubtask(parseId(id)); }
+	public boolean deleteSubtask(int id) {
+		Task t = removeSubtask(id);
+		if (t != null) { TaskManager.getInstance().subtaskDeleted(this, t); }
+		return t != null;
 	}
 	
 	public void deleteSubtasks() {
 		for (Task st : getSubtasks()) {
 			st.deleteSubtasks();
 		}
+		uncountUp();
 		subtasks.clear();
+		recount();
 	}
 	
 	public void constructParentRelationships() {
 		ArrayList<Task> list = getSubtasks();
 		list.stream().forEach((t) -> {
-			t.setParent(this);
+			t.parentTask = this;
 			t.constructParentRelationships();
 		});
+		uncountUp();
+		recount();
 	}
 	
 	/**
 	 * Are all the substasks in a certain state?
-	 * @param ls List of task states
+	 * @param ls Set of task states
+	 */
+	public boolean subtasksStateIsOneOf(Set<TaskStateEnum> ls) {
+		return subtasksStateIsOneOf(TaskStateEnum.maskOf(ls));
+	}
+	/**
+	 * Are all the substasks in a certain state?
+	 * @param mask Mask of task states (see @ref TaskStateEnum.bit)
 	 */
-	public boolean subtasksStateIsOneOf(ArrayList<TaskStateEnum> ls) {
-		if (subtasks.isEmpty()) { return true; }
-		return subtasks.stream().allMatch( (t) -> (t.isOneOfState(ls)) );
+	public boolean subtasksStateIsOneOf(int mask) {
+		return (subtasksStates() & ~mask) == 0;
 	}
 	/**
 	 * A task is in a state only if it is marked to be in that state
 	 * and so are all of its subtasks.
-	 * @param ls List of task states
+	 * @param ls Set of task states
 	 */
-	public boolean isOneOfState(ArrayList<TaskStateEnum> ls) {
+	public boolean isOneOfState(Set<TaskStateEnum> ls) {
 		return ls.contains(currentState().getState());
 	}
+	/**
+	 * Is the task in one of the states of @e mask?
+	 * @param mask Mask of task states (see @ref TaskStateEnum.bit)
+	 */
+	public boolean isOneOfState(int mask) {
+		return (currentState().getState().bit() & mask) != 0;
+	}
+	
+	/** Mask of the current states of the subtasks */
+	public int subtasksStates() { return maskOf(childCounts); }
+	/** Mask of the current states of the subtasks at any depth */
+	public int subtreeStates() { return maskOf(subtreeCounts); }
 	
 	public boolean isDone() {
 		return currentState().getState() == TaskStateEnum.Done;
@@ -168,6 +471,32 @@ public class Task {
 	
 	// -------------------------------------------------------------------------
 	
+	/**
+	 * @brief Can the state of this task be changed to @e s?
+	 *
+	 * Same rules as @ref askChangeState, without building the reasons.
+	 * @param s New state of the task
+	 */
+	public boolean canChangeState(TaskStateEnum s) {
+		if (!isStateChange(s)) { return true; }
+		return isOneOfState(TaskStateEnum.precondCurtaskMask(s)) &&
+			   subtasksStateIsOneOf(TaskStateEnum.precondAskStateChangeSubtasksMask(s));
+	}
+	/**
+	 * @brief Can the state of this task be changed to @e s, with all the
+	 * subtasks at any depth in a state allowed by the change?
+	 *
+	 * Stricter than @ref canChangeState, which only looks at the direct
+	 * subtasks: this also rejects, say, closing a task with an open
+	 * subtask of a closed subtask.
+	 * @param s New state of the task
+	 */
+	public boolean canChangeSubtreeState(TaskStateEnum s) {
+		if (!isStateChange(s)) { return true; }
+		return isOneOfState(TaskStateEnum.precondCurtaskMask(s)) &&
+			   (subtreeStates() & ~TaskStateEnum.precondAskStateChangeSubtasksMask(s)) == 0;
+	}
+	
 	public String askChangeState(TaskStateEnum s) {
 		// always "yes" for these changes
 		switch (s) {
@@ -177,12 +506,17 @@ public class Task {
 				return "";
 		}
 		
+		if (canChangeState(s)) {
+			return "";
+		}
+		
 		Translate tr = Translate.getInstance();
 		SystemInfo sysinfo = SystemInfo.getInstance();
 		Logger log = Logger.getInstance();
 		
-		ArrayList<TaskStateEnum> cur_level = TaskStateEnum.precondCurtask(s);
-		ArrayList<TaskStateEnum> sub_level = TaskStateEnum.precondAskStateChangeSubtasks(s);
+		Set<TaskStateEnum> cur_level = TaskStateEnum.precondCurtask(s);
+		Set<TaskStateEnum> sub_level = TaskStateEnum.precondAskStateChangeSubtasks(s);
+		int sub_mask = TaskStateEnum.precondAskStateChangeSubtasksMask(s);
 		
 		if (!isOneOfState(cur_level)) {
 			// translate current level states' names
@@ -203,7 +537,7 @@ public class Task {
 		
 		String reason = "";
 		for (Task t : subtasks) {
-			if (!t.isOneOfState(sub_level)) {
+			if (!t.isOneOfState(sub_mask)) {
 				// translate sub level states' names
 				ArrayList<String> sub_level_trans = new ArrayList<String>();
 				sub_level.forEach((e) -> {
@@ -266,13 +600,17 @@ public class Task {
 				return;
 		}
 		
-		ArrayList<TaskStateEnum> cur_level = TaskStateEnum.precondStateChangeSubtasks(s);
+		int cur_level = TaskStateEnum.precondStateChangeSubtasksMask(s);
 		for (Task t : subtasks) {
 			if (t.isOneOfState(cur_level)) {
 				t.changeState(author, cdate, pdate, null,null, why, s);
 			}
 		}
 	}
+	/** Change the state of a task, at a given date, when @e s is not 'Edited'. */
+	void changeState(String author, String cdate, String pdate, String why, TaskStateEnum s) {
+		changeState(author, cdate, pdate, why, null,null, s);
+	}
 	/**
 	 * Change the state of a task when @e s is not 'Edited'.
 	 * @param author Author's name.
@@ -324,19 +662,59 @@ public class Task {
 		}
 		subtasks.add(0, t);
 		t.parentTask = this;
+		countSubtask(t, 1);
+		TaskManager.getInstance().subtaskAdded(this, t);
 	}
 	
-	public boolean moveSubtaskBy(String id, int incr) {
-		Task t = null;
-		int j = -1;
-		for (int i = 0; i < subtasks.size() && t == null; ++i) {
-			if (subtasks.get(i).getId().equals(id)) {
-				t = subtasks.get(i);
-				j = i;
-				subtasks.remove(i);
-			}
+	public boolean moveSubtaskBy(String id, int incr) { return moveSubtaskBy(parseId(id), incr); }
+	public boolean moveSubtaskBy(int id, int incr) {
+		if (!shiftSubtask(id, incr)) { return false; }
+		TaskManager.getInstance().subtaskMoved(this, id, incr);
+		return true;
+	}
+	
+	// -------------------------------------------------------------------------
+	// Raw modifications, used when replaying the journal. They do not
+	// cascade nor are they recorded.
+	
+	/**
+	 * Appends a state change as is. When it is an 'Edited' change, the
+	 * task's name and description are set to the new ones.
+	 */
+	void replayState(TaskState ts) {
+		changes().add(ts);
+		if (isStateChange(ts.getState())) { setCurrent(ts); }
+		if (ts.getState() == TaskStateEnum.Edited) {
+			name = ts.getNextTaskName();
+			description = ts.getNextTaskDescription();
 		}
-		if (t == null) { return false; }
+	}
+	
+	/** Adds a subtask without changing this task's state. */
+	void replaySubtask(Task t) {
+		subtasks.add(0, t);
+		t.parentTask = this;
+		countSubtask(t, 1);
+	}
+	
+	/**
+	 * Removes a subtask, which is left without a parent. Returns the
+	 * removed subtask, or null.
+	 */
+	Task removeSubtask(int id) {
+		int j = indexOfSubtask(id);
+		if (j == -1) { return null; }
+		Task t = subtasks.remove(j);
+		countSubtask(t, -1);
+		t.parentTask = null;
+		return t;
+	}
+	
+	/** Moves a subtask by @e incr positions within the list of subtasks. */
+	boolean shiftSubtask(int id, int incr) {
+		int j = indexOfSubtask(id);
+		if (j == -1) { return false; }
+		Task t = subtasks.remove(j);
 		subtasks.add(j + incr, t);
 		return true;
 	}
@@ -345,7 +723,7 @@ public class Task {
 	
 	public String changesToString() {
 		String c = "";
-		c = changes.stream()
+		c = changes().stream()
 			.map(		(ts) -> ts.toString()	)
 			.reduce(	c, String::concat		);
 		return c;
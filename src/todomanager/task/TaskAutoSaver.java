@@ -0,0 +1,254 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @brief Saves the changes of the tasks in the background.
+ *
+ * Every change is notified with @ref changesMade. Bursts of changes are
+ * coalesced: the changes are saved once no change has been made for a
+ * quiet period, or once they have been waiting for a maximum delay.
+ *
+ * Saves are made by a dedicated thread, one at a time, with
+ * TaskManager::saveJournal. Changes made while a save is in progress
+ * are saved by the next one, which is not started before the current
+ * one finishes: slow saves delay the following saves instead of
+ * piling up.
+ * @author Lluís Alemany Puig
+ */
+public class TaskAutoSaver {
+	
+	/** Notified after every save, from the thread of the saver. */
+	public interface Listener {
+		/**
+		 * @param success Were the changes saved?
+		 * @param pending Were more changes made during the save?
+		 */
+		void saved(boolean success, boolean pending);
+	}
+	
+	/** Time without changes before saving them (in milliseconds). */
+	private final long quietMillis;
+	/** Longest time a change waits to be saved (in milliseconds). */
+	private final long maxDelayMillis;
+	/** Thread where changes are saved. */
+	private final ScheduledExecutorService saver;
+	/** Notified after every save (may be null). */
+	private final Listener listener;
+	
+	/** Are there changes that have not been saved? */
+	private boolean unsaved = false;
+	/** Time of the first unsaved change (System.nanoTime). */
+	private long firstChange = 0;
+	/** Time of the last unsaved change (System.nanoTime). */
+	private long lastChange = 0;
+	/** Is a save in progress? */
+	private boolean saving = false;
+	/** Are the changes to be saved without waiting (see @ref saveNow)? */
+	private boolean saveRequested = false;
+	/** Next save, if any has been scheduled. */
+	private ScheduledFuture<?> next = null;
+	/** Time (in milliseconds) taken by the last save. */
+	private long lastSaveMillis = 0;
+	/** Time (in milliseconds) since the first change saved by the last save. */
+	private long lastSaveLatency = 0;
+	
+	/**
+	 * @brief Constructor.
+	 * @param quiet Time without changes before saving them (in milliseconds).
+	 * @param maxDelay Longest time a change waits to be saved (in milliseconds).
+	 * @param l Notified after every save (may be null).
+	 */
+	public TaskAutoSaver(long quiet, long maxDelay, Listener l) {
+		quietMillis = quiet;
+		maxDelayMillis = Math.max(quiet, maxDelay);
+		listener = l;
+		saver = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread th = new Thread(r, "task-autosave");
+			th.setDaemon(true);
+			return th;
+		});
+	}
+	
+	/**
+	 * @brief Notifies that the tasks have been changed.
+	 *
+	 * Returns immediately: it never waits for a save.
+	 */
+	public synchronized void changesMade() {
+		long now = System.nanoTime();
+		if (!unsaved) {
+			unsaved = true;
+			firstChange = now;
+		}
+		lastChange = now;
+		// a save in progress schedules the next one when it finishes
+		if (next == null && !saving) { schedule(quietMillis); }
+	}
+	
+	/**
+	 * @brief Saves the changes as soon as possible, in the background.
+	 *
+	 * Does not wait for the quiet period.
+	 */
+	public synchronized void saveNow() {
+		if (!unsaved) { return; }
+		saveRequested = true;
+		if (next != null) { next.cancel(false); }
+		next = null;
+		// a save in progress schedules the next one when it finishes
+		if (!saving) { schedule(0); }
+	}
+	
+	/**
+	 * @brief Saves the changes in the calling thread.
+	 *
+	 * Waits for the save in progress, if any.
+	 * @return Returns true if all changes are saved.
+	 */
+	public boolean flush() {
+		long first;
+		synchronized (this) {
+			if (next != null) { next.cancel(false); }
+			next = null;
+			while (saving) {
+				try {
+					wait();
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			if (!unsaved) { return true; }
+			first = startSave();
+		}
+		save(first);
+		synchronized (this) { return !unsaved; }
+	}
+	
+	/**
+	 * @brief Forgets the changes not saved yet.
+	 *
+	 * Used when the changes have been saved in some other way (e.g.,
+	 * with TaskManager::writeTasks), or when they are discarded.
+	 */
+	public synchronized void clear() {
+		unsaved = false;
+		saveRequested = false;
+		if (next != null) { next.cancel(false); }
+		next = null;
+	}
+	
+	/** Are there changes that have not been saved yet? */
+	public synchronized boolean hasUnsavedChanges() { return unsaved; }
+	/** Is a save in progress? */
+	public synchronized boolean isSaving() { return saving; }
+	/** Time (in milliseconds) taken by the last save. */
+	public synchronized long getLastSaveMillis() { return lastSaveMillis; }
+	/**
+	 * @brief Latency of the last save (in milliseconds).
+	 *
+	 * Time from the first change saved by the last save until the
+	 * changes were written.
+	 */
+	public synchronized long getLastSaveLatency() { return lastSaveLatency; }
+	
+	private void schedule(long millis) {
+		next = saver.schedule(this::tick, millis, TimeUnit.MILLISECONDS);
+	}
+	
+	/** Saves the changes if the quiet period (or the maximum delay) expired,
+	 * or if they were requested to be saved. */
+	private void tick() {
+		long first;
+		synchronized (this) {
+			next = null;
+			if (!unsaved || saving) { return; }
+			long now = System.nanoTime();
+			long quiet = lastChange + quietMillis*1000000 - now;
+			long delay = firstChange + maxDelayMillis*1000000 - now;
+			long wait = Math.min(quiet, delay);
+			if (wait > 0 && !saveRequested) {
+				// more changes were made meanwhile
+				schedule((wait + 999999)/1000000);
+				return;
+			}
+			first = startSave();
+		}
+		save(first);
+	}
+	
+	/** Marks the changes made so far as being saved. Returns the time of the first one. */
+	private long startSave() {
+		saving = true;
+		unsaved = false;
+		saveRequested = false;
+		return firstChange;
+	}
+	
+	/**
+	 * @brief Saves the changes marked by @ref startSave.
+	 * @param first Time of the first change.
+	 */
+	private void save(long first) {
+		TaskManager tm = TaskManager.getInstance();
+		
+		// otherwise, the task file has to be saved completely
+		boolean possible = tm.canSaveJournal();
+		boolean success = false;
+		long begin = System.nanoTime();
+		try {
+			success = possible && tm.saveJournal();
+		}
+		finally {
+			long end = System.nanoTime();
+			boolean pending;
+			synchronized (this) {
+				saving = false;
+				if (success) {
+					lastSaveMillis = (end - begin)/1000000;
+					lastSaveLatency = (end - first)/1000000;
+					if (unsaved && next == null) { schedule(saveRequested ? 0 : quietMillis); }
+				}
+				else {
+					// still to be saved, with the next change
+					if (!unsaved) { lastChange = first; }
+					unsaved = true;
+					firstChange = first;
+				}
+				pending = unsaved;
+				notifyAll();
+			}
+			if (possible && listener != null) { listener.saved(success, pending); }
+		}
+	}
+}
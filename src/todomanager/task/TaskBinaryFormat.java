@@ -0,0 +1,180 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * @brief Layout of the binary task files.
+ *
+ * A binary task file contains:
+ * - The magic bytes @ref MAGIC and the version of the format (one byte).
+ * - The generation and the base generation of the file (8 bytes each)
+ * and the number of base records (varint).
+ * - A dictionary of the strings that appear more than once in the file
+ * (authors, time zones, reasons, ...): number of strings (varint) and
+ * the strings.
+ * - The low, medium and high priority tasks: number of tasks (varint)
+ * and the tasks.
+ * - (Since version 2) The index of the top-level tasks: for each list,
+ * the number of tasks (4 bytes) and their offsets in the file (8 bytes
+ * each). The file ends with the offset of the index (8 bytes).
+ *
+ * A task is its id, name and description (strings), its date, the number
+ * of changes (varint) followed by the changes, and the number of subtasks
+ * (varint) followed by the subtasks. A change is the ordinal of its state
+ * (one byte), its date, and its reason, author, pTN, nTN, pTD and nTD
+ * (strings).
+ *
+ * A string is a varint: 0 for null, 1 for a string that follows (length in
+ * bytes as a varint, and its UTF-8 bytes), and 2 + i for the i-th string
+ * of the dictionary.
+ *
+ * A date is a varint: 1 if it follows as a number of seconds (as the
+ * zig-zag varint difference with the previous date in the file) and a
+ * time zone (string), or 0 if it follows as its two strings (comparable
+ * and pretty). The numeric form is used only when it gives back exactly
+ * the same strings. Since version 2, the previous date is reset to 0 at
+ * the start of every top-level task, so that each of them can be decoded
+ * without reading the ones before it.
+ *
+ * Varints are unsigned LEB128.
+ * @author Lluís Alemany Puig
+ */
+class TaskBinaryFormat {
+
+	/** First bytes of a binary task file. */
+	static final byte[] MAGIC = { 'T', 'L', 'M', 'B' };
+	/** Version of the format written. */
+	static final int VERSION = 2;
+	/** First version with an index of the top-level tasks. */
+	static final int VERSION_INDEXED = 2;
+
+	static final int STRING_NULL = 0;
+	static final int STRING_INLINE = 1;
+	static final int STRING_DICTIONARY = 2;
+
+	static final int DATE_STRINGS = 0;
+	static final int DATE_SECONDS = 1;
+
+	private static final String[] DAYS = { "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun" };
+	private static final String[] MONTHS = {
+		"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+	};
+
+	private TaskBinaryFormat() { }
+
+	/** Does this data start like a binary task file? */
+	static boolean isBinary(byte[] head, int len) {
+		if (len < MAGIC.length) { return false; }
+		for (int i = 0; i < MAGIC.length; ++i) {
+			if (head[i] != MAGIC[i]) { return false; }
+		}
+		return true;
+	}
+
+	private static int digits(String s, int b, int n) {
+		int v = 0;
+		for (int i = b; i < b + n; ++i) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') { return -1; }
+			v = v*10 + (c - '0');
+		}
+		return v;
+	}
+
+	/**
+	 * @brief Seconds of a comparable date.
+	 *
+	 * The date is local time ("yyyy.MM.dd.HH.mm.ss"), so the seconds are
+	 * counted as if it were UTC.
+	 * @return Returns the seconds, or null if the date does not have the
+	 * expected format.
+	 */
+	static Long seconds(String comparable) {
+		if (comparable == null || comparable.length() != 19) { return null; }
+		for (int i = 4; i < 19; i += 3) {
+			if (comparable.charAt(i) != '.') { return null; }
+		}
+		int y = digits(comparable, 0, 4);
+		int mo = digits(comparable, 5, 2);
+		int d = digits(comparable, 8, 2);
+		int h = digits(comparable, 11, 2);
+		int mi = digits(comparable, 14, 2);
+		int s = digits(comparable, 17, 2);
+		if (y < 0 || mo < 1 || mo > 12 || d < 1 || h < 0 || mi < 0 || s < 0) { return null; }
+		try {
+			return LocalDateTime.of(y, mo, d, h, mi, s).toEpochSecond(ZoneOffset.UTC);
+		}
+		catch (java.time.DateTimeException ex) {
+			return null;
+		}
+	}
+
+	/** Time zone of a pretty date ("EEE MMM dd HH:mm:ss zzz yyyy"), or null. */
+	static String zone(String pretty) {
+		if (pretty == null || pretty.length() < 26) { return null; }
+		int end = pretty.lastIndexOf(' ');
+		if (end <= 20) { return null; }
+		return pretty.substring(20, end);
+	}
+
+	private static void pad2(StringBuilder sb, int v) {
+		if (v < 10) { sb.append('0'); }
+		sb.append(v);
+	}
+
+	/** The comparable date of some seconds. */
+	static String comparableDate(long seconds) {
+		LocalDateTime t = LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC);
+		StringBuilder sb = new StringBuilder(19);
+		sb.append(t.getYear()).append('.');
+		pad2(sb, t.getMonthValue()); sb.append('.');
+		pad2(sb, t.getDayOfMonth()); sb.append('.');
+		pad2(sb, t.getHour()); sb.append('.');
+		pad2(sb, t.getMinute()); sb.append('.');
+		pad2(sb, t.getSecond());
+		return sb.toString();
+	}
+
+	/** The pretty date (as in java.util.Date.toString) of some seconds in a time zone. */
+	static String prettyDate(long seconds, String zone) {
+		LocalDateTime t = LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC);
+		DayOfWeek dw = t.getDayOfWeek();
+		StringBuilder sb = new StringBuilder(32);
+		sb.append(DAYS[dw.getValue() - 1]).append(' ');
+		sb.append(MONTHS[t.getMonthValue() - 1]).append(' ');
+		pad2(sb, t.getDayOfMonth()); sb.append(' ');
+		pad2(sb, t.getHour()); sb.append(':');
+		pad2(sb, t.getMinute()); sb.append(':');
+		pad2(sb, t.getSecond()); sb.append(' ');
+		sb.append(zone).append(' ');
+		sb.append(t.getYear());
+		return sb.toString();
+	}
+}
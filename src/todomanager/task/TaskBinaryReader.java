@@ -0,0 +1,586 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * @brief Reader of binary task files.
+ *
+ * See @ref TaskBinaryFormat for the layout of the file. The reader decodes
+ * the contents of a byte buffer, which may be a file read into memory
+ * or a file mapped into memory.
+ * @author Lluís Alemany Puig
+ */
+class TaskBinaryReader {
+
+	/** Contents of the file. */
+	private final ByteBuffer in;
+	/** Version of the format of the file. */
+	private int version;
+	/** Strings of the dictionary of the file. */
+	private String[] dictionary;
+	/** Mark the tasks read as detached from the Task Manager. */
+	private boolean detached;
+	/** Seconds of the last date read. */
+	private long lastSeconds;
+	/** Scratch space to decode strings from direct buffers. */
+	private byte[] str;
+
+	/** Largest task id found so far. */
+	private int maximumID;
+	/** Generation of the task file. */
+	private long generation;
+	/** Generation of the journal folded into the task file. */
+	private long baseGeneration;
+	/** Number of journal records folded into the task file. */
+	private long baseRecords;
+
+	/**
+	 * @brief Constructor.
+	 * @param _in Contents of the file, from its first byte.
+	 */
+	TaskBinaryReader(ByteBuffer _in) {
+		in = _in;
+		version = 0;
+		dictionary = new String[0];
+		detached = false;
+		lastSeconds = 0;
+		str = new byte[256];
+		maximumID = -1;
+		generation = 0;
+		baseGeneration = 0;
+		baseRecords = 0;
+	}
+
+	/** Largest task id read so far (-1 if no task was read). */
+	int getMaximumID() { return maximumID; }
+	/** Generation of the task file read. */
+	long getGeneration() { return generation; }
+	/** Generation of the journal folded into the task file. */
+	long getBaseGeneration() { return baseGeneration; }
+	/** Number of records of that journal folded into the task file (0 if none). */
+	long getBaseRecords() { return baseRecords; }
+
+	/**
+	 * @brief Reads the contents of a whole task file.
+	 * @param high High priority tasks are added here.
+	 * @param med Medium priority tasks are added here.
+	 * @param low Low priority tasks are added here.
+	 * @throws IOException When the contents are not a valid binary task file.
+	 */
+	void readTasks(ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low)
+	throws IOException
+	{
+		readTasks(high, med, low, 0);
+	}
+
+	/**
+	 * @brief Reads the contents of a whole task file in parallel.
+	 *
+	 * The top-level tasks listed in the index of the file are split into
+	 * groups of about @e splitSize bytes, decoded by fork/join tasks,
+	 * each with its own reader. Files without an index are read
+	 * sequentially. The tasks read are the same as when reading
+	 * sequentially.
+	 * @param high High priority tasks are added here.
+	 * @param med Medium priority tasks are added here.
+	 * @param low Low priority tasks are added here.
+	 * @param splitSize Size of the groups, in bytes (0 to read sequentially).
+	 * @throws IOException When the contents are not a valid binary task file.
+	 */
+	void readTasks(ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low, int splitSize)
+	throws IOException
+	{
+		try {
+			readHeader();
+			if (splitSize > 0 && version >= TaskBinaryFormat.VERSION_INDEXED) {
+				int tasks = in.position();
+				long[][] offsets = readIndex();
+				in.position(tasks);
+				readTopLevelArrayParallel(low, offsets[0], splitSize);
+				readTopLevelArrayParallel(med, offsets[1], splitSize);
+				readTopLevelArrayParallel(high, offsets[2], splitSize);
+			}
+			else {
+				readTopLevelArray(low);
+				readTopLevelArray(med);
+				readTopLevelArray(high);
+			}
+			if (version >= TaskBinaryFormat.VERSION_INDEXED) {
+				// the index is not needed to read the whole file
+				long n = low.size() + med.size() + high.size();
+				if (in.remaining() != 3*4 + 8*n + 8) {
+					throw error("malformed index");
+				}
+				in.position(in.limit());
+			}
+		}
+		catch (BufferUnderflowException ex) {
+			throw error("unexpected end of file");
+		}
+		if (in.hasRemaining()) {
+			throw error("unexpected contents after the tasks");
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Decoding on demand
+
+	/**
+	 * @brief A reader of the same file, with its own position.
+	 *
+	 * The new reader shares the header (read by this reader) and can be
+	 * used from another thread.
+	 */
+	TaskBinaryReader duplicate() {
+		TaskBinaryReader r = new TaskBinaryReader(in.duplicate());
+		r.version = version;
+		r.dictionary = dictionary;
+		r.detached = detached;
+		return r;
+	}
+
+	/** Marks all tasks read from now on as detached. */
+	void setDetached() { detached = true; }
+
+	/**
+	 * @brief Reads the index of the top-level tasks.
+	 *
+	 * Requires the header to be read, and a file of version 2 or later.
+	 * @return Returns the offsets of the low, medium and high priority
+	 * tasks, in this order.
+	 * @throws IOException When the file has no index or it is malformed.
+	 */
+	long[][] readIndex() throws IOException {
+		if (version < TaskBinaryFormat.VERSION_INDEXED) {
+			throw error("version " + version + " files do not have an index");
+		}
+		try {
+			long index = in.getLong(in.limit() - 8);
+			if (index < 0 || index > in.limit() - 8) {
+				throw error("malformed index offset " + index);
+			}
+			in.position((int)index);
+			long[][] offsets = new long[3][];
+			for (int k = 0; k < 3; ++k) {
+				int n = in.getInt();
+				if (n < 0 || 8L*n > in.remaining()) {
+					throw error("malformed index");
+				}
+				offsets[k] = new long[n];
+				for (int i = 0; i < n; ++i) {
+					offsets[k][i] = in.getLong();
+				}
+			}
+			return offsets;
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+			throw error("malformed index");
+		}
+	}
+
+	/**
+	 * @brief Reads the top-level task (and its subtasks) at an offset.
+	 * @param offset Offset of the task, as found in the index.
+	 * @throws IOException When the task is malformed.
+	 */
+	Task readTaskAt(long offset) throws IOException {
+		try {
+			in.position((int)offset);
+			lastSeconds = 0;
+			return readTask();
+		}
+		catch (BufferUnderflowException | IllegalArgumentException ex) {
+			throw error("unexpected end of file");
+		}
+	}
+
+	private IOException error(String msg) {
+		return new IOException("Malformed task file (byte " + in.position() + "): " + msg);
+	}
+
+	/** Reads the header and the dictionary of the file. */
+	void readHeader() throws IOException {
+		for (int i = 0; i < TaskBinaryFormat.MAGIC.length; ++i) {
+			if (in.get() != TaskBinaryFormat.MAGIC[i]) {
+				throw error("not a binary task file");
+			}
+		}
+		version = in.get() & 0xff;
+		if (version < 1 || version > TaskBinaryFormat.VERSION) {
+			throw error("unsupported version " + version);
+		}
+		generation = in.getLong();
+		baseGeneration = in.getLong();
+		baseRecords = readVarLong();
+
+		int n = readCount();
+		dictionary = new String[n];
+		for (int i = 0; i < n; ++i) {
+			dictionary[i] = readBytes();
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Tasks
+
+	private void readTopLevelArray(ArrayList<Task> tasks) throws IOException {
+		int n = readCount();
+		tasks.ensureCapacity(tasks.size() + n);
+		for (int i = 0; i < n; ++i) {
+			if (version >= TaskBinaryFormat.VERSION_INDEXED) { lastSeconds = 0; }
+			tasks.add(readTask());
+		}
+	}
+
+	/**
+	 * @brief Decodes consecutive top-level tasks in another thread.
+	 *
+	 * The result is the list of tasks. The largest id among them and
+	 * the position after the last one are left in the part.
+	 */
+	private static class ArrayPart extends RecursiveTask<ArrayList<Task>> {
+		private static final long serialVersionUID = 1L;
+
+		private final TaskBinaryReader reader;
+		/** Offsets of the tasks. */
+		private final long[] offsets;
+		private final int from;
+		private final int to;
+		/** Position after the last task. */
+		private int end;
+
+		ArrayPart(TaskBinaryReader _reader, long[] _offsets, int _from, int _to) {
+			reader = _reader;
+			offsets = _offsets;
+			from = _from;
+			to = _to;
+		}
+
+		@Override
+		protected ArrayList<Task> compute() {
+			ArrayList<Task> tasks = new ArrayList<>(to - from);
+			try {
+				for (int i = from; i < to; ++i) {
+					if (i > from && reader.in.position() != offsets[i]) {
+						throw reader.error("malformed index");
+					}
+					tasks.add(reader.readTaskAt(offsets[i]));
+				}
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			end = reader.in.position();
+			return tasks;
+		}
+	}
+
+	/**
+	 * @brief Reads an array of top-level tasks with fork/join tasks.
+	 * @param tasks The tasks are added here.
+	 * @param offsets Offsets of the tasks, from the index.
+	 * @param splitSize Size of the groups of tasks decoded together.
+	 */
+	private void readTopLevelArrayParallel(ArrayList<Task> tasks, long[] offsets, int splitSize)
+	throws IOException
+	{
+		int n = readCount();
+		if (n != offsets.length || (n > 0 && in.position() != offsets[0])) {
+			throw error("malformed index");
+		}
+		ArrayList<ArrayPart> parts = new ArrayList<>();
+		for (int i = 0; i < n; ) {
+			int j = i + 1;
+			while (j < n && offsets[j] - offsets[i] < splitSize) { ++j; }
+			ArrayPart p = new ArrayPart(duplicate(), offsets, i, j);
+			p.fork();
+			parts.add(p);
+			i = j;
+		}
+
+		// in the order of the file, whichever finished first
+		tasks.ensureCapacity(tasks.size() + n);
+		IOException err = null;
+		int next = (n > 0 ? (int)offsets[0] : in.position());
+		for (ArrayPart p : parts) {
+			try {
+				tasks.addAll(p.join());
+				if (err == null && offsets[p.from] != next) {
+					err = error("malformed index");
+				}
+				next = p.end;
+				maximumID = (maximumID < p.reader.maximumID ? p.reader.maximumID : maximumID);
+			}
+			catch (UncheckedIOException ex) {
+				if (err == null) { err = ex.getCause(); }
+			}
+		}
+		if (err != null) { throw err; }
+		in.position(next);
+	}
+
+	private void readTaskArray(ArrayList<Task> tasks) throws IOException {
+		int n = readCount();
+		tasks.ensureCapacity(tasks.size() + n);
+		for (int i = 0; i < n; ++i) {
+			tasks.add(readTask());
+		}
+	}
+
+	private Task readTask() throws IOException {
+		String id = readString();
+		String name = readString();
+		String descr = readString();
+		String[] date = readDate();
+
+		int n = readCount();
+		if (n == 0) {
+			throw error("task '" + id + "' has no changes");
+		}
+		TaskState[] known = new TaskState[2];
+		ArrayList<TaskState> changes = null;
+		TaskHistory history = null;
+		if (n <= TaskHistory.EAGER_SIZE) {
+			// not worth keeping them encoded
+			changes = new ArrayList<>(n);
+			for (int i = 0; i < n; ++i) {
+				changes.add(readTaskState());
+			}
+			known[0] = changes.get(0);
+		}
+		else {
+			history = readHistory(n, known);
+		}
+
+		ArrayList<Task> subtasks = new ArrayList<>();
+		readTaskArray(subtasks);
+
+		int thisTaskId = Task.parseId(id);
+		if (thisTaskId == -1) {
+			throw error("task id '" + id + "' is not a number");
+		}
+		Task t = new Task(known[0].getAuthor(), thisTaskId, name, descr, date[0], date[1]);
+		if (history == null) { t.hardSetChanges(changes); }
+		else { t.setHistory(history, known[0], known[1]); }
+		t.hardSetSubtasks(subtasks);
+		if (detached) { t.setDetached(); }
+
+		maximumID = (maximumID < thisTaskId ? thisTaskId : maximumID);
+		return t;
+	}
+
+	/**
+	 * @brief Reads the changes of a task without decoding them.
+	 *
+	 * Only the first change and the current state are decoded.
+	 * @param n Number of changes.
+	 * @param known The first change and the current state are stored here.
+	 * @return Returns where the changes are in the file.
+	 */
+	private TaskHistory readHistory(int n, TaskState[] known) throws IOException {
+		int start = in.position();
+		long startSeconds = lastSeconds;
+
+		// skip all changes, remembering the last one that changes the
+		// state of the task
+		int current = 0;
+		int currentOffset = start;
+		long currentSeconds = startSeconds;
+		TaskStateEnum[] states = TaskStateEnum.values();
+		for (int i = 0; i < n; ++i) {
+			int offset = in.position();
+			long seconds = lastSeconds;
+			int ord = in.get() & 0xff;
+			if (ord >= states.length) {
+				throw error("unknown state " + ord);
+			}
+			if (i > 0 && Task.isStateChange(states[ord])) {
+				current = i;
+				currentOffset = offset;
+				currentSeconds = seconds;
+			}
+			skipDate();
+			for (int k = 0; k < 6; ++k) { skipString(); }
+		}
+		int end = in.position();
+		long endSeconds = lastSeconds;
+
+		in.position(start);
+		lastSeconds = startSeconds;
+		known[0] = readTaskState();
+		known[1] = known[0];
+		if (current > 0) {
+			in.position(currentOffset);
+			lastSeconds = currentSeconds;
+			known[1] = readTaskState();
+		}
+
+		in.position(end);
+		lastSeconds = endSeconds;
+		return new TaskHistory.Binary(this, start, n, startSeconds);
+	}
+
+	/**
+	 * @brief Decodes the changes of a task.
+	 * @param offset Where the first change is.
+	 * @param n Number of changes.
+	 * @param seconds Seconds of the date before the first change.
+	 */
+	ArrayList<TaskState> readChangesAt(int offset, int n, long seconds) throws IOException {
+		ArrayList<TaskState> changes = new ArrayList<>(n);
+		try {
+			in.position(offset);
+			lastSeconds = seconds;
+			for (int i = 0; i < n; ++i) {
+				changes.add(readTaskState());
+			}
+		}
+		catch (BufferUnderflowException | IllegalArgumentException ex) {
+			throw error("unexpected end of file");
+		}
+		return changes;
+	}
+
+	private TaskState readTaskState() throws IOException {
+		int ord = in.get() & 0xff;
+		TaskStateEnum[] states = TaskStateEnum.values();
+		if (ord >= states.length) {
+			throw error("unknown state " + ord);
+		}
+		String[] date = readDate();
+		String reason = readString();
+		String author = readString();
+		String pTN = readString();
+		String nTN = readString();
+		String pTD = readString();
+		String nTD = readString();
+		return new TaskState(
+			author, date[0], date[1], reason,
+			pTN, nTN, pTD, nTD,
+			states[ord]
+		);
+	}
+
+	// -------------------------------------------------------------------------
+	// Values
+
+	/** Reads a date: its comparable and pretty strings. */
+	private String[] readDate() throws IOException {
+		long tag = readVarLong();
+		if (tag == TaskBinaryFormat.DATE_STRINGS) {
+			return new String[]{ readString(), readString() };
+		}
+		if (tag != TaskBinaryFormat.DATE_SECONDS) {
+			throw error("unknown date encoding " + tag);
+		}
+		long z = readVarLong();
+		long s = lastSeconds + ((z >>> 1) ^ -(z & 1));
+		String zone = readString();
+		lastSeconds = s;
+		return new String[]{
+			TaskBinaryFormat.comparableDate(s),
+			TaskBinaryFormat.prettyDate(s, zone)
+		};
+	}
+
+	private void skipDate() throws IOException {
+		long tag = readVarLong();
+		if (tag == TaskBinaryFormat.DATE_STRINGS) {
+			skipString();
+			skipString();
+			return;
+		}
+		if (tag != TaskBinaryFormat.DATE_SECONDS) {
+			throw error("unknown date encoding " + tag);
+		}
+		long z = readVarLong();
+		lastSeconds += ((z >>> 1) ^ -(z & 1));
+		skipString();
+	}
+
+	private void skipString() throws IOException {
+		long tag = readVarLong();
+		if (tag == TaskBinaryFormat.STRING_INLINE) {
+			int len = readCount();
+			in.position(in.position() + len);
+		}
+		else if (tag >= TaskBinaryFormat.STRING_DICTIONARY &&
+				 tag - TaskBinaryFormat.STRING_DICTIONARY >= dictionary.length)
+		{
+			throw error("string " + (tag - TaskBinaryFormat.STRING_DICTIONARY) + " is not in the dictionary");
+		}
+	}
+
+	private String readString() throws IOException {
+		long tag = readVarLong();
+		if (tag == TaskBinaryFormat.STRING_NULL) { return null; }
+		if (tag == TaskBinaryFormat.STRING_INLINE) { return readBytes(); }
+		long i = tag - TaskBinaryFormat.STRING_DICTIONARY;
+		if (i >= dictionary.length) {
+			throw error("string " + i + " is not in the dictionary");
+		}
+		return dictionary[(int)i];
+	}
+
+	private String readBytes() throws IOException {
+		int len = readCount();
+		if (in.hasArray()) {
+			int p = in.position();
+			in.position(p + len);
+			return new String(in.array(), in.arrayOffset() + p, len, StandardCharsets.UTF_8);
+		}
+		if (str.length < len) { str = new byte[Math.max(len, 2*str.length)]; }
+		in.get(str, 0, len);
+		return new String(str, 0, len, StandardCharsets.UTF_8);
+	}
+
+	/** Reads a varint that counts something stored in the file. */
+	private int readCount() throws IOException {
+		long n = readVarLong();
+		if (n > in.remaining()) {
+			throw error("count " + n + " larger than the file");
+		}
+		return (int)n;
+	}
+
+	private long readVarLong() throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			v |= (long)(b & 0x7f) << shift;
+			if (b >= 0) { return v; }
+		}
+		throw error("varint too long");
+	}
+}
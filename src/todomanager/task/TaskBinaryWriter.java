@@ -0,0 +1,283 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @brief Writer of binary task files.
+ *
+ * See @ref TaskBinaryFormat for the layout of the file. The tasks are
+ * traversed twice: once to build the dictionary of strings, and once to
+ * write them.
+ * @author Lluís Alemany Puig
+ */
+class TaskBinaryWriter {
+
+	/** Where the tasks are written to. */
+	private final OutputStream out;
+	/** Position in the dictionary of every string in it. */
+	private final HashMap<String, Integer> dictionary;
+	/** Seconds of the last date written. */
+	private long lastSeconds;
+	/** Number of bytes written so far. */
+	private long written;
+
+	/**
+	 * @brief Constructor.
+	 * @param _out Where to write to. It should be buffered.
+	 */
+	TaskBinaryWriter(OutputStream _out) {
+		out = _out;
+		dictionary = new HashMap<>();
+		lastSeconds = 0;
+		written = 0;
+	}
+
+	/**
+	 * @brief Writes the contents of a whole task file.
+	 * @param generation Generation of the file.
+	 * @param baseGeneration Generation of the journal folded into the file.
+	 * @param baseRecords Number of records of that journal folded into
+	 * the file.
+	 * @param high High priority tasks.
+	 * @param med Medium priority tasks.
+	 * @param low Low priority tasks.
+	 * @throws IOException When the underlying stream fails, or the history
+	 * of a task could not be decoded.
+	 */
+	void writeTasks(
+		long generation, long baseGeneration, long baseRecords,
+		ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low
+	)
+	throws IOException
+	{
+		put(TaskBinaryFormat.MAGIC);
+		put(TaskBinaryFormat.VERSION);
+		writeFixedLong(generation);
+		writeFixedLong(baseGeneration);
+		writeVarLong(baseRecords);
+
+		// strings that appear more than once, most frequent first
+		HashMap<String, Integer> counts = new HashMap<>();
+		countTasks(low, counts);
+		countTasks(med, counts);
+		countTasks(high, counts);
+		ArrayList<Map.Entry<String, Integer>> repeated = new ArrayList<>();
+		counts.entrySet().forEach((e) -> {
+			if (e.getValue() > 1) { repeated.add(e); }
+		});
+		repeated.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+
+		writeVarLong(repeated.size());
+		for (Map.Entry<String, Integer> e : repeated) {
+			dictionary.put(e.getKey(), dictionary.size());
+			writeBytes(e.getKey());
+		}
+
+		long[] lowOffsets = writeTopLevelArray(low);
+		long[] medOffsets = writeTopLevelArray(med);
+		long[] highOffsets = writeTopLevelArray(high);
+
+		// index of the top-level tasks
+		long index = written;
+		writeOffsets(lowOffsets);
+		writeOffsets(medOffsets);
+		writeOffsets(highOffsets);
+		writeFixedLong(index);
+	}
+
+	// -------------------------------------------------------------------------
+	// Dictionary
+
+	private static void count(String s, HashMap<String, Integer> counts) {
+		if (s != null) { counts.merge(s, 1, Integer::sum); }
+	}
+
+	private static void countDate(String comp, String pretty, HashMap<String, Integer> counts) {
+		if (encodable(comp, pretty) != null) {
+			count(TaskBinaryFormat.zone(pretty), counts);
+		}
+		else {
+			count(comp, counts);
+			count(pretty, counts);
+		}
+	}
+
+	private static void countTasks(ArrayList<Task> ts, HashMap<String, Integer> counts) throws IOException {
+		for (Task t : ts) {
+			count(t.getName(), counts);
+			count(t.getDescription(), counts);
+			countDate(t.getCompDate(), t.getPrettyDate(), counts);
+			for (TaskState s : t.peekChanges()) {
+				countDate(s.getComparableDate(), s.getPrettyDate(), counts);
+				count(s.getReason(), counts);
+				count(s.getAuthor(), counts);
+				count(s.getPreviousTaskName(), counts);
+				count(s.getNextTaskName(), counts);
+				count(s.getPreviousTaskDescription(), counts);
+				count(s.getNextTaskDescription(), counts);
+			}
+			countTasks(t.getSubtasks(), counts);
+		}
+	}
+
+	/** The seconds of a date, if they give back exactly its two strings. */
+	private static Long encodable(String comp, String pretty) {
+		Long s = TaskBinaryFormat.seconds(comp);
+		String zone = TaskBinaryFormat.zone(pretty);
+		if (s == null || zone == null) { return null; }
+		if (!TaskBinaryFormat.comparableDate(s).equals(comp)) { return null; }
+		if (!TaskBinaryFormat.prettyDate(s, zone).equals(pretty)) { return null; }
+		return s;
+	}
+
+	// -------------------------------------------------------------------------
+	// Tasks
+
+	/**
+	 * Writes a list of top-level tasks. Each of them can be decoded on
+	 * its own: dates do not depend on the previous task.
+	 * @return Returns the offsets of the tasks in the file.
+	 */
+	private long[] writeTopLevelArray(ArrayList<Task> ts) throws IOException {
+		long[] offsets = new long[ts.size()];
+		writeVarLong(ts.size());
+		for (int i = 0; i < ts.size(); ++i) {
+			offsets[i] = written;
+			lastSeconds = 0;
+			writeTask(ts.get(i));
+		}
+		return offsets;
+	}
+
+	private void writeOffsets(long[] offsets) throws IOException {
+		writeFixedInt(offsets.length);
+		for (long o : offsets) { writeFixedLong(o); }
+	}
+
+	private void writeTaskArray(ArrayList<Task> ts) throws IOException {
+		writeVarLong(ts.size());
+		for (Task t : ts) { writeTask(t); }
+	}
+
+	private void writeTask(Task t) throws IOException {
+		writeString(t.getId());
+		writeString(t.getName());
+		writeString(t.getDescription());
+		writeDate(t.getCompDate(), t.getPrettyDate());
+
+		ArrayList<TaskState> changes = t.peekChanges();
+		writeVarLong(changes.size());
+		for (TaskState s : changes) { writeTaskState(s); }
+
+		writeTaskArray(t.getSubtasks());
+	}
+
+	private void writeTaskState(TaskState s) throws IOException {
+		put(s.getState().ordinal());
+		writeDate(s.getComparableDate(), s.getPrettyDate());
+		writeString(s.getReason());
+		writeString(s.getAuthor());
+		writeString(s.getPreviousTaskName());
+		writeString(s.getNextTaskName());
+		writeString(s.getPreviousTaskDescription());
+		writeString(s.getNextTaskDescription());
+	}
+
+	private void writeDate(String comp, String pretty) throws IOException {
+		Long s = encodable(comp, pretty);
+		if (s == null) {
+			writeVarLong(TaskBinaryFormat.DATE_STRINGS);
+			writeString(comp);
+			writeString(pretty);
+			return;
+		}
+		writeVarLong(TaskBinaryFormat.DATE_SECONDS);
+		long d = s - lastSeconds;
+		writeVarLong((d << 1) ^ (d >> 63));
+		writeString(TaskBinaryFormat.zone(pretty));
+		lastSeconds = s;
+	}
+
+	// -------------------------------------------------------------------------
+	// Values
+
+	private void writeString(String s) throws IOException {
+		if (s == null) {
+			writeVarLong(TaskBinaryFormat.STRING_NULL);
+			return;
+		}
+		Integer i = dictionary.get(s);
+		if (i != null) {
+			writeVarLong(TaskBinaryFormat.STRING_DICTIONARY + i);
+			return;
+		}
+		writeVarLong(TaskBinaryFormat.STRING_INLINE);
+		writeBytes(s);
+	}
+
+	private void writeBytes(String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(b.length);
+		put(b);
+	}
+
+	private void writeVarLong(long v) throws IOException {
+		while ((v & ~0x7fL) != 0) {
+			put((int)((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		put((int)v);
+	}
+
+	private void writeFixedLong(long v) throws IOException {
+		for (int i = 56; i >= 0; i -= 8) {
+			put((int)(v >>> i) & 0xff);
+		}
+	}
+
+	private void writeFixedInt(int v) throws IOException {
+		for (int i = 24; i >= 0; i -= 8) {
+			put((v >>> i) & 0xff);
+		}
+	}
+
+	private void put(int b) throws IOException {
+		out.write(b);
+		++written;
+	}
+
+	private void put(byte[] b) throws IOException {
+		out.write(b);
+		written += b.length;
+	}
+}
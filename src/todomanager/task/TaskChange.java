@@ -0,0 +1,52 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+/**
+ * @brief A state change of a task.
+ *
+ * Found through the dates of the changes (see
+ * @ref TaskManager.getChanges).
+ * @author Lluís Alemany Puig
+ */
+public final class TaskChange {
+	
+	private final Task task;
+	/** Position of the change in the list of changes of the task. */
+	private final int index;
+	
+	TaskChange(Task t, int i) {
+		task = t;
+		index = i;
+	}
+	
+	public Task getTask() { return task; }
+	/** Position of the change in @ref Task.getChanges. */
+	public int getIndex() { return index; }
+	/** The change (decodes the changes of the task if they were not yet). */
+	public TaskState getState() { return task.getChanges().get(index); }
+	
+}
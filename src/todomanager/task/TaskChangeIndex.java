@@ -0,0 +1,221 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * @brief Index of the state changes of the tasks by their date.
+ *
+ * Every change is kept under the key (s << 31) | id, where s is its
+ * date in seconds (see @ref seconds) and id is the id of its task, with
+ * the positions in the list of changes of the task of the changes made
+ * in that second. The changes between two dates are then a range of
+ * keys, found in logarithmic time, sorted by date.
+ *
+ * Only the keys are kept: the changes themselves are taken from the
+ * tasks when they are needed.
+ *
+ * The index can be read from any thread, and built from copies of the
+ * tasks in another thread than the one that modifies them, as the
+ * index of the words is (see @ref TaskTextIndex).
+ * @author Lluís Alemany Puig
+ */
+class TaskChangeIndex {
+	
+	/** Bits of the ids in the keys. */
+	private static final int ID_BITS = 31;
+	/** Largest number of seconds of a date. */
+	static final long MAX_SECONDS = (1L << 32) - 1;
+	
+	/** Positions of the changes of a task made within a second. */
+	private final TreeMap<Long, int[]> changes = new TreeMap<>();
+	
+	/**
+	 * Ids of the tasks added, changed or removed since the index started
+	 * to be built from copies (null when it is not being built).
+	 */
+	private HashSet<Integer> touched = null;
+	
+	/** The index is about to be built from copies (see @ref add(TaskCopy)). */
+	synchronized void building() { touched = new HashSet<>(); }
+	/** All the copies have been added. */
+	synchronized void built() { touched = null; }
+	
+	/** Adds the changes of a task (none if they cannot be decoded). */
+	synchronized void add(Task t) {
+		if (touched != null) { touched.add(t.getNumericId()); }
+		add(t.getNumericId(), changesOf(t));
+	}
+	
+	/**
+	 * Adds a copied task while the index is being built, unless the task
+	 * was added, changed or removed since the copy was made.
+	 */
+	void add(TaskCopy c) {
+		// decoded without holding the lock
+		List<TaskState> cs = c.changes();
+		synchronized (this) {
+			if (touched != null && touched.contains(c.id)) { return; }
+			add(c.id, cs);
+		}
+	}
+	
+	/** A change was added at position @e i of the changes of a task. */
+	synchronized void added(Task t, String date, int i) {
+		if (touched == null) {
+			add(t.getNumericId(), date, i);
+			return;
+		}
+		// its other changes may not be indexed yet
+		remove(t);
+		add(t);
+	}
+	
+	/** Removes the changes of a task. */
+	synchronized void remove(Task t) {
+		if (touched != null) { touched.add(t.getNumericId()); }
+		for (TaskState s : changesOf(t)) {
+			changes.remove(key(seconds(s.getComparableDate(), false), t.getNumericId()));
+		}
+	}
+	
+	private void add(int id, List<TaskState> c) {
+		for (int i = 0; i < c.size(); ++i) { add(id, c.get(i).getComparableDate(), i); }
+	}
+	
+	/** Adds the change at position @e i of the task with id @e id. */
+	private void add(int id, String date, int i) {
+		long k = key(seconds(date, false), id);
+		int[] is = changes.get(k);
+		if (is == null) {
+			changes.put(k, new int[]{i});
+		}
+		else {
+			int[] more = new int[is.length + 1];
+			System.arraycopy(is, 0, more, 0, is.length);
+			more[is.length] = i;
+			changes.put(k, more);
+		}
+	}
+	
+	private static List<TaskState> changesOf(Task t) {
+		try {
+			return t.peekChanges();
+		}
+		catch (IOException ex) {
+			// the task is left out of the index
+			return Collections.emptyList();
+		}
+	}
+	
+	/**
+	 * @brief The changes made between two dates.
+	 * @param from First second (see @ref seconds).
+	 * @param to Last second.
+	 * @return Returns a copy of the entries: the id of their task is
+	 * in the key (see @ref id), their positions in the value.
+	 */
+	synchronized NavigableMap<Long, int[]> range(long from, long to) {
+		if (from > to) { return new TreeMap<>(); }
+		return new TreeMap<>(changes.subMap(key(from, 0), true, key(to, Integer.MAX_VALUE), true));
+	}
+	
+	/** The ids of the tasks changed between two seconds (see @ref range). */
+	synchronized HashSet<Integer> tasks(long from, long to) {
+		HashSet<Integer> ids = new HashSet<>();
+		if (from > to) { return ids; }
+		for (long k : changes.subMap(key(from, 0), true, key(to, Integer.MAX_VALUE), true).keySet()) {
+			ids.add(id(k));
+		}
+		return ids;
+	}
+	
+	/** The id of the task of an entry. */
+	static int id(long key) { return (int)(key & ((1L << ID_BITS) - 1)); }
+	
+	private static long key(long seconds, int id) { return (seconds << ID_BITS) | id; }
+	
+	/**
+	 * @brief The seconds of a date.
+	 *
+	 * Dates are written like year.month.day.hour.minute.second, and may
+	 * stop at any field: 2019.09 is September 2019. The seconds are
+	 * counted from 1970 as if the dates were in UTC, so that they are
+	 * in the same order as the dates.
+	 * @param date Date, or the first fields of a date.
+	 * @param last Return the last second of the date instead of the
+	 * first one.
+	 * @return Returns the seconds, between 0 and @ref MAX_SECONDS, or -1
+	 * if the date is not valid.
+	 */
+	static long seconds(String date, boolean last) {
+		// year, month, day, hour, minute, second
+		long[] f = {0, 1, 1, 0, 0, 0};
+		int n = 0;
+		int i = 0;
+		while (i < date.length() && n < f.length) {
+			int j = i;
+			long v = 0;
+			while (j < date.length() && j - i < 9 && Character.isDigit(date.charAt(j))) {
+				v = v*10 + (date.charAt(j) - '0');
+				++j;
+			}
+			if (j == i) { return -1; }
+			f[n++] = v;
+			i = j;
+			if (i < date.length()) {
+				if (date.charAt(i) != '.' || i + 1 == date.length()) { return -1; }
+				++i;
+			}
+		}
+		if (n == 0 || i < date.length()) { return -1; }
+		if (last) { ++f[n - 1]; }
+		if (f[1] > 12) {
+			f[0] += (f[1] - 1)/12;
+			f[1] = (f[1] - 1)%12 + 1;
+		}
+		long s = (daysFromCivil(f[0], f[1]) + f[2] - 1)*86400 + f[3]*3600 + f[4]*60 + f[5];
+		if (last) { --s; }
+		return Math.min(Math.max(s, 0), MAX_SECONDS);
+	}
+	
+	/** Days from 1970.01.01 to the first day of a month. */
+	private static long daysFromCivil(long y, long m) {
+		if (m <= 2) { --y; }
+		long era = (y >= 0 ? y : y - 399)/400;
+		long yoe = y - era*400;
+		long doy = (153*(m + (m > 2 ? -3 : 9)) + 2)/5;
+		long doe = yoe*365 + yoe/4 - yoe/100 + doy;
+		return era*146097 + doe - 719468;
+	}
+	
+}
@@ -0,0 +1,73 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import todomanager.util.Logger;
+
+/**
+ * @brief What the indexes need of a task, copied from it.
+ *
+ * Copies are made in the thread that modifies the tasks and indexed in
+ * another one (see @ref TaskTextIndex.building and
+ * @ref TaskChangeIndex.building), so that building an index, which
+ * decodes the histories of the tasks, does not stop the user.
+ * @author Lluís Alemany Puig
+ */
+final class TaskCopy {
+	final int id;
+	final String name;
+	final String description;
+	/** The state changes, or null if they are in @ref history. */
+	private final ArrayList<TaskState> changes;
+	/** The encoded state changes (decoding them is safe anywhere). */
+	private final TaskHistory history;
+
+	TaskCopy(Task t) {
+		id = t.getNumericId();
+		name = t.getName();
+		description = t.getDescription();
+		history = t.encodedHistory();
+		changes = (history == null ? new ArrayList<>(t.getChanges()) : null);
+	}
+
+	/** The state changes of the task (none if they cannot be decoded). */
+	List<TaskState> changes() {
+		if (changes != null) { return changes; }
+		try {
+			return history.decode();
+		}
+		catch (IOException ex) {
+			// the task is indexed without its changes
+			Logger log = Logger.getInstance();
+			log.error("Could not decode the history of task '" + Task.formatId(id) + "'.");
+			log.error("    " + ex.getMessage());
+			return new ArrayList<>();
+		}
+	}
+}
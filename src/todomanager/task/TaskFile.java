@@ -0,0 +1,312 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import todomanager.util.AtomicFile;
+
+/**
+ * @brief Contents of a task file, in any format.
+ *
+ * Reading detects the format of the file from its first bytes, and
+ * whether it is compressed (with gzip). Writing replaces the file
+ * atomically. Compressed files are compressed and decompressed on the
+ * fly: there is never an uncompressed copy on disk.
+ * @author Lluís Alemany Puig
+ */
+class TaskFile {
+
+	/** Level of compression of files with unknown level. */
+	static final int DEFAULT_COMPRESSION = 6;
+	/** Size of the buffers of the (de)compressor. */
+	private static final int GZIP_BUFFER_SIZE = 64*1024;
+	/** Files of at least this size are read in parallel, if there are several cores. */
+	private static final long PARALLEL_MIN_SIZE = 1024*1024;
+	/** Smallest group of tasks decoded by one fork/join task. */
+	private static final int PARALLEL_MIN_SPLIT = 64*1024;
+	/** Largest array of bytes that can be allocated. */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	/** Format of the file. */
+	TaskFileFormat format = TaskFileFormat.JSON;
+	/** Level of compression of the file (0 if it is not compressed). */
+	int compression = 0;
+	/** High priority tasks. */
+	final ArrayList<Task> high = new ArrayList<>();
+	/** Medium priority tasks. */
+	final ArrayList<Task> med = new ArrayList<>();
+	/** Low priority tasks. */
+	final ArrayList<Task> low = new ArrayList<>();
+	/** Largest task id in the file (-1 if there are no tasks). */
+	int maximumID = -1;
+	/** Generation of the file. */
+	long generation = 0;
+	/** Generation of the journal folded into the file. */
+	long baseGeneration = 0;
+	/** Number of records of that journal folded into the file. */
+	long baseRecords = 0;
+
+	/**
+	 * @brief Reads a task file.
+	 * @param filename The task file.
+	 * @return Returns the contents of the file.
+	 * @throws IOException When the file could not be read or is malformed.
+	 */
+	static TaskFile read(String filename) throws IOException {
+		TaskFile f = new TaskFile();
+		Path path = Paths.get(filename);
+		long size = Files.size(path);
+		// large files are decoded by all cores
+		boolean parallel =
+			ForkJoinPool.getCommonPoolParallelism() > 1 &&
+			size >= PARALLEL_MIN_SIZE;
+
+		try (InputStream file = Files.newInputStream(path)) {
+			PushbackInputStream in = new PushbackInputStream(file, TaskBinaryFormat.MAGIC.length);
+			byte[] head = new byte[TaskBinaryFormat.MAGIC.length];
+			int n = readHead(in, head);
+
+			if (n >= 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) {
+				// the task file is inside the compressed stream
+				f.compression = DEFAULT_COMPRESSION;
+				try (InputStream gz = new GZIPInputStream(in, GZIP_BUFFER_SIZE)) {
+					PushbackInputStream contents = new PushbackInputStream(gz, TaskBinaryFormat.MAGIC.length);
+					f.readContents(contents, gzipSize(path), parallel);
+				}
+			}
+			else {
+				f.readContents(in, size, parallel);
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * @brief Size of the groups of tasks decoded in parallel.
+	 *
+	 * Every core gets several groups so that a slow group (e.g., one
+	 * with a large history) does not leave the others idle.
+	 * @param length Size of the decompressed file.
+	 */
+	private static int splitSize(long length) {
+		long size = length/(8L*ForkJoinPool.getCommonPoolParallelism());
+		return (int)Math.max(PARALLEL_MIN_SPLIT, Math.min(size, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * @brief Reads the contents of a (decompressed) task file.
+	 *
+	 * Binary files, and JSON files read in parallel, are read into
+	 * memory first, in an array of the size of the contents. JSON files
+	 * too large for an array are read sequentially from the stream.
+	 * @param in The contents.
+	 * @param size Expected size of the contents. It is only a hint: the
+	 * contents may be shorter or longer.
+	 * @param parallel Decode the tasks with fork/join tasks.
+	 */
+	private void readContents(PushbackInputStream in, long size, boolean parallel) throws IOException {
+		byte[] head = new byte[TaskBinaryFormat.MAGIC.length];
+		int n = readHead(in, head);
+		if (TaskBinaryFormat.isBinary(head, n)) {
+			// binary files are decoded from memory
+			format = TaskFileFormat.Binary;
+			ByteBuffer data = readAll(in, size);
+			if (!atEnd(in)) {
+				throw new IOException("The binary task file is too large to be read into memory");
+			}
+			TaskBinaryReader reader = new TaskBinaryReader(data);
+			reader.readTasks(high, med, low, parallel ? splitSize(data.limit()) : 0);
+			maximumID = reader.getMaximumID();
+			generation = reader.getGeneration();
+			baseGeneration = reader.getBaseGeneration();
+			baseRecords = reader.getBaseRecords();
+		}
+		else {
+			format = TaskFileFormat.JSON;
+			TaskReader reader;
+			if (parallel && size <= MAX_ARRAY_SIZE) {
+				// the tasks are delimited before being decoded
+				ByteBuffer data = readAll(in, size);
+				if (atEnd(in)) {
+					reader = new TaskReader(data.array(), 0, data.limit());
+					reader.setSplitSize(splitSize(data.limit()));
+				}
+				else {
+					// longer than expected, and too large for an array
+					InputStream read = new ByteArrayInputStream(data.array(), 0, data.limit());
+					reader = new TaskReader(new SequenceInputStream(read, in));
+				}
+			}
+			else {
+				reader = new TaskReader(in);
+			}
+			reader.readTasks(high, med, low);
+			maximumID = reader.getMaximumID();
+			generation = reader.getGeneration();
+			baseGeneration = reader.getBaseGeneration();
+			baseRecords = reader.getBaseRecords();
+		}
+	}
+
+	/** Reads the first bytes of a stream, and puts them back. */
+	private static int readHead(PushbackInputStream in, byte[] head) throws IOException {
+		int n = 0, r;
+		while (n < head.length && (r = in.read(head, n, head.length - n)) != -1) {
+			n += r;
+		}
+		in.unread(head, 0, n);
+		return n;
+	}
+
+	/** Is a stream at its end? */
+	private static boolean atEnd(PushbackInputStream in) throws IOException {
+		int b = in.read();
+		if (b == -1) { return true; }
+		in.unread(b);
+		return false;
+	}
+
+	/**
+	 * @brief Reads the rest of a stream into memory.
+	 *
+	 * The bytes are read into an array of @e size bytes, which grows only
+	 * if the stream is longer. Reading stops when the array cannot grow
+	 * any more: then the stream is not at its end (see @ref atEnd).
+	 * @param in The stream.
+	 * @param size Expected number of bytes.
+	 * @return Returns the bytes read, from position 0 to the limit of the
+	 * buffer.
+	 */
+	private static ByteBuffer readAll(PushbackInputStream in, long size) throws IOException {
+		byte[] b = new byte[(int) Math.max(Math.min(size, MAX_ARRAY_SIZE), 1)];
+		int n = 0;
+		while (true) {
+			if (n == b.length) {
+				if (atEnd(in) || b.length == MAX_ARRAY_SIZE) { break; }
+				// the size was wrong
+				b = Arrays.copyOf(b, (int) Math.min(2L*b.length, MAX_ARRAY_SIZE));
+			}
+			int r = in.read(b, n, b.length - n);
+			if (r == -1) { break; }
+			n += r;
+		}
+		return ByteBuffer.wrap(b, 0, n);
+	}
+
+	/**
+	 * @brief Size of the contents of a file compressed with gzip.
+	 *
+	 * Gzip records it at the end of the file, modulo 2^32.
+	 * @return Returns the size, or 0 if the file is too short.
+	 */
+	private static long gzipSize(Path path) throws IOException {
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (ch.size() < 18) { return 0; }
+			ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (b.hasRemaining() && ch.read(b, ch.size() - 4 + b.position()) != -1) {}
+			return b.hasRemaining() ? 0 : b.getInt(0) & 0xffffffffL;
+		}
+	}
+
+	/**
+	 * @brief Writes a task file.
+	 *
+	 * The file is replaced only once it has been completely written.
+	 * @param filename The task file.
+	 * @param format Format of the file.
+	 * @param compression Level of compression (1 to 9), or 0 to not
+	 * compress the file.
+	 * @param generation Generation of the file.
+	 * @param baseGeneration Generation of the journal folded into the file.
+	 * @param baseRecords Number of records of that journal folded into
+	 * the file (0 if none).
+	 * @param high High priority tasks.
+	 * @param med Medium priority tasks.
+	 * @param low Low priority tasks.
+	 * @return Returns the number of bytes written.
+	 * @throws IOException When the file could not be written. In this case
+	 * the file was not modified.
+	 */
+	static long write(
+		String filename, TaskFileFormat format, int compression,
+		long generation, long baseGeneration, long baseRecords,
+		ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low
+	)
+	throws IOException
+	{
+		AtomicFile file = new AtomicFile(filename);
+		OutputStream out = file.startWrite();
+		try {
+			GZIPOutputStream gz = null;
+			OutputStream dest = out;
+			if (compression > 0) {
+				gz = new GZIPOutputStream(out, GZIP_BUFFER_SIZE) {
+					{ def.setLevel(compression); }
+				};
+				dest = gz;
+			}
+
+			if (format == TaskFileFormat.Binary) {
+				TaskBinaryWriter bw = new TaskBinaryWriter(dest);
+				bw.writeTasks(generation, baseGeneration, baseRecords, high, med, low);
+			}
+			else {
+				Writer writer = new OutputStreamWriter(dest, StandardCharsets.UTF_8);
+				TaskWriter tw = new TaskWriter(writer);
+				tw.writeTasks(generation, baseGeneration, baseRecords, high, med, low);
+				writer.flush();
+			}
+			if (gz != null) { gz.finish(); }
+			file.finishWrite(out);
+		}
+		catch (IOException ex) {
+			file.failWrite(out);
+			throw ex;
+		}
+		return file.getBytesWritten();
+	}
+}
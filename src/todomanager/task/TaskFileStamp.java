@@ -0,0 +1,94 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * @brief What a task file and its journal look like on disk.
+ *
+ * The identity of the files (when the file system has one), their
+ * sizes and their modification times. A task file was changed by some
+ * other program when its stamp differs from the one taken after the
+ * Task Manager last read or wrote it.
+ * @author Lluís Alemany Puig
+ */
+final class TaskFileStamp {
+	private final Object fileKey;
+	private final long size;
+	private final long modified;
+	private final Object journalKey;
+	private final long journalSize;
+	private final long journalModified;
+
+	private TaskFileStamp(BasicFileAttributes file, BasicFileAttributes journal) {
+		fileKey = (file == null ? null : file.fileKey());
+		size = (file == null ? -1 : file.size());
+		modified = (file == null ? 0 : file.lastModifiedTime().toMillis());
+		journalKey = (journal == null ? null : journal.fileKey());
+		journalSize = (journal == null ? -1 : journal.size());
+		journalModified = (journal == null ? 0 : journal.lastModifiedTime().toMillis());
+	}
+
+	/** The current stamp of a task file and its journal. */
+	static TaskFileStamp of(String tasksFile) {
+		return new TaskFileStamp(
+			attributes(Paths.get(tasksFile)),
+			attributes(TaskJournal.journalPath(tasksFile))
+		);
+	}
+
+	/** Attributes of a file (null if it does not exist or cannot be read). */
+	private static BasicFileAttributes attributes(Path p) {
+		try {
+			return Files.readAttributes(p, BasicFileAttributes.class);
+		}
+		catch (IOException ex) {
+			// e.g., the file does not exist
+			return null;
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TaskFileStamp)) { return false; }
+		TaskFileStamp s = (TaskFileStamp) o;
+		return
+			Objects.equals(fileKey, s.fileKey) && size == s.size && modified == s.modified &&
+			Objects.equals(journalKey, s.journalKey) && journalSize == s.journalSize &&
+			journalModified == s.journalModified;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(fileKey, size, modified, journalKey, journalSize, journalModified);
+	}
+}
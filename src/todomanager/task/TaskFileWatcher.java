@@ -0,0 +1,162 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import todomanager.util.Logger;
+
+/**
+ * @brief Watches the task file for changes made by other programs.
+ *
+ * A thread waits for events of the directory of the task file (with a
+ * WatchService). Once the task file or its journal have been modified
+ * and no event has arrived for a short while (programs may write a
+ * file in several steps), the file is read with
+ * TaskManager::readChangesOnDisk in the thread of the watcher and the
+ * listener is notified. Changes made by the Task Manager itself are
+ * ignored.
+ * @author Lluís Alemany Puig
+ */
+public class TaskFileWatcher {
+	
+	/** Notified, from the thread of the watcher, of new contents of the task file. */
+	public interface Listener {
+		void changedOnDisk(TaskReload r);
+	}
+	
+	/** Time without events before reading the task file (in milliseconds). */
+	private static final long QUIET_MILLIS = 500;
+	
+	private final Listener listener;
+	/** Service of the directory watched (null if none). */
+	private WatchService service = null;
+	
+	public TaskFileWatcher(Listener l) {
+		listener = l;
+	}
+	
+	/**
+	 * @brief Starts watching a task file.
+	 *
+	 * Stops watching the previous one, if any.
+	 * @param tasksFile The task file.
+	 */
+	public synchronized void watch(String tasksFile) {
+		stop();
+		Path file = Paths.get(tasksFile).toAbsolutePath();
+		Path journal = TaskJournal.journalPath(file.toString()).getFileName();
+		try {
+			service = FileSystems.getDefault().newWatchService();
+			file.getParent().register(
+				service,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE
+			);
+		}
+		catch (IOException | UnsupportedOperationException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			Logger.getInstance().error("Could not watch file '" + tasksFile + "'.");
+			stop();
+			return;
+		}
+		
+		final WatchService ws = service;
+		final Path name = file.getFileName();
+		Thread th = new Thread(() -> { run(ws, name, journal); }, "task-file-watcher");
+		th.setDaemon(true);
+		th.start();
+		Logger.getInstance().info("Watching file '" + file + "' for changes.");
+	}
+	
+	/** Stops watching the task file. */
+	public synchronized void stop() {
+		if (service == null) { return; }
+		try {
+			service.close();
+		}
+		catch (IOException ex) {
+			// the thread stops anyway
+		}
+		service = null;
+	}
+	
+	/**
+	 * @brief Body of the thread of the watcher.
+	 * @param ws Service of the directory of the task file.
+	 * @param name Name of the task file.
+	 * @param journal Name of its journal.
+	 */
+	private void run(WatchService ws, Path name, Path journal) {
+		try {
+			while (true) {
+				// wait for a change, and then until changes stop
+				boolean changed = events(ws.take(), name, journal);
+				WatchKey key;
+				while ((key = ws.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					changed |= events(key, name, journal);
+				}
+				if (!changed) { continue; }
+				
+				TaskReload r = TaskManager.getInstance().readChangesOnDisk();
+				if (r != null) { listener.changedOnDisk(r); }
+			}
+		}
+		catch (ClosedWatchServiceException ex) {
+			// stopped
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/** Do the events of a key concern the task file? */
+	private static boolean events(WatchKey key, Path name, Path journal) {
+		boolean changed = false;
+		for (WatchEvent<?> e : key.pollEvents()) {
+			if (e.kind() == StandardWatchEventKinds.OVERFLOW) {
+				changed = true;
+			}
+			else {
+				Path p = (Path) e.context();
+				changed |= p.equals(name) || p.equals(journal);
+			}
+		}
+		key.reset();
+		return changed;
+	}
+}
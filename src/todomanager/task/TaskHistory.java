@@ -0,0 +1,100 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * @brief State changes of a task kept encoded until they are needed.
+ *
+ * When reading a task file only the first state change and the current
+ * state of every task are decoded. The rest of the history is kept in
+ * its encoded form (the bytes of the file) and decoded only when the
+ * whole list of changes is requested (see Task.getChanges).
+ * @author Lluís Alemany Puig
+ */
+abstract class TaskHistory {
+
+	/** Histories of at most this many changes are decoded when read. */
+	static final int EAGER_SIZE = 3;
+
+	/** Number of state changes. */
+	abstract int size();
+
+	/**
+	 * @brief Decodes the state changes.
+	 * @return Returns a new list with all the state changes.
+	 * @throws IOException When they could not be decoded.
+	 */
+	abstract ArrayList<TaskState> decode() throws IOException;
+
+	/** State changes of a JSON task file: the bytes of the array of changes. */
+	static class JSON extends TaskHistory {
+		private final byte[] bytes;
+		private final int size;
+
+		JSON(byte[] _bytes, int _size) {
+			bytes = _bytes;
+			size = _size;
+		}
+
+		@Override
+		int size() { return size; }
+
+		@Override
+		ArrayList<TaskState> decode() throws IOException {
+			ArrayList<TaskState> changes = new ArrayList<>(size);
+			new TaskReader(bytes, 0).readChangeArray(changes);
+			return changes;
+		}
+	}
+
+	/** State changes of a binary task file: where they are in the file. */
+	static class Binary extends TaskHistory {
+		/** Reader of the file (only its header is used). */
+		private final TaskBinaryReader file;
+		private final int offset;
+		private final int size;
+		/** Seconds of the date before the first change. */
+		private final long seconds;
+
+		Binary(TaskBinaryReader _file, int _offset, int _size, long _seconds) {
+			file = _file;
+			offset = _offset;
+			size = _size;
+			seconds = _seconds;
+		}
+
+		@Override
+		int size() { return size; }
+
+		@Override
+		ArrayList<TaskState> decode() throws IOException {
+			return file.duplicate().readChangesAt(offset, size, seconds);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+/**
+ * @brief Map from task ids to tasks.
+ *
+ * See @ref IntKeyTable for how the entries are stored.
+ * @author Lluís Alemany Puig
+ */
+class TaskIndex extends IntKeyTable<Task[]> {
+
+	TaskIndex() { super(16); }
+
+	@Override
+	Task[] newValues(int length) { return new Task[length]; }
+
+	@Override
+	void copy(Task[] from, int i, Task[] to, int j) { to[j] = from[i]; }
+
+	int size() { return size; }
+
+	/** The task with an id, or null. */
+	Task get(int id) {
+		int i = find(id);
+		return i == -1 ? null : values[i];
+	}
+
+	/** Maps an id to a task, replacing the task it was mapped to. */
+	void put(int id, Task t) {
+		int i = insert(id);
+		values[i] = t;
+	}
+
+	/**
+	 * @brief Removes the entry of an id, if it is mapped to a task.
+	 * @return Returns false if the id was not mapped to that task.
+	 */
+	boolean remove(int id, Task t) {
+		int i = find(id);
+		if (i == -1 || values[i] != t) { return false; }
+		removeAt(i);
+		return true;
+	}
+}
@@ -0,0 +1,642 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import todomanager.util.AtomicFile;
+import todomanager.util.BackupManager;
+import todomanager.util.Logger;
+
+/**
+ * @brief Append-only journal of the changes made to a task file.
+ *
+ * Every modification of the tasks is recorded as a single line (a JSON
+ * object) in a file next to the task file. Saving appends the records
+ * made since the last save, instead of rewriting the whole task file.
+ *
+ * The journal starts with a header that contains the generation of the
+ * task file it applies to. Whenever the task file is completely
+ * rewritten its generation changes, so that a stale journal is never
+ * replayed over a task file that already contains its changes.
+ *
+ * When the journal grows too large it is folded into a new task file in
+ * the background (see @ref compact), so that reading a task file never
+ * has to replay an arbitrarily long journal.
+ * @author Lluís Alemany Puig
+ */
+class TaskJournal {
+
+	/** Task file this journal belongs to. */
+	private final String tasksFile;
+	/** Path to the journal file. */
+	private final Path file;
+	/** Generation of the task file this journal applies to. */
+	private long generation;
+	/** Records made and not yet written into the journal file. */
+	private final ArrayList<String> pending;
+	/** Number of records in the journal file (header excluded). */
+	private long records;
+	/** Size, in bytes, of the journal file. */
+	private long bytes;
+	/** Largest id of the tasks created in the replayed records. */
+	private int maximumID = -1;
+	/** Arguments of the switch to a new generation left to @ref finishReplay
+	 * (null if none). */
+	private long[] pendingRebase = null;
+
+	/**
+	 * @brief Constructor.
+	 * @param _tasksFile The task file.
+	 * @param _generation Generation of the task file.
+	 * @param _records Records already in the journal file.
+	 * @param _bytes Size of the journal file.
+	 */
+	TaskJournal(String _tasksFile, long _generation, long _records, long _bytes) {
+		tasksFile = _tasksFile;
+		file = journalPath(_tasksFile);
+		generation = _generation;
+		pending = new ArrayList<>();
+		records = _records;
+		bytes = _bytes;
+	}
+
+	/** The name of the journal of a task file. */
+	static Path journalPath(String tasksFile) {
+		return Paths.get(tasksFile + ".journal");
+	}
+
+	String getTaskFile() { return tasksFile; }
+	synchronized long getGeneration() { return generation; }
+	synchronized long getRecords() { return records; }
+	synchronized long getBytes() { return bytes; }
+	synchronized boolean hasPending() { return !pending.isEmpty(); }
+	/** Largest id of the tasks created in the replayed records (-1 if none). */
+	int getMaximumID() { return maximumID; }
+
+	// -------------------------------------------------------------------------
+	// Records
+
+	private synchronized void add(JSONObject o) {
+		pending.add(o.toString());
+	}
+
+	private static void putState(JSONObject o, TaskState s) {
+		o.put("comparable_date", s.getComparableDate());
+		o.put("pretty_date", s.getPrettyDate());
+		o.put("reason", s.getReason());
+		o.put("state", s.getState().name());
+		o.put("author", s.getAuthor());
+		o.put("pTN", s.getPreviousTaskName());
+		o.put("nTN", s.getNextTaskName());
+		o.put("pTD", s.getPreviousTaskDescription());
+		o.put("nTD", s.getNextTaskDescription());
+	}
+
+	private static String getStringOrNull(JSONObject o, String k) {
+		if (o.has(k)) { return o.getString(k); }
+		return null;
+	}
+
+	private static TaskState getState(JSONObject o) {
+		return new TaskState(
+			getStringOrNull(o, "author"),
+			getStringOrNull(o, "comparable_date"),
+			getStringOrNull(o, "pretty_date"),
+			getStringOrNull(o, "reason"),
+			getStringOrNull(o, "pTN"),
+			getStringOrNull(o, "nTN"),
+			getStringOrNull(o, "pTD"),
+			getStringOrNull(o, "nTD"),
+			TaskStateEnum.fromString(o.getString("state"))
+		);
+	}
+
+	/** A task was created (but not placed anywhere yet). */
+	void taskCreated(Task t) {
+		JSONObject o = new JSONObject();
+		o.put("op", "new");
+		o.put("id", t.getId());
+		o.put("author", t.getCreator());
+		o.put("name", t.getName());
+		o.put("description", t.getDescription());
+		o.put("comparable_date", t.getCompDate());
+		o.put("pretty_date", t.getPrettyDate());
+		add(o);
+	}
+
+	/** A state change was appended to a task. */
+	void stateAdded(Task t, TaskState s) {
+		JSONObject o = new JSONObject();
+		o.put("op", "state");
+		o.put("id", t.getId());
+		putState(o, s);
+		add(o);
+	}
+
+	/** A task was inserted at position @e i of a priority list. */
+	void taskInserted(String prior, int i, Task t) {
+		JSONObject o = new JSONObject();
+		o.put("op", "insert");
+		o.put("prior", prior);
+		o.put("index", i);
+		o.put("id", t.getId());
+		add(o);
+	}
+
+	/** A task was removed from a priority list. */
+	void taskRemoved(String prior, String id) {
+		JSONObject o = new JSONObject();
+		o.put("op", "remove");
+		o.put("prior", prior);
+		o.put("id", id);
+		add(o);
+	}
+
+	/** A subtask was added (at the front) to a task. */
+	void subtaskAdded(Task parent, Task t) {
+		JSONObject o = new JSONObject();
+		o.put("op", "add_subtask");
+		o.put("parent", parent.getId());
+		o.put("id", t.getId());
+		add(o);
+	}
+
+	/** A subtask was deleted from a task. */
+	void subtaskDeleted(Task parent, String id) {
+		JSONObject o = new JSONObject();
+		o.put("op", "delete_subtask");
+		o.put("parent", parent.getId());
+		o.put("id", id);
+		add(o);
+	}
+
+	/** A subtask was moved within its parent's list of subtasks. */
+	void subtaskMoved(Task parent, String id, int incr) {
+		JSONObject o = new JSONObject();
+		o.put("op", "move_subtask");
+		o.put("parent", parent.getId());
+		o.put("id", id);
+		o.put("incr", incr);
+		add(o);
+	}
+
+	// -------------------------------------------------------------------------
+	// Disk
+
+	/**
+	 * @brief Appends the pending records to the journal file.
+	 *
+	 * The records are on disk when this method returns.
+	 * @return Returns the number of bytes appended.
+	 * @throws IOException When the journal could not be written. The
+	 * pending records are kept in this case.
+	 */
+	synchronized long append() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		if (bytes == 0) {
+			JSONObject header = new JSONObject();
+			header.put("op", "header");
+			header.put("generation", generation);
+			sb.append(header.toString()).append('\n');
+		}
+		pending.forEach((r) -> { sb.append(r).append('\n'); });
+		ByteBuffer data = StandardCharsets.UTF_8.encode(sb.toString());
+		long n = data.remaining();
+
+		try (FileChannel ch = FileChannel.open(
+				file,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+		{
+			// drop whatever a failed append may have left behind
+			if (ch.size() != bytes) { ch.truncate(bytes); }
+			while (data.hasRemaining()) { ch.write(data); }
+			ch.force(false);
+		}
+
+		records += pending.size();
+		bytes += n;
+		pending.clear();
+		return n;
+	}
+
+	/** Deletes the journal file of a task file, if any. */
+	static void delete(String tasksFile) throws IOException {
+		Files.deleteIfExists(journalPath(tasksFile));
+	}
+
+	private static void indexTasks(ArrayList<Task> ts, TaskIndex ids) {
+		ts.forEach((t) -> {
+			ids.put(t.getNumericId(), t);
+			indexTasks(t.getSubtasks(), ids);
+		});
+	}
+
+	private static ArrayList<Task> priorList(
+		String prior, ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low
+	)
+	{
+		switch (prior) {
+			case "high": return high;
+			case "med": return med;
+			case "low": return low;
+		}
+		throw new JSONException("unknown priority '" + prior + "'");
+	}
+
+	private static Task taskOf(TaskIndex ids, JSONObject o, String k) {
+		int id = Task.parseId(o.getString(k));
+		Task t = (id == -1 ? null : ids.get(id));
+		if (t == null) { throw new JSONException("unknown task '" + o.getString(k) + "'"); }
+		return t;
+	}
+
+	/** Applies a record. Returns the id of the task created, or -1. */
+	private static int apply(
+		JSONObject o,
+		ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low,
+		TaskIndex ids
+	)
+	{
+		switch (o.getString("op")) {
+			case "new": {
+				Task t = new Task(
+					getStringOrNull(o, "author"), o.getString("id"),
+					getStringOrNull(o, "name"), getStringOrNull(o, "description"),
+					getStringOrNull(o, "comparable_date"), getStringOrNull(o, "pretty_date")
+				);
+				ids.put(t.getNumericId(), t);
+				return t.getNumericId();
+			}
+			case "state":
+				taskOf(ids, o, "id").replayState(getState(o));
+				break;
+			case "insert": {
+				Task t = taskOf(ids, o, "id");
+				if (t.getParentTask() != null) { t.getParentTask().removeSubtask(t.getNumericId()); }
+				priorList(o.getString("prior"), high, med, low).add(o.getInt("index"), t);
+				break;
+			}
+			case "remove": {
+				ArrayList<Task> ts = priorList(o.getString("prior"), high, med, low);
+				ts.remove(taskOf(ids, o, "id"));
+				break;
+			}
+			case "add_subtask":
+				taskOf(ids, o, "parent").replaySubtask(taskOf(ids, o, "id"));
+				break;
+			case "delete_subtask":
+				taskOf(ids, o, "parent").removeSubtask(Task.parseId(o.getString("id")));
+				break;
+			case "move_subtask":
+				taskOf(ids, o, "parent").shiftSubtask(Task.parseId(o.getString("id")), o.getInt("incr"));
+				break;
+			default:
+				throw new JSONException("unknown operation '" + o.getString("op") + "'");
+		}
+		return -1;
+	}
+
+	/** Outcome of reading the records of a journal file. */
+	private static class Scan {
+		/** Records skipped (not applied). */
+		long skipped = 0;
+		/** Bytes of the records skipped. */
+		long skippedBytes = 0;
+		/** Records applied. */
+		long applied = 0;
+		/** Bytes of the records skipped and applied. */
+		long bytes = 0;
+		/** Largest id of the tasks created in the records applied. */
+		int maximumID = -1;
+	}
+
+	/**
+	 * @brief Reads the records that follow the header of a journal file.
+	 *
+	 * The first @e skip records are only counted, and at most @e limit of
+	 * the following ones are applied. A damaged record ends the reading.
+	 */
+	private static Scan scan(
+		BufferedReader reader, Path path, long skip, long limit,
+		ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low
+	)
+	throws IOException
+	{
+		TaskIndex ids = new TaskIndex();
+		indexTasks(high, ids);
+		indexTasks(med, ids);
+		indexTasks(low, ids);
+
+		Scan sc = new Scan();
+		String line;
+		while (sc.applied < limit && (line = reader.readLine()) != null) {
+			long n = line.getBytes(StandardCharsets.UTF_8).length + 1;
+			if (sc.skipped < skip) {
+				++sc.skipped;
+				sc.skippedBytes += n;
+				sc.bytes += n;
+				continue;
+			}
+			try {
+				int id = apply(new JSONObject(line), high, med, low, ids);
+				sc.maximumID = (sc.maximumID < id ? id : sc.maximumID);
+			}
+			catch (JSONException | IndexOutOfBoundsException | NumberFormatException ex) {
+				Logger log = Logger.getInstance();
+				log.warning("    Damaged record in journal '" + path + "' (" + ex.getMessage() + ").");
+				log.warning("    Ignoring the rest of the journal.");
+				break;
+			}
+			++sc.applied;
+			sc.bytes += n;
+		}
+		return sc;
+	}
+
+	/** Reads the header of a journal. Returns its generation, or null if it is not a header. */
+	private static Long readHeader(String line) {
+		try {
+			JSONObject header = (line == null ? null : new JSONObject(line));
+			if (header != null && header.optString("op").equals("header") && header.has("generation")) {
+				return header.getLong("generation");
+			}
+		}
+		catch (JSONException ex) {
+			// treated as a stale journal
+		}
+		return null;
+	}
+
+	/**
+	 * @brief Replays the journal of a task file over its tasks.
+	 *
+	 * Records are applied only if the journal's generation is the same as
+	 * the task file's. A stale journal is deleted. A damaged record (e.g.,
+	 * the last line of a journal whose append was interrupted) ends the
+	 * replay: the records after it are ignored.
+	 *
+	 * When the task file was written by a compaction that did not get to
+	 * switch its journal (see @ref compact) the journal still has the
+	 * previous generation. In that case, the records already folded into
+	 * the task file are skipped, and the journal is switched now.
+	 * @param tasksFile The task file.
+	 * @param generation Generation read from the task file.
+	 * @param baseGeneration Generation of the journal folded into the
+	 * task file.
+	 * @param baseRecords Number of records of that journal folded into
+	 * the task file (0 if none).
+	 * @param high High priority tasks read from the task file.
+	 * @param med Medium priority tasks read from the task file.
+	 * @param low Low priority tasks read from the task file.
+	 * @return Returns the journal of the task file, ready to be appended to.
+	 * @throws IOException When the journal could not be read.
+	 */
+	static TaskJournal replay(
+		String tasksFile, long generation, long baseGeneration, long baseRecords,
+		ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low
+	)
+	throws IOException
+	{
+		TaskJournal j = replay(tasksFile, generation, baseGeneration, baseRecords, high, med, low, true);
+		j.finishReplay();
+		return j;
+	}
+
+	/**
+	 * @brief Reads the journal of a task file and applies its records.
+	 *
+	 * Same as above, but when @e modify is false the journal file is
+	 * left as it is: a journal that does not apply to the task file is
+	 * ignored (and overwritten by the first append), and the switch of
+	 * the journal after a compaction is left to @ref finishReplay. Used
+	 * to read a task file that may still be being written by some other
+	 * program.
+	 */
+	static TaskJournal replay(
+		String tasksFile, long generation, long baseGeneration, long baseRecords,
+		ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low,
+		boolean modify
+	)
+	throws IOException
+	{
+		Logger log = Logger.getInstance();
+		Path path = journalPath(tasksFile);
+		if (!Files.exists(path)) {
+			return new TaskJournal(tasksFile, generation, 0, 0);
+		}
+
+		Long headerGeneration;
+		long headerBytes;
+		Scan sc;
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			headerGeneration = readHeader(line);
+			long skip;
+			if (headerGeneration != null && headerGeneration == generation) {
+				skip = 0;
+			}
+			else if (headerGeneration != null && baseRecords != 0 && headerGeneration == baseGeneration) {
+				skip = baseRecords;
+			}
+			else if (!modify) {
+				log.warning("    Journal '" + path + "' does not apply to this file. Ignoring it.");
+				return new TaskJournal(tasksFile, generation, 0, 0);
+			}
+			else {
+				// deleted below, once it is closed
+				skip = -1;
+			}
+			if (skip == -1) {
+				headerBytes = 0;
+				sc = null;
+			}
+			else {
+				headerBytes = line.getBytes(StandardCharsets.UTF_8).length + 1;
+				sc = scan(reader, path, skip, Long.MAX_VALUE, high, med, low);
+			}
+		}
+		if (sc == null) {
+			log.warning("    Journal '" + path + "' does not apply to this file. Deleting it.");
+			Files.delete(path);
+			return new TaskJournal(tasksFile, generation, 0, 0);
+		}
+		log.info("    Replayed " + sc.applied + " records from journal '" + path + "'.");
+
+		TaskJournal j = new TaskJournal(
+			tasksFile, headerGeneration, sc.skipped + sc.applied, headerBytes + sc.bytes
+		);
+		j.maximumID = sc.maximumID;
+		if (headerGeneration != generation) {
+			j.pendingRebase = new long[]{ generation, sc.skipped, headerBytes + sc.skippedBytes };
+		}
+		return j;
+	}
+
+	/**
+	 * @brief Finishes a replay that did not modify the journal file.
+	 *
+	 * Switches the journal to the generation of the task file if a
+	 * compaction did not get to do it. Must be called before anything
+	 * is appended to the journal.
+	 * @throws IOException When the journal file could not be replaced.
+	 */
+	void finishReplay() throws IOException {
+		if (pendingRebase == null) { return; }
+		Logger.getInstance().info("    Finishing the compaction of journal '" + file + "'.");
+		rebase(pendingRebase[0], pendingRebase[1], pendingRebase[2]);
+		pendingRebase = null;
+	}
+
+	// -------------------------------------------------------------------------
+	// Compaction
+
+	/**
+	 * @brief Makes the journal apply to a new generation of the task file.
+	 *
+	 * The journal file is replaced (atomically) by one with a header of
+	 * the new generation followed by the records after the first
+	 * @e skipRecords records. If no record is left, the journal file is
+	 * deleted.
+	 * @param newGeneration Generation of the new task file.
+	 * @param skipRecords Records folded into the new task file.
+	 * @param skipBytes Offset of the first record not folded (header
+	 * included).
+	 * @throws IOException When the journal file could not be replaced.
+	 */
+	private synchronized void rebase(long newGeneration, long skipRecords, long skipBytes)
+	throws IOException
+	{
+		if (skipBytes >= bytes) {
+			Files.deleteIfExists(file);
+			generation = newGeneration;
+			records = 0;
+			bytes = 0;
+			return;
+		}
+
+		ByteBuffer tail = ByteBuffer.allocate((int)(bytes - skipBytes));
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			ch.position(skipBytes);
+			while (tail.hasRemaining() && ch.read(tail) != -1) { }
+		}
+		tail.flip();
+
+		JSONObject header = new JSONObject();
+		header.put("op", "header");
+		header.put("generation", newGeneration);
+
+		AtomicFile af = new AtomicFile(file.toString());
+		OutputStream out = af.startWrite();
+		try {
+			out.write((header.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+			out.write(tail.array(), 0, tail.limit());
+			af.finishWrite(out);
+		}
+		catch (IOException ex) {
+			af.failWrite(out);
+			throw ex;
+		}
+		generation = newGeneration;
+		records -= skipRecords;
+		bytes = af.getBytesWritten();
+	}
+
+	/**
+	 * @brief Folds the journal into a new task file.
+	 *
+	 * The task file and the records written into the journal so far are
+	 * read from disk, and the result is written as a new generation of the
+	 * task file. Then, the journal is switched to the new generation
+	 * keeping only the records appended in the meantime.
+	 *
+	 * This is meant to be run in a background thread: the tasks in memory
+	 * are not used, and appending to the journal is only blocked while it
+	 * is switched.
+	 * @param newGeneration Generation of the new task file.
+	 * @param format Format of the new task file.
+	 * @param compression Level of compression of the new task file.
+	 * @param backup Back up the task file and the journal before they
+	 * are replaced.
+	 * @return Returns the number of bytes of the new task file, 0 if
+	 * there was nothing to fold, or -1 if the task file on disk is not
+	 * the one this journal applies to.
+	 * @throws IOException When either file could not be read or written.
+	 * In this case, the task file and its journal are left as they were.
+	 */
+	long compact(long newGeneration, TaskFileFormat format, int compression, boolean backup) throws IOException {
+		long gen, recs, end;
+		synchronized (this) {
+			gen = generation;
+			recs = records;
+			end = bytes;
+		}
+		if (recs == 0) { return 0; }
+
+		TaskFile f = TaskFile.read(tasksFile);
+		if (f.generation != gen) { return -1; }
+
+		long headerBytes;
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			Long headerGeneration = readHeader(line);
+			if (headerGeneration == null || headerGeneration != gen) { return -1; }
+			headerBytes = line.getBytes(StandardCharsets.UTF_8).length + 1;
+			Scan sc = scan(reader, file, 0, recs, f.high, f.med, f.low);
+			if (sc.applied != recs || headerBytes + sc.bytes != end) {
+				throw new IOException("Journal '" + file + "' could not be read completely.");
+			}
+		}
+
+		// the task file and the journal are replaced below, not modified:
+		// the backup only keeps their current contents
+		if (backup && !BackupManager.getInstance().backup(tasksFile, file.toString())) {
+			throw new IOException("Could not back up file '" + tasksFile + "'.");
+		}
+
+		// the new task file records which records it contains, in case
+		// the journal is not switched below (e.g., a crash)
+		long n = TaskFile.write(
+			tasksFile, format, compression, newGeneration, gen, recs, f.high, f.med, f.low
+		);
+
+		rebase(newGeneration, recs, end);
+		return n;
+	}
+}
@@ -26,16 +26,43 @@
 package todomanager.task;
 
 import java.io.IOException;
-import java.io.File;
-import java.io.FileWriter;
+import java.nio.file.Paths;
+import java.text.ParseException;
 
 import java.util.logging.Level;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import org.json.*;
-
+import todomanager.util.BackupManager;
 import todomanager.util.Logger;
+import todomanager.util.SystemInfo;
 import todomanager.util.Tools;
+import todomanager.util.Translate;
 
 /**
  * @brief Singleton class that is used to create new tasks.
@@ -52,43 +79,149 @@ public class TaskManager {
 	private final ArrayList<Task> highPriorTasks;
 	private final ArrayList<Task> medPriorTasks;
 	private final ArrayList<Task> lowPriorTasks;
-	private Integer maximumID;
+	/** Every task in the lists above, at any depth, by id. */
+	private final TaskIndex index = new TaskIndex();
+	/** The tasks in @ref index by their current state. */
+	private final EnumMap<TaskStateEnum, Set<Task>> byState = new EnumMap<>(TaskStateEnum.class);
+	/** The tasks in @ref index by the author of their current state. */
+	private final HashMap<String, Set<Task>> byAuthor = new HashMap<>();
+	/** Words of the tasks in @ref index (null until it is made, see
+	 * @ref newTextIndex). */
+	private volatile TaskTextIndex textIndex = null;
+	/** The state changes of the tasks in @ref index by their date (null
+	 * until it is needed, see @ref getChanges). */
+	private volatile TaskChangeIndex changeIndex = null;
+	/** What the queries made in other threads need of the tasks (null
+	 * until one is made and whenever the tasks change, see @ref newQuery). */
+	private TaskSnapshot snapshot = null;
+	/** Id of the next task created. */
+	private int maximumID;
+	
+	/** Journal of the task file (null while there is no task file). */
+	private TaskJournal journal = null;
+	/** Format of the task file. */
+	private TaskFileFormat format = TaskFileFormat.JSON;
+	/** Level of compression of the task file (0 if it is not compressed). */
+	private int compression = 0;
+	/** Have the format or the compression changed since the task file
+	 * was read or written? */
+	private boolean storageChanged = false;
+	/** Has the task file been backed up since it was read? */
+	private boolean backedUp = false;
+	/** Stamp of the task file when it was last read or written (null if
+	 * there is none). */
+	private volatile TaskFileStamp stamp = null;
+	/** Workspace of the task file, when it is a directory of shards
+	 * (null otherwise). */
+	private TaskWorkspace workspace = null;
+	/** Page store of the task file, when it is one (null otherwise). */
+	private TaskPageStore pageStore = null;
+	
+	/** Journal records that trigger a compaction. */
+	private long compactionRecords = 20000;
+	/** Journal size (in bytes) that triggers a compaction. */
+	private long compactionBytes = 4*1024*1024;
+	/** Thread where the journal is folded into the task file. */
+	private final ExecutorService compactor;
+	/** Compaction running (or done) in the compactor thread. */
+	private Future<?> compaction = null;
 	
-	private String makeId() {
-		String id = Integer.toString(maximumID);
-		int n_zeros = 6 - id.length();
-		return (new String(new char[n_zeros]).replace('\0', '0')) + id;
+	private long lastSaveBytes = 0;
+	private long lastSaveMillis = 0;
+	
+	/** Adds a task to the indexes of the current states. */
+	private void indexState(Task t, TaskState s) {
+		snapshot = null;
+		byState.get(s.getState()).add(t);
+		byAuthor.computeIfAbsent(s.getAuthor(), (a) -> new HashSet<>()).add(t);
 	}
 	
-	private Task findTask(ArrayList<Task> ts, String id) {
-		for (int i = 0; i < ts.size(); ++i) {
-			if (ts.get(i).getId().equals(id)) { 
-				return ts.get(i);
-			}
+	/** Removes a task from the indexes of the current states. */
+	private void unindexState(Task t, TaskState s) {
+		snapshot = null;
+		byState.get(s.getState()).remove(t);
+		Set<Task> ts = byAuthor.get(s.getAuthor());
+		if (ts != null && ts.remove(t) && ts.isEmpty()) { byAuthor.remove(s.getAuthor()); }
+	}
+	
+	/** Adds a task and its subtasks to the index. */
+	private void indexTask(Task t) {
+		index.put(t.getNumericId(), t);
+		indexState(t, t.currentState());
+		if (textIndex != null) { textIndex.add(t); }
+		if (changeIndex != null) { changeIndex.add(t); }
+		for (Task st : t.getSubtasks()) { indexTask(st); }
+	}
+	
+	/** Removes a task and its subtasks from the index. */
+	private void unindexTask(Task t) {
+		if (index.remove(t.getNumericId(), t)) {
+			unindexState(t, t.currentState());
+			if (textIndex != null) { textIndex.remove(t.getNumericId()); }
+			if (changeIndex != null) { changeIndex.remove(t); }
 		}
-		return null;
+		for (Task st : t.getSubtasks()) { unindexTask(st); }
+	}
+	
+	private void clearIndexes() {
+		index.clear();
+		for (Set<Task> ts : byState.values()) { ts.clear(); }
+		byAuthor.clear();
+		textIndex = null;
+		changeIndex = null;
+		snapshot = null;
 	}
 	
-	private int deleteTask(ArrayList<Task> ts, String id) {
+	private int deleteTask(ArrayList<Task> ts, String prior, int id) {
 		int j = -1;
 		Task t = null;
 		// remove task from vector
 		for (int i = 0; i < ts.size() && t == null; ++i) {
-			if (ts.get(i).getId().equals(id)) { 
+			if (ts.get(i).getNumericId() == id) { 
 				t = ts.get(i);
 				j = i;
 				ts.remove(i);
 			}
 		}
+		if (j != -1) { unindexTask(t); }
+		if (j != -1 && journal != null) { journal.taskRemoved(prior, t.getId()); }
+		if (j != -1 && workspace != null) {
+			workspace.markChanged(t);
+			workspace.markListChanged();
+		}
+		if (j != -1 && pageStore != null) {
+			pageStore.markTreeChanged(t);
+			pageStore.markListChanged();
+		}
 		return j;
 	}
 	
+	private void insertTask(ArrayList<Task> ts, String prior, int i, Task t) {
+		ts.add(i, t);
+		indexTask(t);
+		if (journal != null) { journal.taskInserted(prior, i, t); }
+		if (workspace != null) {
+			workspace.markChanged(t);
+			workspace.markListChanged();
+		}
+		if (pageStore != null) {
+			pageStore.markTreeChanged(t);
+			pageStore.markListChanged();
+		}
+	}
+	
 	private TaskManager() {
 		log = Logger.getInstance();
 		highPriorTasks = new ArrayList<>();
 		medPriorTasks = new ArrayList<>();
 		lowPriorTasks = new ArrayList<>();
+		for (TaskStateEnum s : TaskStateEnum.values()) { byState.put(s, new HashSet<>()); }
 		maximumID = 0;
+		compactor = Executors.newSingleThreadExecutor((r) -> {
+			Thread th = new Thread(r, "task-file-compaction");
+			th.setDaemon(true);
+			return th;
+		});
 	}
 	
 	public static TaskManager getInstance() {
@@ -98,244 +231,1266 @@ public class TaskManager {
 		return instance;
 	}
 	
-	public void setTaskFile(String filename) { tasksFile = filename; }
-	public String getTaskFile() { return tasksFile; }
+	public synchronized void setTaskFile(String filename) {
+		if (!filename.equals(tasksFile)) { stamp = null; }
+		tasksFile = filename;
+	}
+	public synchronized String getTaskFile() { return tasksFile; }
 	
-	private String __ifHasKeyReturnString(JSONObject obj, String k) {
-		if (obj.has(k)) { return obj.getString(k); }
-		return null;
+	/** Format in which the task file is written. */
+	public TaskFileFormat getFileFormat() { return format; }
+	/**
+	 * @brief Sets the format in which the task file is written.
+	 *
+	 * Reading a task file sets the format to that of the file. When the
+	 * format changes, the next call to @ref writeTasks rewrites the whole
+	 * file in the new format.
+	 * @param f The new format.
+	 */
+	public synchronized void setFileFormat(TaskFileFormat f) {
+		if (f != format) {
+			format = f;
+			storageChanged = true;
+		}
 	}
 	
-	private JSONArray __ifHasKeyReturnArray(JSONObject obj, String k) {
-		if (obj.has(k)) { return obj.getJSONArray(k); }
-		return null;
+	/** Level of compression of the task file (0 if it is not compressed). */
+	public int getCompression() { return compression; }
+	/**
+	 * @brief Sets whether the task file is written compressed (with gzip).
+	 *
+	 * Compressed files are detected when read, in any format. When the
+	 * compression changes, the next call to @ref writeTasks rewrites the
+	 * whole file.
+	 * @param level Level of compression, from 1 (fastest) to 9 (smallest),
+	 * or 0 to not compress the file.
+	 */
+	public synchronized void setCompression(int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("Invalid compression level " + level);
+		}
+		if ((level == 0) != (compression == 0)) { storageChanged = true; }
+		compression = level;
 	}
 	
-	private Task fromJSONtoTask(JSONObject obj) {
-		String id = __ifHasKeyReturnString(obj, "id");
+	public synchronized boolean readTasks() {
+		log.info("Reading tasks from file '" + tasksFile + "'");
 		
-		String name = __ifHasKeyReturnString(obj, "name");
-		String descr = __ifHasKeyReturnString(obj, "description");
-		String comp_date = __ifHasKeyReturnString(obj, "comparable_date");
-		String pretty_date = __ifHasKeyReturnString(obj, "pretty_date");
+		TaskFile f;
+		TaskJournal j;
 		
-		JSONArray arrchanges = __ifHasKeyReturnArray(obj, "changes");
-		ArrayList<TaskState> changes = new ArrayList<>();
-		if (arrchanges != null) {
-			for (int i = 0; i < arrchanges.length(); ++i) {
-				JSONObject stobj = (JSONObject) arrchanges.get(i);
-				String cdate = __ifHasKeyReturnString(stobj, "comparable_date");
-				String pdate = __ifHasKeyReturnString(stobj, "pretty_date");
-				String reason = __ifHasKeyReturnString(stobj, "reason");
-				String state = __ifHasKeyReturnString(stobj, "state");
-				String author = __ifHasKeyReturnString(stobj, "author");
-				String pTN = __ifHasKeyReturnString(stobj, "pTN");
-				String nTN = __ifHasKeyReturnString(stobj, "nTN");
-				String pTD = __ifHasKeyReturnString(stobj, "pTD");
-				String nTD = __ifHasKeyReturnString(stobj, "nTD");
-				TaskState ts = new TaskState(
-					author, cdate, pdate, reason,
-					pTN, nTN, pTD, nTD,
-					TaskStateEnum.fromString(state)
-				);
-				changes.add(ts);
-			}
+		// the file must not be rewritten while it is read
+		waitForCompaction();
+		if (TaskWorkspace.isWorkspace(tasksFile)) {
+			closePageStore();
+			return readWorkspace();
 		}
+		workspace = null;
+		if (TaskPageStore.isPageStore(tasksFile)) {
+			return readPageStore();
+		}
+		closePageStore();
+		// changes made while reading are detected afterwards
+		TaskFileStamp before = TaskFileStamp.of(tasksFile);
 		
-		String creator = changes.get(0).getAuthor();
-		Task t = new Task(creator, id, name, descr, comp_date, pretty_date);
-		t.hardSetChanges(changes);
-		
-		int maxId = -1;
+		// build the tasks straight from the file, in whichever format
+		try {
+			f = TaskFile.read(tasksFile);
+		}
+		catch (IOException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			log.error("Could not open file '" + tasksFile + "'.");
+			log.error("    " + ex.getMessage());
+			return false;
+		}
+		log.info("    File format: " + f.format + (f.compression > 0 ? " (compressed)" : ""));
 		
-		JSONArray arrtasks = obj.getJSONArray("subtasks");
-		ArrayList<Task> subtasks = new ArrayList<>();
-		for (int i = 0; i < arrtasks.length(); ++i) {
-			Task st = fromJSONtoTask( (JSONObject) arrtasks.get(i) );
-			st.setParent(t);
-			subtasks.add(st);
-			
-			Integer stId = Integer.valueOf(st.getId());
-			maxId = (maxId < stId ? stId : maxId);
-		}
-		t.hardSetSubtasks(subtasks);
+		// apply the changes saved after the file was last written
+		try {
+			j = TaskJournal.replay(tasksFile, f.generation, f.baseGeneration, f.baseRecords, f.high, f.med, f.low);
+		}
+		catch (IOException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			log.error("Could not read the journal of file '" + tasksFile + "'.");
+			return false;
+		}
+		adopt(f, j, before);
+		log.info("File '" + tasksFile + "' read successfully.");
 		
-		int thisTaskId = Integer.valueOf(t.getId());
-		maxId = (maxId < thisTaskId ? thisTaskId : maxId);
-		maximumID = (maximumID < maxId ? maxId : maximumID);
-		return t;
+		// keep the next opening of this file fast
+		compactIfNeeded();
+		return true;
 	}
-	private void parseTasks(JSONArray arr, ArrayList<Task> tasks) {
-		for (int i = 0; i < arr.length(); ++i) {
-			Task t = fromJSONtoTask((JSONObject) arr.get(i));
-			tasks.add(t);
+	
+	/** Reads the tasks from a workspace (see TaskWorkspace). */
+	private boolean readWorkspace() {
+		TaskWorkspace w = new TaskWorkspace(tasksFile);
+		TaskFile f;
+		try {
+			f = w.read();
+		}
+		catch (IOException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			log.error("Could not open workspace '" + tasksFile + "'.");
+			log.error("    " + ex.getMessage());
+			return false;
 		}
+		log.info("    Workspace of " + (f.high.size() + f.med.size() + f.low.size()) + " shards.");
 		
+		// a workspace has no journal: changed shards are rewritten instead
+		adopt(f, null, null);
+		workspace = w;
+		log.info("Workspace '" + tasksFile + "' read successfully.");
+		return true;
 	}
-	public boolean readTasks() {
-		log.info("Reading tasks from file '" + tasksFile + "'");
-		
-		String lines_file = Tools.readFile(tasksFile);
-		if (lines_file.equals("?")) {
-			log.error("Could not open file '" + tasksFile + "'.");
+	
+	/** Reads the tasks from a page store (see TaskPageStore). */
+	private boolean readPageStore() {
+		closePageStore();
+		TaskPageStore ps = null;
+		TaskFile f;
+		try {
+			// opening a page store creates it if it does not exist
+			if (!Tools.fileExists(tasksFile)) {
+				throw new IOException("File '" + tasksFile + "' does not exist.");
+			}
+			ps = TaskPageStore.open(tasksFile);
+			f = ps.readAll();
+		}
+		catch (IOException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			log.error("Could not open page store '" + tasksFile + "'.");
+			log.error("    " + ex.getMessage());
+			if (ps != null) {
+				try { ps.close(); }
+				catch (IOException ex2) { }
+			}
 			return false;
 		}
+		log.info("    Page store of " + ps.getTaskCount() + " tasks.");
 		
-		// clear current contents
+		// a page store has no journal: changed tasks are rewritten in place
+		adopt(f, null, null);
+		pageStore = ps;
+		log.info("Page store '" + tasksFile + "' read successfully.");
+		return true;
+	}
+	
+	/** Closes the page store of the previous task file, if any. */
+	private void closePageStore() {
+		if (pageStore == null) { return; }
+		try {
+			pageStore.close();
+		}
+		catch (IOException ex) {
+			log.warning("Could not close page store '" + pageStore.getFilename() + "'.");
+		}
+		pageStore = null;
+	}
+	
+	/** Replaces the current tasks with the contents of the task file. */
+	private void adopt(TaskFile f, TaskJournal j, TaskFileStamp s) {
+		int maxId = (j == null || f.maximumID >= j.getMaximumID() ? f.maximumID : j.getMaximumID());
+		
+		// replace current contents
 		highPriorTasks.clear();
 		medPriorTasks.clear();
 		lowPriorTasks.clear();
-		maximumID = -1;
-		
-		// main JSON object
-		JSONObject main = new JSONObject(lines_file);
-		// low, medium, and high priority tasks
-		JSONArray low = main.getJSONArray("low_prior_tasks");
-		JSONArray med = main.getJSONArray("med_prior_tasks");
-		JSONArray high = main.getJSONArray("high_prior_tasks");
-		
-		parseTasks(low, lowPriorTasks);
-		parseTasks(med, medPriorTasks);
-		parseTasks(high, highPriorTasks);
+		highPriorTasks.addAll(f.high);
+		medPriorTasks.addAll(f.med);
+		lowPriorTasks.addAll(f.low);
+		clearIndexes();
+		for (Task t : highPriorTasks) { indexTask(t); }
+		for (Task t : medPriorTasks) { indexTask(t); }
+		for (Task t : lowPriorTasks) { indexTask(t); }
+		maximumID = maxId;
+		journal = j;
+		format = f.format;
+		if (f.compression == 0) { compression = 0; }
+		else if (compression == 0) { compression = f.compression; }
+		storageChanged = false;
+		backedUp = false;
+		stamp = s;
 		
 		log.info("    Maximum id found in file: " + maximumID);
 		maximumID += 1;
-		
-		// set the parent of each task appropriately
-		//lowPriorTasks.forEach((t) -> { t.constructParentRelationships(); });
-		//medPriorTasks.forEach((t) -> { t.constructParentRelationships(); });
-		//highPriorTasks.forEach((t) -> { t.constructParentRelationships(); });
-		
-		log.info("File '" + tasksFile + "' read successfully.");
-		return true;
 	}
 	
-	private void taskToJSON(JSONWriter json, Task t) {
-		json.object();
-		
-		json.key("id").value(t.getId());
-		json.key("name").value(t.getName());
-		json.key("description").value(t.getDescription());
-		json.key("comparable_date").value(t.getCompDate());
-		json.key("pretty_date").value(t.getPrettyDate());
-		
-		// write state changes
-		json.key("changes");
-		json.array();
-		t.getChanges().forEach((ts) -> {
-			json.object()
-				.key("comparable_date").value(ts.getComparableDate())
-				.key("pretty_date").value(ts.getPrettyDate())
-				.key("reason").value(ts.getReason())
-				.key("state").value(ts.getState())
-				.key("author").value(ts.getAuthor())
-				.key("pTN").value(ts.getPreviousTaskName() == null ? "" : ts.getPreviousTaskName())
-				.key("nTN").value(ts.getNextTaskName() == null ? "" : ts.getNextTaskName())
-				.key("pTD").value(ts.getPreviousTaskDescription() == null ? "" : ts.getPreviousTaskDescription())
-				.key("nTD").value(ts.getNextTaskDescription() == null ? "" : ts.getNextTaskDescription())
-			.endObject();
-		});
-		json.endArray();
+	// -------------------------------------------------------------------------
+	// Changes made by other programs
+	
+	/**
+	 * @brief Has the task file been changed by some other program?
+	 *
+	 * Compares the task file and its journal on disk with how they were
+	 * when the Task Manager last read or wrote them.
+	 */
+	public synchronized boolean isChangedOnDisk() {
+		if (stamp == null || tasksFile.equals("") || isCompacting()) { return false; }
+		return !stamp.equals(TaskFileStamp.of(tasksFile));
+	}
+	
+	/**
+	 * @brief Reads the task file if it has been changed by some other program.
+	 *
+	 * The tasks of the Task Manager are not modified: the contents read
+	 * are applied with @ref applyReload. Can be called from any thread.
+	 * @return Returns the new contents, or null if the file did not
+	 * change or could not be read (e.g., it is still being written).
+	 */
+	public TaskReload readChangesOnDisk() {
+		String file;
+		synchronized (this) {
+			if (!isChangedOnDisk()) { return null; }
+			file = tasksFile;
+		}
+		log.info("Task file '" + file + "' changed on disk. Reading it...");
 		
-		// write subtasks
-		json.key("subtasks");
-		json.array();
-			t.getSubtasks().forEach((st) -> { taskToJSON(json, st); });
-		json.endArray();
+		TaskFileStamp before = TaskFileStamp.of(file);
+		TaskFile f;
+		TaskJournal j;
+		try {
+			f = TaskFile.read(file);
+			j = TaskJournal.replay(file, f.generation, f.baseGeneration, f.baseRecords, f.high, f.med, f.low, false);
+		}
+		catch (IOException ex) {
+			log.warning("    Could not read file '" + file + "': " + ex.getMessage());
+			return null;
+		}
+		if (!before.equals(TaskFileStamp.of(file))) {
+			log.info("    File '" + file + "' changed while it was read.");
+			return null;
+		}
+		return new TaskReload(file, before, f, j);
+	}
+	
+	/**
+	 * @brief Replaces the tasks with the contents read from the task file.
+	 *
+	 * The contents are compared with the current tasks (see TaskReload).
+	 * Nothing is done if the task file changed again since it was read,
+	 * or if there are changes not saved yet.
+	 * @param r Contents read with @ref readChangesOnDisk.
+	 * @return Returns true if the tasks were replaced.
+	 */
+	public synchronized boolean applyReload(TaskReload r) {
+		if (!r.tasksFile.equals(tasksFile) || !r.stamp.equals(TaskFileStamp.of(tasksFile))) {
+			return false;
+		}
+		if (journal != null && journal.hasPending()) {
+			log.warning("Task file '" + tasksFile + "' changed on disk but there are unsaved changes.");
+			return false;
+		}
+		waitForCompaction();
 		
-		json.endObject();
+		r.compare(highPriorTasks, medPriorTasks, lowPriorTasks);
+		try {
+			r.journal.finishReplay();
+		}
+		catch (IOException ex) {
+			log.warning("    Could not switch the journal of file '" + tasksFile + "'.");
+		}
+		adopt(r.contents, r.journal, TaskFileStamp.of(tasksFile));
+		log.info("Task file '" + tasksFile + "' reloaded: " +
+				 r.getAddedTasks().size() + " tasks added, " +
+				 r.getRemovedTasks().size() + " removed, " +
+				 r.getModifiedTasks().size() + " modified.");
+		return true;
 	}
-	private void tasksToJSON(JSONWriter json, ArrayList<Task> ts) {
-		json.array();
-		ts.forEach((t) -> { taskToJSON(json, t); });
-		json.endArray();
+	
+	/**
+	 * @brief Opens a task file for reading only, without loading it.
+	 *
+	 * The file is mapped into memory and its tasks are decoded when they
+	 * are requested. The contents of the Task Manager are not modified.
+	 * @param filename A task file in binary format (use @ref exportTasks
+	 * to convert a JSON file).
+	 * @return Returns the view of the file, or null on error.
+	 */
+	public MappedTaskFile openReadOnly(String filename) {
+		log.info("Mapping file '" + filename + "' (read-only)");
+		MappedTaskFile m;
+		try {
+			m = MappedTaskFile.open(filename);
+		}
+		catch (IOException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			log.error("Could not map file '" + filename + "'.");
+			log.error("    " + ex.getMessage());
+			return null;
+		}
+		if (m.hasJournal()) {
+			log.warning("    The changes in the journal of the file are not shown.");
+		}
+		log.info("    Top-level tasks: " +
+				 m.getHighPriorCount() + " high, " +
+				 m.getMedPriorCount() + " medium, " +
+				 m.getLowPriorCount() + " low.");
+		return m;
 	}
-	public boolean writeTasks(boolean do_backup) {
+	
+	/**
+	 * @brief Saves the tasks into the task file.
+	 *
+	 * If the task file was read (or completely written) before, only the
+	 * changes made since the last save are appended to its journal.
+	 * Otherwise, the whole task file is written.
+	 *
+	 * Besides, a backup of the task file and its journal is taken before
+	 * the first changes since they were read are appended, and every time
+	 * a compaction replaces them (see @ref BackupManager). For a workspace,
+	 * the manifest and the shards a save replaces are backed up before it
+	 * (see TaskWorkspace#filesReplaced). A page store, which is modified in
+	 * place, is copied before the first save since it was opened.
+	 * @param do_backup Back up the task file (or the files of the workspace)
+	 * before rewriting it.
+	 */
+	public synchronized boolean writeTasks(boolean do_backup) {
 		log.info("Writing tasks into file '" + tasksFile + "'.");
+		if (canSaveJournal()) {
+			return appendJournal();
+		}
+		if (pageStore != null && pageStore.getFilename().equals(tasksFile)) {
+			return writePageStore(do_backup);
+		}
+		if (workspace != null && workspace.getDirectory().equals(Paths.get(tasksFile).toAbsolutePath().toString())) {
+			return writeWorkspace(do_backup);
+		}
+		closePageStore();
+		if (TaskPageStore.isPageStore(tasksFile)) {
+			// a new page store: all tasks are written
+			backedUp = !Tools.fileExists(tasksFile);
+			try {
+				pageStore = TaskPageStore.open(tasksFile);
+			}
+			catch (IOException ex) {
+				java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+				log.error("Could not open page store '" + tasksFile + "'.");
+				return false;
+			}
+			pageStore.markAllChanged();
+			journal = null;
+			workspace = null;
+			return writePageStore(do_backup);
+		}
+		if (TaskWorkspace.isWorkspace(tasksFile)) {
+			// a new workspace: all shards are written
+			workspace = new TaskWorkspace(tasksFile);
+			journal = null;
+			return writeWorkspace(do_backup);
+		}
+		workspace = null;
+		return writeSnapshot(do_backup);
+	}
+	
+	/** Rewrites the shards of the workspace that changed. */
+	private boolean writeWorkspace(boolean do_backup) {
+		if (storageChanged) { workspace.markAllChanged(); }
+		String[] replaced = workspace.filesReplaced(highPriorTasks, medPriorTasks, lowPriorTasks);
+		if (do_backup && replaced.length > 0) {
+			log.info("    Do a backup first...");
+			workspace.deleteUnusedBackups();
+			if (!BackupManager.getInstance().backup(replaced)) {
+				log.error("    Could not back up workspace '" + tasksFile + "'.");
+				return false;
+			}
+			backedUp = true;
+		}
+		long begin = System.nanoTime();
+		try {
+			lastSaveBytes = workspace.write(format, compression, highPriorTasks, medPriorTasks, lowPriorTasks);
+		}
+		catch (IOException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			log.error("Could not write into workspace '" + tasksFile + "'.");
+			return false;
+		}
+		storageChanged = false;
+		lastSaveMillis = (System.nanoTime() - begin)/1000000;
+		log.info("    Written " + lastSaveBytes + " bytes (" + format + ", compression " + compression + ") in " + lastSaveMillis + " ms.");
+		log.info("Tasks written into workspace '" + tasksFile + "' successfully.");
+		return true;
+	}
+	
+	/**
+	 * @brief Can the changes be saved with @ref saveJournal?
+	 *
+	 * They can once the task file has been read or written, as long as
+	 * its format has not changed since.
+	 */
+	public synchronized boolean canSaveJournal() {
+		return
+			journal != null && journal.getTaskFile().equals(tasksFile) &&
+			!storageChanged && !isChangedOnDisk();
+	}
+	
+	/**
+	 * @brief Saves the changes into the journal of the task file.
+	 *
+	 * Unlike @ref writeTasks, the tasks are not traversed: the changes
+	 * were recorded when they were made. Hence this can be called from
+	 * any thread, even while the tasks are being modified.
+	 * @return Returns false if the changes could not be saved (see
+	 * @ref canSaveJournal).
+	 */
+	public synchronized boolean saveJournal() {
+		if (!canSaveJournal()) { return false; }
+		log.info("Saving changes into the journal of file '" + tasksFile + "'.");
+		return appendJournal();
+	}
+	
+	private boolean appendJournal() {
+		if (!backedUp) {
+			// the first changes since the file was read: keep the file as
+			// it was read, copying the journal, which is appended to
+			log.info("    Do a backup first...");
+			String[] linked = {tasksFile};
+			String[] appended = {TaskJournal.journalPath(tasksFile).toString()};
+			if (!BackupManager.getInstance().backup(linked, appended)) {
+				log.error("    Could not back up file '" + tasksFile + "'.");
+				return false;
+			}
+			backedUp = true;
+		}
+		long begin = System.nanoTime();
+		try {
+			lastSaveBytes = journal.append();
+		}
+		catch (IOException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			log.error("Could not append to the journal of file '" + tasksFile + "'.");
+			return false;
+		}
+		stamp = TaskFileStamp.of(tasksFile);
+		lastSaveMillis = (System.nanoTime() - begin)/1000000;
+		log.info("    Appended " + lastSaveBytes + " bytes to the journal in " + lastSaveMillis + " ms.");
+		log.info("Changes written into the journal of '" + tasksFile + "' successfully.");
+		compactIfNeeded();
+		return true;
+	}
+	
+	private boolean writeSnapshot(boolean do_backup) {
+		// a compaction of the file must not overwrite it afterwards
+		waitForCompaction();
+		
 		if (do_backup) {
 			log.info("    Do a backup first...");
-			if (Tools.backupFile(tasksFile) != Tools.IOResult.Success) {
+			// the file and its journal are replaced, not modified: the
+			// backup only keeps their current contents
+			if (!BackupManager.getInstance().backup(tasksFile, TaskJournal.journalPath(tasksFile).toString())) {
 				log.error("    Could not back up file '" + tasksFile + "'.");
 				return false;
 			}
+			backedUp = true;
 		}
 		
-		File file = new File(tasksFile);
-		FileWriter writer = null;
+		long begin = System.nanoTime();
+		// a journal left next to the new file must not be replayed over it
+		long newGeneration = newGeneration();
 		
+		// write into a temporary file which replaces the
+		// task file only once it has been completely written
 		try {
-			file.createNewFile();
-			writer = new FileWriter(file, false);
+			lastSaveBytes = TaskFile.write(
+				tasksFile, format, compression, newGeneration, 0, 0,
+				highPriorTasks, medPriorTasks, lowPriorTasks
+			);
 		}
 		catch (IOException ex) {
-			ex.printStackTrace();
 			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
-			log.error("Could not open file '" + tasksFile + "' for writing.");
+			log.error("Could not write into file '" + tasksFile + "'.");
 			return false;
 		}
 		
-		JSONWriter json = new JSONWriter(writer);
-		json.object();
-		json.key("low_prior_tasks");
-		tasksToJSON(json, lowPriorTasks);
-		json.key("med_prior_tasks");
-		tasksToJSON(json, medPriorTasks);
-		json.key("high_prior_tasks");
-		tasksToJSON(json, highPriorTasks);
-		json.endObject();
+		// the file contains all changes: start a new journal
+		journal = new TaskJournal(tasksFile, newGeneration, 0, 0);
+		storageChanged = false;
+		try {
+			TaskJournal.delete(tasksFile);
+		}
+		catch (IOException ex) {
+			log.warning("    Could not delete the old journal of file '" + tasksFile + "'.");
+		}
+		stamp = TaskFileStamp.of(tasksFile);
+		
+		lastSaveMillis = (System.nanoTime() - begin)/1000000;
+		log.info("    Written " + lastSaveBytes + " bytes (" + format + ", compression " + compression + ") in " + lastSaveMillis + " ms.");
+		log.info("Tasks written into file '" + tasksFile + "' successfully.");
+		return true;
+	}
+	
+	/** Generations of backups of the task file, most recent first. */
+	public List<Integer> getBackups() {
+		return BackupManager.getInstance().listBackups(tasksFile);
+	}
+	
+	/**
+	 * @brief Replaces the task file with one of its backups.
+	 *
+	 * The task file and its journal are restored, and the tasks are
+	 * read again from the restored file.
+	 * @param generation Generation of the backup, 1 being the most recent
+	 * (see @ref getBackups).
+	 * @return Returns false if the backup could not be restored or read.
+	 */
+	public synchronized boolean restoreBackup(int generation) {
+		log.info("Restoring backup " + generation + " of file '" + tasksFile + "'.");
+		
+		// a compaction must not overwrite the restored file
+		waitForCompaction();
 		
+		if (!BackupManager.getInstance().restore(generation, tasksFile, TaskJournal.journalPath(tasksFile).toString())) {
+			log.error("Could not restore backup " + generation + " of file '" + tasksFile + "'.");
+			return false;
+		}
+		clearTasks();
+		return readTasks();
+	}
+	
+	/**
+	 * @brief Writes all tasks into a file other than the task file.
+	 *
+	 * Used to convert between formats: the task file and its format are
+	 * not changed. Any journal next to @e filename is deleted.
+	 * @param filename The file to write.
+	 * @param f Format of the file.
+	 */
+	public synchronized boolean exportTasks(String filename, TaskFileFormat f) {
+		return exportTasks(filename, f, 0);
+	}
+	
+	/**
+	 * @brief Writes all tasks into a file other than the task file.
+	 * @param filename The file to write.
+	 * @param f Format of the file.
+	 * @param level Level of compression (see @ref setCompression).
+	 */
+	public synchronized boolean exportTasks(String filename, TaskFileFormat f, int level) {
+		log.info("Exporting tasks into file '" + filename + "' (" + f + ", compression " + level + ").");
+		if (Paths.get(filename).toAbsolutePath().equals(Paths.get(tasksFile).toAbsolutePath())) {
+			log.error("    Cannot export into the task file itself.");
+			return false;
+		}
 		try {
-			writer.flush();
+			long n = TaskFile.write(
+				filename, f, level, newGeneration(), 0, 0,
+				highPriorTasks, medPriorTasks, lowPriorTasks
+			);
+			TaskJournal.delete(filename);
+			log.info("    Written " + n + " bytes.");
 		}
 		catch (IOException ex) {
-			ex.printStackTrace();
 			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
-			log.error("Could not write into file '" + tasksFile + "'.");
+			log.error("Could not export into file '" + filename + "'.");
 			return false;
 		}
-		log.info("Tasks written into file '" + tasksFile + "' successfully.");
 		return true;
 	}
 	
+	/** A new generation for the task file, different from the current one. */
+	private long newGeneration() {
+		long current = (journal == null ? 0 : journal.getGeneration());
+		long g;
+		do {
+			g = new Random().nextLong();
+		}
+		while (g == 0 || g == current);
+		return g;
+	}
+	
+	// -------------------------------------------------------------------------
+	// Compaction of the journal
+	
+	/**
+	 * @brief Sets when the journal is folded into the task file.
+	 *
+	 * The journal is compacted in the background after a save (or after
+	 * reading the task file) when it has at least @e records records or
+	 * at least @e bytes bytes.
+	 * @param records Number of records.
+	 * @param bytes Size of the journal, in bytes.
+	 */
+	public void setCompactionThresholds(long records, long bytes) {
+		compactionRecords = records;
+		compactionBytes = bytes;
+	}
+	
+	/** Is a compaction of the journal running? */
+	public boolean isCompacting() {
+		return compaction != null && !compaction.isDone();
+	}
+	
+	private void compactIfNeeded() {
+		if (journal == null || isCompacting()) { return; }
+		if (journal.getRecords() < compactionRecords && journal.getBytes() < compactionBytes) {
+			return;
+		}
+		
+		final TaskJournal j = journal;
+		final long newGeneration = newGeneration();
+		final TaskFileFormat f = format;
+		final int level = compression;
+		log.info("Compacting the journal of file '" + j.getTaskFile() + "' (" +
+				 j.getRecords() + " records, " + j.getBytes() + " bytes).");
+		compaction = compactor.submit(() -> {
+			long begin = System.nanoTime();
+			try {
+				long n = j.compact(newGeneration, f, level, true);
+				if (n == -1) {
+					log.warning("Task file '" + j.getTaskFile() + "' changed on disk. Compaction cancelled.");
+					return;
+				}
+				// not a change made by some other program
+				if (n > 0) { stamp = TaskFileStamp.of(j.getTaskFile()); }
+				long ms = (System.nanoTime() - begin)/1000000;
+				log.info("Journal of file '" + j.getTaskFile() + "' compacted into " + n + " bytes in " + ms + " ms.");
+			}
+			catch (IOException | RuntimeException ex) {
+				java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+				log.error("Could not compact the journal of file '" + j.getTaskFile() + "'.");
+				log.error("    " + ex.getMessage());
+			}
+		});
+	}
+	
+	/** Waits until the compaction running (if any) finishes. */
+	private void waitForCompaction() {
+		if (compaction == null) { return; }
+		try {
+			compaction.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException ex) {
+			// already logged by the compaction itself
+		}
+		compaction = null;
+	}
+	
+	/** Number of bytes written by the last successful call to @ref writeTasks. */
+	public synchronized long getLastSaveBytes() { return lastSaveBytes; }
+	/** Time (in milliseconds) taken by the last successful call to @ref writeTasks. */
+	public synchronized long getLastSaveMillis() { return lastSaveMillis; }
+	
 	public ArrayList<Task> getHighPriorTasks() { return highPriorTasks; }
 	public ArrayList<Task> getMedPriorTasks()  { return medPriorTasks; }
 	public ArrayList<Task> getLowPriorTasks()  { return lowPriorTasks; }
 
+	/**
+	 * @brief The task with an id.
+	 *
+	 * Finds top-level tasks and subtasks at any depth, in constant time.
+	 * Tasks created with @ref newTask are found once they are inserted
+	 * into some list (or added as a subtask of a task in a list).
+	 * @param id Id of the task.
+	 * @return Returns the task, or null if there is none with that id.
+	 */
 	public Task getTask(String id) {
-		Task t = findTask(highPriorTasks, id);
-		if (t == null) { t = findTask(medPriorTasks, id); }
-		if (t == null) { t = findTask(lowPriorTasks, id); }
-		return t;
+		int i = Task.parseId(id);
+		return i == -1 ? null : index.get(i);
+	}
+	/** The task with an id (see @ref getTask(String)). */
+	public Task getTask(int id) { return index.get(id); }
+	
+	/**
+	 * @brief The tasks whose current state is @e s, at any depth.
+	 * @return Returns a read-only view, kept up to date.
+	 */
+	public Set<Task> getTasksInState(TaskStateEnum s) {
+		return Collections.unmodifiableSet(byState.get(s));
+	}
+	
+	/**
+	 * @brief The tasks whose current state was set by @e author, at any
+	 * depth.
+	 *
+	 * The author of the current state is who created the task, or who
+	 * last changed its state (edits and new subtasks do not change it).
+	 * @return Returns a read-only view, kept up to date.
+	 */
+	public Set<Task> getTasksByAuthor(String author) {
+		Set<Task> ts = byAuthor.get(author);
+		return ts == null ? Collections.emptySet() : Collections.unmodifiableSet(ts);
 	}
 	
-	public boolean deleteTask(String id) {
-		int i = deleteTask(highPriorTasks, id);
-		if (i == -1) { i = deleteTask(medPriorTasks, id); }
-		if (i == -1) { i = deleteTask(lowPriorTasks, id); }
+	/** The tasks in state @e s set by @e author (see @ref getTasksByAuthor). */
+	public ArrayList<Task> getTasks(TaskStateEnum s, String author) {
+		Set<Task> a = byState.get(s);
+		Set<Task> b = byAuthor.get(author);
+		ArrayList<Task> res = new ArrayList<>();
+		if (b == null) { return res; }
+		if (b.size() < a.size()) {
+			Set<Task> x = a;
+			a = b;
+			b = x;
+		}
+		for (Task t : a) {
+			if (b.contains(t)) { res.add(t); }
+		}
+		return res;
+	}
+	
+	public boolean deleteTask(String id) { return deleteTask(Task.parseId(id)); }
+	public boolean deleteTask(int id) {
+		int i = deleteHighTask(id);
+		if (i == -1) { i = deleteMedTask(id); }
+		if (i == -1) { i = deleteLowTask(id); }
 		return i != -1;
 	}
 	
-	public int deleteHighTask(String id) { return TaskManager.this.deleteTask(highPriorTasks, id); }
-	public int deleteMedTask(String id) { return TaskManager.this.deleteTask(medPriorTasks, id); }
-	public int deleteLowTask(String id) { return TaskManager.this.deleteTask(lowPriorTasks, id); }
+	public int deleteHighTask(String id) { return deleteHighTask(Task.parseId(id)); }
+	public int deleteMedTask(String id) { return deleteMedTask(Task.parseId(id)); }
+	public int deleteLowTask(String id) { return deleteLowTask(Task.parseId(id)); }
+	public int deleteHighTask(int id) { return deleteTask(highPriorTasks, "high", id); }
+	public int deleteMedTask(int id) { return deleteTask(medPriorTasks, "med", id); }
+	public int deleteLowTask(int id) { return deleteTask(lowPriorTasks, "low", id); }
+	
+	public void insertHighTask(int i, Task t) { insertTask(highPriorTasks, "high", i, t); }
+	public void insertMedTask(int i, Task t) { insertTask(medPriorTasks, "med", i, t); }
+	public void insertLowTask(int i, Task t) { insertTask(lowPriorTasks, "low", i, t); }
+	
+	/**
+	 * @brief Can the state of many tasks be changed at once?
+	 *
+	 * A task may have subtasks in the batch: they count as being in
+	 * state @e s already (see @ref changeStates).
+	 * @param ids Ids of the tasks.
+	 * @param s New state of the tasks.
+	 * @return Returns the reasons why the changes cannot be made (see
+	 * @ref Task.askChangeState), or an empty string if they can.
+	 */
+	public String askChangeStates(Collection<Integer> ids, TaskStateEnum s) {
+		return checkBatch(ids, s, new ArrayList<>());
+	}
+	
+	/**
+	 * @brief Changes the state of many tasks at once.
+	 *
+	 * All the changes are checked before any of them is made (see
+	 * @ref askChangeStates), so either all of them are made or none is.
+	 * Subtasks in the batch are changed before their ancestors. All the
+	 * changes share the same date.
+	 * @param ids Ids of the tasks.
+	 * @param author Author's name.
+	 * @param why Reason of the change.
+	 * @param s New state of the tasks.
+	 * @return Returns the reasons why the changes cannot be made, or an
+	 * empty string if they were made.
+	 */
+	public String changeStates(Collection<Integer> ids, String author, String why, TaskStateEnum s) {
+		ArrayList<Task> batch = new ArrayList<>(ids.size());
+		String reason = checkBatch(ids, s, batch);
+		if (!reason.equals("")) {
+			return reason;
+		}
+		
+		// subtasks first
+		batch.sort(Comparator.comparingInt(TaskManager::depth).reversed());
+		String cdate = Tools.getComparableDate();
+		String pdate = Tools.getPrettyDate();
+		for (Task t : batch) {
+			t.changeState(author, cdate, pdate, why, s);
+		}
+		return "";
+	}
+	
+	/** Checks a batch of state changes and fills @e batch with its tasks. */
+	private String checkBatch(Collection<Integer> ids, TaskStateEnum s, ArrayList<Task> batch) {
+		Translate tr = Translate.getInstance();
+		SystemInfo sysinfo = SystemInfo.getInstance();
+		
+		Set<Task> inBatch = Collections.newSetFromMap(new IdentityHashMap<>());
+		String reason = "";
+		for (int id : ids) {
+			Task t = index.get(id);
+			if (t == null) {
+				reason += tr.error_TaskNotFound.replace("%s1", Task.formatId(id)) + sysinfo.newLine;
+			}
+			else if (inBatch.add(t)) {
+				batch.add(t);
+			}
+		}
+		int cur_mask = TaskStateEnum.precondCurtaskMask(s);
+		int sub_mask = TaskStateEnum.precondAskStateChangeSubtasksMask(s);
+		for (Task t : batch) {
+			if (t.canChangeState(s)) { continue; }
+			boolean ok = t.isOneOfState(cur_mask);
+			for (int i = 0; ok && i < t.getSubtasks().size(); ++i) {
+				Task st = t.getSubtasks().get(i);
+				ok = st.isOneOfState(sub_mask) || inBatch.contains(st);
+			}
+			if (!ok) { reason += t.askChangeState(s); }
+		}
+		return reason;
+	}
 	
-	public void insertHighTask(int i, Task t) { highPriorTasks.add(i, t); }
-	public void insertMedTask(int i, Task t) { medPriorTasks.add(i, t); }
-	public void insertLowTask(int i, Task t) { lowPriorTasks.add(i, t); }
+	/** Number of ancestors of a task */
+	private static int depth(Task t) {
+		int d = 0;
+		for (Task p = t.getParentTask(); p != null; p = p.getParentTask()) { ++d; }
+		return d;
+	}
+	
+	/**
+	 * @brief The tasks that contain some words.
+	 *
+	 * Looks for the words in the names, the descriptions and the reasons
+	 * of the state changes of the tasks, ignoring case and accents. The
+	 * last word also matches the words that start with it. If the words
+	 * are not indexed yet, they are indexed first (see @ref newTextIndex)
+	 * in this thread. The index is kept up to date afterwards.
+	 * @param query Words to look for.
+	 * @param max Maximum number of tasks returned (all if not positive).
+	 * @return Returns the ids of the tasks that contain all the words,
+	 * best matches first (see @ref TaskTextIndex.search).
+	 */
+	public ArrayList<Integer> searchTasks(String query, int max) {
+		if (textIndex == null) { newTextIndex().run(); }
+		return searchTextIndex(query, max);
+	}
+	
+	/**
+	 * @brief Same as @ref searchTasks, without making the index.
+	 *
+	 * Can be called from any thread.
+	 * @return Returns null if there is no index.
+	 */
+	public ArrayList<Integer> searchTextIndex(String query, int max) {
+		TaskTextIndex ti = textIndex;
+		return ti == null ? null : ti.search(query, max);
+	}
+	
+	/** Is there an index of the words of the tasks? */
+	public boolean hasTextIndex() { return textIndex != null; }
+	
+	/**
+	 * @brief Makes a new index of the words of the tasks.
+	 *
+	 * What is indexed is copied from the tasks in this thread, which
+	 * must be the one that modifies them. The copies are indexed by the
+	 * returned job, which can run in any thread: searches made before it
+	 * ends miss the tasks not indexed yet. Changes made to the tasks in
+	 * the meantime are indexed as usual, and their copies ignored.
+	 * @return Returns the job that fills the index.
+	 */
+	public Runnable newTextIndex() {
+		TaskTextIndex ti = new TaskTextIndex();
+		ti.building();
+		ArrayList<TaskCopy> copies = copyTasks();
+		textIndex = ti;
+		return () -> {
+			for (TaskCopy c : copies) { ti.add(c); }
+			ti.built();
+		};
+	}
+	
+	/**
+	 * @brief Makes a new index of the state changes of the tasks by date.
+	 *
+	 * Same as @ref newTextIndex, for the index of @ref getChanges.
+	 * @return Returns the job that fills the index.
+	 */
+	public Runnable newChangeIndex() {
+		TaskChangeIndex ci = new TaskChangeIndex();
+		ci.building();
+		ArrayList<TaskCopy> copies = copyTasks();
+		changeIndex = ci;
+		return () -> {
+			for (TaskCopy c : copies) { ci.add(c); }
+			ci.built();
+		};
+	}
+	
+	/** Copies of all the tasks, for the indexes (see @ref TaskCopy). */
+	private ArrayList<TaskCopy> copyTasks() {
+		ArrayList<TaskCopy> copies = new ArrayList<>(index.size());
+		for (List<Task> ts : Arrays.asList(highPriorTasks, medPriorTasks, lowPriorTasks)) {
+			for (Task t : ts) { copyTask(t, copies); }
+		}
+		return copies;
+	}
+	
+	private static void copyTask(Task t, ArrayList<TaskCopy> copies) {
+		copies.add(new TaskCopy(t));
+		for (Task st : t.getSubtasks()) { copyTask(st, copies); }
+	}
+	
+	/**
+	 * @brief The tasks that satisfy a query.
+	 * @param q Text of the query (see @ref TaskQuery).
+	 * @throws ParseException If the query is not valid.
+	 * @see query(TaskQuery)
+	 */
+	public Stream<Task> query(String q) throws ParseException {
+		return query(TaskQuery.parse(q));
+	}
+	
+	/**
+	 * @brief The tasks that satisfy a query.
+	 *
+	 * The tasks are taken from the smallest of the sets of tasks that
+	 * the query allows: the tasks with its ids, in its states, by its
+	 * author, with its words, changed within its dates (see
+	 * @ref getChanges), or the tasks of its priority down to its depth.
+	 * The last one is walked through the tree; the others come from the
+	 * indexes. Only the tasks taken that satisfy the rest of the query
+	 * are returned (see @ref explainQuery).
+	 *
+	 * The tasks are found as the stream is consumed, which must happen
+	 * in this thread and before the tasks are modified (see @ref newQuery
+	 * to query the tasks in another thread). If the query has words and
+	 * they are not indexed yet, they are indexed first (see
+	 * @ref searchTasks).
+	 * @return Returns the tasks, in the order of the tree if they are
+	 * walked through it, best matches first if they are taken from the
+	 * words, and in no particular order otherwise.
+	 */
+	public Stream<Task> query(TaskQuery q) {
+		return planQuery(q).tasks();
+	}
+	
+	/** Where the tasks of a query are taken from (see @ref query). */
+	public String explainQuery(TaskQuery q) {
+		return planQuery(q).toString();
+	}
+	
+	/**
+	 * @brief A query to evaluate in another thread.
+	 *
+	 * What the query needs of the tasks is copied in this thread, which
+	 * must be the one that modifies them; the returned job evaluates the
+	 * query on the copies in any thread, making first the indexes of the
+	 * words and of the changes if the query needs them and they are not
+	 * made yet (see @ref newTextIndex). The copies are kept until the
+	 * tasks change, so that queries typed one letter at a time do not
+	 * copy them again.
+	 * @param q The query.
+	 * @param max Maximum number of tasks found (all if not positive).
+	 * @return Returns the job, which returns the ids of the tasks that
+	 * satisfy the query, best matches first if it has words and in the
+	 * order of the tree otherwise, or null if the tasks were read again
+	 * while it ran.
+	 */
+	public Supplier<ArrayList<Integer>> newQuery(TaskQuery q, int max) {
+		Runnable words = (q.getText() == null || textIndex != null ? null : newTextIndex());
+		boolean dates = (q.getChangedFrom() != null || q.getChangedTo() != null);
+		long[] range = (dates ? changeSeconds(q.getChangedFrom(), q.getChangedTo()) : null);
+		Runnable changes = (!dates || changeIndex != null ? null : newChangeIndex());
+		if (q.hasFilters() && snapshot == null) {
+			snapshot = new TaskSnapshot(priorityLists(null), index.size());
+		}
+		TaskSnapshot s = (q.hasFilters() ? snapshot : null);
+		return () -> {
+			if (words != null) { words.run(); }
+			if (changes != null) { changes.run(); }
+			ArrayList<Integer> hits = null;
+			if (q.getText() != null) {
+				hits = searchTextIndex(q.getText(), s == null ? max : 0);
+				if (hits == null || s == null) { return hits; }
+			}
+			HashSet<Integer> changed = null;
+			if (dates) {
+				TaskChangeIndex ci = changeIndex;
+				if (ci == null) { return null; }
+				changed = ci.tasks(range[0], range[1]);
+			}
+			return s.query(q, hits, changed, max);
+		};
+	}
+	
+	private QueryPlan planQuery(TaskQuery q) {
+		QueryPlan p = new QueryPlan(q);
+		if (q.isContradictory()) {
+			p.consider("nothing", 0, Stream::empty);
+			return p;
+		}
+		
+		List<ArrayList<Task>> lists = priorityLists(q.getPriority());
+		int d = q.getMaxDepth();
+		long n = 0;
+		if (d == 0) {
+			for (ArrayList<Task> ts : lists) { n += ts.size(); }
+		}
+		else if (q.getPriority() == null) {
+			n = index.size();
+		}
+		else {
+			for (Task t : lists.get(0)) { n += 1 + t.subtreeSize(); }
+		}
+		p.consider("tree", n, () -> StreamSupport.stream(
+			Spliterators.spliteratorUnknownSize(new TaskWalk(lists, d), Spliterator.ORDERED | Spliterator.NONNULL),
+			false
+		));
+		
+		Set<Integer> ids = q.getIds();
+		if (ids != null) {
+			p.consider("ids", ids.size(), () -> ids.stream().map(index::get).filter(Objects::nonNull));
+		}
+		Set<TaskStateEnum> states = q.getStates();
+		if (states != null) {
+			n = 0;
+			for (TaskStateEnum s : states) { n += byState.get(s).size(); }
+			p.consider("states", n, () -> states.stream().flatMap((s) -> byState.get(s).stream()));
+		}
+		if (q.getAuthor() != null) {
+			Set<Task> ts = byAuthor.getOrDefault(q.getAuthor(), Collections.emptySet());
+			p.consider("author", ts.size(), ts::stream);
+		}
+		if (q.getChangedFrom() != null || q.getChangedTo() != null) {
+			long[] r = changeSeconds(q.getChangedFrom(), q.getChangedTo());
+			if (changeIndex == null) { newChangeIndex().run(); }
+			Set<Integer> changed = changeIndex.tasks(r[0], r[1]);
+			p.changed = changed;
+			p.consider("changes", changed.size(), () -> changed.stream().map(index::get).filter(Objects::nonNull));
+		}
+		if (q.getText() != null) {
+			ArrayList<Integer> hits = searchTasks(q.getText(), 0);
+			p.textHits = new HashSet<>(hits);
+			p.consider("words", hits.size(), () -> hits.stream().map(index::get).filter(Objects::nonNull));
+		}
+		return p;
+	}
+	
+	/**
+	 * @brief The state changes made between two dates.
+	 *
+	 * Dates are written like year.month.day.hour.minute.second, and may
+	 * stop at any field: from 2019.09.02 to 2019.09.08 is the whole week
+	 * from the 2nd to the 8th of September. If the changes are not
+	 * indexed by date yet, they are indexed first in this thread; the
+	 * index is kept up to date afterwards. While it is being filled in
+	 * another thread (see @ref newChangeIndex), the changes not indexed
+	 * yet are missed. Takes logarithmic time plus the time to list the
+	 * changes found.
+	 * @param from First date (null for the first change ever).
+	 * @param to Last date, included (null for the last change).
+	 * @return Returns the changes of the tasks at any depth, sorted by
+	 * date.
+	 * @throws IllegalArgumentException If a date is not valid.
+	 */
+	public ArrayList<TaskChange> getChanges(String from, String to) {
+		ArrayList<TaskChange> res = new ArrayList<>();
+		for (Map.Entry<Long, int[]> e : changeRange(from, to).entrySet()) {
+			Task t = index.get(TaskChangeIndex.id(e.getKey()));
+			for (int i : e.getValue()) { res.add(new TaskChange(t, i)); }
+		}
+		return res;
+	}
+	
+	/** The state changes made by @e author between two dates (see
+	 * @ref getChanges). */
+	public ArrayList<TaskChange> getChanges(String author, String from, String to) {
+		ArrayList<TaskChange> res = getChanges(from, to);
+		res.removeIf((c) -> !c.getState().getAuthor().equals(author));
+		return res;
+	}
+	
+	private NavigableMap<Long, int[]> changeRange(String from, String to) {
+		long[] r = changeSeconds(from, to);
+		if (changeIndex == null) { newChangeIndex().run(); }
+		return changeIndex.range(r[0], r[1]);
+	}
+	
+	/** The first and the last seconds between two dates (see @ref getChanges). */
+	private static long[] changeSeconds(String from, String to) {
+		long f = (from == null ? 0 : TaskChangeIndex.seconds(from, false));
+		long l = (to == null ? TaskChangeIndex.MAX_SECONDS : TaskChangeIndex.seconds(to, true));
+		if (f == -1 || l == -1) {
+			throw new IllegalArgumentException("Invalid date " + (f == -1 ? from : to));
+		}
+		return new long[]{f, l};
+	}
+	
+	/** The lists of the tasks of a priority (all the lists if null). */
+	private List<ArrayList<Task>> priorityLists(String prior) {
+		if (prior == null) { return Arrays.asList(highPriorTasks, medPriorTasks, lowPriorTasks); }
+		switch (prior) {
+			case "high": return Collections.singletonList(highPriorTasks);
+			case "med": return Collections.singletonList(medPriorTasks);
+			default: return Collections.singletonList(lowPriorTasks);
+		}
+	}
+	
+	/** How the tasks of a query are found. */
+	private final class QueryPlan {
+		private final TaskQuery query;
+		/** Name of the set the tasks are taken from. */
+		private String source = null;
+		/** Number of tasks in that set. */
+		private long size = Long.MAX_VALUE;
+		/** The tasks in that set. */
+		private Supplier<Stream<Task>> tasks = null;
+		/** Ids of the tasks with the words of the query (null if it has
+		 * no words). */
+		private Set<Integer> textHits = null;
+		/** Ids of the tasks changed within the dates of the query (null
+		 * if it has no such dates). */
+		private Set<Integer> changed = null;
+		/** Top-level tasks of the priority of the query (null until
+		 * needed). */
+		private Set<Task> roots = null;
+		
+		QueryPlan(TaskQuery q) { query = q; }
+		
+		/** Takes the tasks from a set if it is smaller than the current one. */
+		void consider(String s, long n, Supplier<Stream<Task>> ts) {
+			if (n < size) {
+				source = s;
+				size = n;
+				tasks = ts;
+			}
+		}
+		
+		Stream<Task> tasks() { return tasks.get().filter(this::matches); }
+		
+		private boolean matches(Task t) {
+			if (!query.matches(t)) { return false; }
+			if (textHits != null && !textHits.contains(t.getNumericId())) { return false; }
+			if (changed != null && !changed.contains(t.getNumericId())) { return false; }
+			if (query.getPriority() != null && !source.equals("tree")) {
+				if (roots == null) {
+					roots = Collections.newSetFromMap(new IdentityHashMap<>());
+					roots.addAll(priorityLists(query.getPriority()).get(0));
+				}
+				Task r = t;
+				while (r.getParentTask() != null) { r = r.getParentTask(); }
+				return roots.contains(r);
+			}
+			return true;
+		}
+		
+		@Override
+		public String toString() { return source + " (" + size + " tasks)"; }
+	}
+	
+	/** Walks the tasks of some lists in pre-order, down to some depth. */
+	private static final class TaskWalk implements Iterator<Task> {
+		/** Iterators of the lists of tasks from the top level down to the
+		 * list of the last task returned. */
+		private final ArrayDeque<Iterator<Task>> path = new ArrayDeque<>();
+		private final int maxDepth;
+		
+		TaskWalk(List<ArrayList<Task>> lists, int maxDepth) {
+			path.push(lists.stream().flatMap(List::stream).iterator());
+			this.maxDepth = maxDepth;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (!path.isEmpty() && !path.peek().hasNext()) { path.pop(); }
+			return !path.isEmpty();
+		}
+		
+		@Override
+		public Task next() {
+			if (!hasNext()) { throw new NoSuchElementException(); }
+			Task t = path.peek().next();
+			// the depth of the task is path.size() - 1
+			if (path.size() <= maxDepth && !t.getSubtasks().isEmpty()) {
+				path.push(t.getSubtasks().iterator());
+			}
+			return t;
+		}
+	}
 	
 	public Task newTask(String creator, String taskName, String taskDescr) {
 		Task t = new Task(
-			creator, makeId(),
+			creator, maximumID,
 			taskName, taskDescr,
 			Tools.getComparableDate(), Tools.getPrettyDate()
 		);
 		++maximumID;
+		if (journal != null) { journal.taskCreated(t); }
 		return t;
 	}
 	
+	// -------------------------------------------------------------------------
+	// Modifications made on the tasks themselves. They are recorded in
+	// the journal.
+	
+	// Detached tasks (see @ref openReadOnly) are not recorded.
+	
+	void stateAdded(Task t, TaskState s, TaskState prev) {
+		if (prev != t.currentState() && index.get(t.getNumericId()) == t) {
+			unindexState(t, prev);
+			indexState(t, t.currentState());
+		}
+		if (textIndex != null && index.get(t.getNumericId()) == t) { textIndex.add(t); }
+		if (changeIndex != null && index.get(t.getNumericId()) == t) {
+			changeIndex.added(t, s.getComparableDate(), t.changeCount() - 1);
+		}
+		if (journal != null && !t.isDetached()) { journal.stateAdded(t, s); }
+		if (workspace != null && !t.isDetached()) { workspace.markChanged(t); }
+		if (pageStore != null && !t.isDetached()) { pageStore.markChanged(t); }
+	}
+	void subtaskAdded(Task parent, Task t) {
+		if (index.get(parent.getNumericId()) == parent) { indexTask(t); }
+		if (journal != null && !parent.isDetached()) { journal.subtaskAdded(parent, t); }
+		if (workspace != null && !parent.isDetached()) { workspace.markChanged(parent); }
+		if (pageStore != null && !parent.isDetached()) {
+			pageStore.markChanged(parent);
+			pageStore.markTreeChanged(t);
+		}
+	}
+	void subtaskDeleted(Task parent, Task t) {
+		unindexTask(t);
+		if (journal != null && !parent.isDetached()) { journal.subtaskDeleted(parent, t.getId()); }
+		if (workspace != null && !parent.isDetached()) { workspace.markChanged(parent); }
+		if (pageStore != null && !parent.isDetached()) {
+			pageStore.markChanged(parent);
+			pageStore.markTreeChanged(t);
+		}
+	}
+	void subtaskMoved(Task parent, int id, int incr) {
+		snapshot = null;
+		if (journal != null && !parent.isDetached()) { journal.subtaskMoved(parent, Task.formatId(id), incr); }
+		if (workspace != null && !parent.isDetached()) { workspace.markChanged(parent); }
+		if (pageStore != null && !parent.isDetached()) { pageStore.markChanged(parent); }
+	}
+	
+	/** Writes the tasks of the page store that changed. */
+	private boolean writePageStore(boolean do_backup) {
+		if (storageChanged) { pageStore.markAllChanged(); }
+		if (do_backup && !backedUp) {
+			// the first save since the store was opened: keep the store
+			// as it was opened, copying it since it is modified in place
+			log.info("    Do a backup first...");
+			String[] linked = {};
+			String[] appended = {tasksFile};
+			if (!BackupManager.getInstance().backup(linked, appended)) {
+				log.error("    Could not back up page store '" + tasksFile + "'.");
+				return false;
+			}
+			backedUp = true;
+		}
+		long begin = System.nanoTime();
+		try {
+			lastSaveBytes = pageStore.save(highPriorTasks, medPriorTasks, lowPriorTasks);
+		}
+		catch (IOException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			log.error("Could not write into page store '" + tasksFile + "'.");
+			return false;
+		}
+		storageChanged = false;
+		lastSaveMillis = (System.nanoTime() - begin)/1000000;
+		log.info("    Written " + lastSaveBytes + " bytes in " + lastSaveMillis + " ms.");
+		log.info("Tasks written into page store '" + tasksFile + "' successfully.");
+		return true;
+	}
+	
+	// -------------------------------------------------------------------------
+	
 	/** Deletes all tasks from the manager. */
-	public void clearTasks() {
+	public synchronized void clearTasks() {
+		waitForCompaction();
 		maximumID = 0;
+		journal = null;
+		stamp = null;
+		workspace = null;
+		closePageStore();
+		clearIndexes();
 		for (Task t : getHighPriorTasks()) { t.deleteSubtasks(); }
 		for (Task t : getMedPriorTasks()) { t.deleteSubtasks(); }
 		for (Task t : getLowPriorTasks()) { t.deleteSubtasks(); }
@@ -0,0 +1,1218 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import todomanager.util.Logger;
+
+/**
+ * @brief Task file made of fixed-size pages, with a B+tree index of the tasks.
+ *
+ * Every task is a record of its own: its id, the id of its parent, its
+ * name, description and date, its state changes and the ids of its
+ * subtasks. A B+tree keyed by the number of the id of the tasks gives
+ * where each record is, so a single task is read with as many page reads
+ * as the height of the tree plus the pages of its record, and it is
+ * rewritten in place. The lists of top-level tasks of each priority are
+ * records too, under negative keys. Opening the store reads only its
+ * first page.
+ *
+ * The file is a sequence of pages of @ref PAGE_SIZE bytes:
+ * - Page 0 is the header: the magic bytes @ref MAGIC, the version, the
+ * page size, the number of pages, the root and the height of the tree,
+ * the first free page, the page where records are being added, the
+ * number of tasks and the largest id.
+ * - Leaves of the tree: the number of keys, the next leaf, the keys
+ * (4 bytes each) and the locations of their records (8 bytes each).
+ * - Inner nodes of the tree: the number of keys, the children and the
+ * keys (4 bytes each).
+ * - Heap pages: slotted pages with the records of at most
+ * @ref MAX_INLINE bytes. Their location is the page and the slot.
+ * - Overflow pages: chains of pages with the larger records.
+ * - Free pages, in a list.
+ *
+ * Pages are read through a pool of buffers (see @ref setCacheSize).
+ * Modified pages are written when they leave the pool and when the
+ * changes are committed. Before a page is modified for the first time
+ * after a commit, its contents are appended to a rollback file next to the
+ * store. @ref commit deletes it once all pages are written, and opening a
+ * store with a rollback file puts those pages back: a crash leaves the
+ * store as it was at the last commit.
+ *
+ * Deleting keys does not merge nodes of the tree, and the space freed in
+ * a heap page is reused by the records of that same page only (or when
+ * the page becomes empty).
+ * @author Lluís Alemany Puig
+ */
+public class TaskPageStore {
+
+	/** Extension of the page stores. */
+	public static final String EXTENSION = ".tlmp";
+	/** First bytes of a page store. */
+	static final byte[] MAGIC = { 'T', 'L', 'M', 'P' };
+	/** First bytes of a rollback file. */
+	private static final byte[] ROLLBACK_MAGIC = { 'T', 'L', 'M', 'R' };
+	/** Version of the format. */
+	private static final int VERSION = 1;
+	/** Size of the pages. */
+	static final int PAGE_SIZE = 4096;
+	/** Largest record stored in a heap page. */
+	static final int MAX_INLINE = PAGE_SIZE/4;
+
+	// types of pages
+	private static final byte FREE = 0, LEAF = 1, INNER = 2, HEAP = 3, OVERFLOW = 4;
+
+	// fields of the header
+	private static final int H_VERSION = 4, H_PAGE_SIZE = 8, H_PAGES = 12, H_ROOT = 16,
+		H_HEIGHT = 20, H_FREE = 24, H_HEAP = 28, H_TASKS = 32, H_MAXID = 36;
+
+	/** Keys of the lists of top-level tasks. */
+	private static final int HIGH_KEY = -1, MED_KEY = -2, LOW_KEY = -3;
+
+	/** Header of the pages of the tree and of the heap pages. */
+	private static final int PAGE_HEADER = 8;
+	/** Keys of a leaf. */
+	private static final int LEAF_KEYS = (PAGE_SIZE - PAGE_HEADER)/12;
+	/** Keys of an inner node (it has one more child). */
+	private static final int INNER_KEYS = (PAGE_SIZE - PAGE_HEADER - 4)/8;
+	/** Header of the overflow pages: type, next page, length. */
+	private static final int OVERFLOW_HEADER = 12;
+	/** Slot of the locations of records in overflow pages. */
+	private static final int OVERFLOW_SLOT = 0xffff;
+
+	private static final byte RECORD_TASK = 1, RECORD_LIST = 2;
+
+	/** The file of the store. */
+	private final String filename;
+	/** Channel of the file. */
+	private final FileChannel ch;
+	/** Pages in the pool, least recently used first. */
+	private final LinkedHashMap<Integer, ByteBuffer> pool = new LinkedHashMap<>(64, 0.75f, true);
+	/** Pages of the pool modified since they were read. */
+	private final HashSet<Integer> dirty = new HashSet<>();
+	/** Maximum number of pages in the pool. */
+	private int cacheSize = 256;
+
+	/** Rollback file (null until a page is modified after a commit). */
+	private FileChannel rollback = null;
+	/** Pages saved in the rollback file. */
+	private final HashSet<Integer> saved = new HashSet<>();
+	/** Has the rollback file been written since it was last forced to disk? */
+	private boolean rollbackPending = false;
+	/** Number of pages at the last commit. */
+	private int committedPages;
+
+	// the header
+	private int pages;
+	private int root;
+	private int height;
+	private int freeList;
+	private int heapPage;
+	private int tasks;
+	private int maximumID;
+	private boolean headerChanged = false;
+
+	/** Tasks to be saved by @ref save, by id. */
+	private final HashMap<String, Task> changed = new HashMap<>();
+	/** Have the lists of top-level tasks changed? */
+	private boolean listChanged = false;
+	/** Have all the tasks changed? */
+	private boolean allChanged = false;
+
+	private TaskPageStore(String _filename, FileChannel _ch) {
+		filename = _filename;
+		ch = _ch;
+	}
+
+	/** Is the file a page store (or a new file that should be one)? */
+	public static boolean isPageStore(String filename) {
+		Path p = Paths.get(filename);
+		if (!Files.exists(p)) { return filename.endsWith(EXTENSION); }
+		if (!Files.isRegularFile(p)) { return false; }
+		try (InputStream in = Files.newInputStream(p)) {
+			byte[] head = new byte[MAGIC.length];
+			int n = in.read(head);
+			return n == MAGIC.length && Arrays.equals(head, MAGIC);
+		}
+		catch (IOException ex) {
+			return false;
+		}
+	}
+
+	private static Path rollbackPath(String filename) {
+		return Paths.get(filename + ".rollback");
+	}
+
+	/**
+	 * @brief Opens a page store, creating it if it does not exist.
+	 *
+	 * If the store was not closed properly, the changes made after its
+	 * last commit are undone.
+	 * @param filename The file of the store.
+	 * @return Returns the store.
+	 * @throws IOException When the file could not be opened or it is not
+	 * a page store.
+	 */
+	public static TaskPageStore open(String filename) throws IOException {
+		Path path = Paths.get(filename);
+		FileChannel ch = FileChannel.open(
+			path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE
+		);
+		TaskPageStore s = new TaskPageStore(filename, ch);
+		try {
+			s.recover();
+			if (ch.size() == 0) { s.initialize(); }
+			s.readHeader();
+		}
+		catch (IOException ex) {
+			ch.close();
+			throw ex;
+		}
+		return s;
+	}
+
+	/** Closes the store. Changes not committed are lost. */
+	public synchronized void close() throws IOException {
+		if (rollback != null) {
+			rollback.close();
+			rollback = null;
+		}
+		ch.close();
+		// the pages are put back the next time the store is opened
+		pool.clear();
+		dirty.clear();
+	}
+
+	public String getFilename() { return filename; }
+	public synchronized int getTaskCount() { return tasks; }
+	/** Largest task id in the store (-1 if there are no tasks). */
+	public synchronized int getMaximumID() { return maximumID; }
+
+	/**
+	 * @brief Sets the number of pages kept in memory.
+	 * @param n Number of pages (at least 16).
+	 */
+	public synchronized void setCacheSize(int n) {
+		cacheSize = Math.max(16, n);
+	}
+
+	private void initialize() throws IOException {
+		pages = 2;
+		root = 1;
+		height = 1;
+		freeList = 0;
+		heapPage = 0;
+		tasks = 0;
+		maximumID = -1;
+		ByteBuffer leaf = ByteBuffer.allocate(PAGE_SIZE);
+		leaf.put(0, LEAF);
+		writePage(1, leaf);
+		writeHeader();
+		ch.force(true);
+		committedPages = pages;
+	}
+
+	private void readHeader() throws IOException {
+		ByteBuffer h = ByteBuffer.allocate(PAGE_SIZE);
+		readPage(0, h);
+		for (int i = 0; i < MAGIC.length; ++i) {
+			if (h.get(i) != MAGIC[i]) {
+				throw new IOException("File '" + filename + "' is not a page store.");
+			}
+		}
+		if (h.getInt(H_VERSION) < 1 || h.getInt(H_VERSION) > VERSION) {
+			throw new IOException("Unsupported version " + h.getInt(H_VERSION) + " of page store '" + filename + "'.");
+		}
+		if (h.getInt(H_PAGE_SIZE) != PAGE_SIZE) {
+			throw new IOException("Unsupported page size " + h.getInt(H_PAGE_SIZE) + " of page store '" + filename + "'.");
+		}
+		pages = h.getInt(H_PAGES);
+		root = h.getInt(H_ROOT);
+		height = h.getInt(H_HEIGHT);
+		freeList = h.getInt(H_FREE);
+		heapPage = h.getInt(H_HEAP);
+		tasks = h.getInt(H_TASKS);
+		maximumID = h.getInt(H_MAXID);
+		committedPages = pages;
+		headerChanged = false;
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer h = ByteBuffer.allocate(PAGE_SIZE);
+		h.put(MAGIC);
+		h.putInt(H_VERSION, VERSION);
+		h.putInt(H_PAGE_SIZE, PAGE_SIZE);
+		h.putInt(H_PAGES, pages);
+		h.putInt(H_ROOT, root);
+		h.putInt(H_HEIGHT, height);
+		h.putInt(H_FREE, freeList);
+		h.putInt(H_HEAP, heapPage);
+		h.putInt(H_TASKS, tasks);
+		h.putInt(H_MAXID, maximumID);
+		writePage(0, h);
+	}
+
+	// -------------------------------------------------------------------------
+	// Pages
+
+	private void readPage(int p, ByteBuffer b) throws IOException {
+		b.clear();
+		long pos = (long)p*PAGE_SIZE;
+		while (b.hasRemaining()) {
+			if (ch.read(b, pos + b.position()) < 0) {
+				throw new EOFException("Page " + p + " is beyond the end of page store '" + filename + "'.");
+			}
+		}
+	}
+
+	private void writePage(int p, ByteBuffer b) throws IOException {
+		ByteBuffer d = b.duplicate();
+		d.clear();
+		long pos = (long)p*PAGE_SIZE;
+		while (d.hasRemaining()) {
+			ch.write(d, pos + d.position());
+		}
+	}
+
+	/** A page, to be read. */
+	private ByteBuffer page(int p) throws IOException {
+		ByteBuffer b = pool.get(p);
+		if (b != null) { return b; }
+		b = ByteBuffer.allocate(PAGE_SIZE);
+		// new pages are not in the file until they are written
+		if ((long)p*PAGE_SIZE < ch.size()) { readPage(p, b); }
+		pool.put(p, b);
+		evict();
+		return b;
+	}
+
+	/** A page, to be modified. */
+	private ByteBuffer modify(int p) throws IOException {
+		if (p < committedPages && !saved.contains(p)) { save(p); }
+		ByteBuffer b = page(p);
+		dirty.add(p);
+		return b;
+	}
+
+	/** Writes the least recently used pages until the pool is small enough. */
+	private void evict() throws IOException {
+		Iterator<Map.Entry<Integer, ByteBuffer>> it = pool.entrySet().iterator();
+		while (pool.size() > cacheSize && it.hasNext()) {
+			Map.Entry<Integer, ByteBuffer> e = it.next();
+			if (dirty.remove(e.getKey())) {
+				syncRollback();
+				writePage(e.getKey(), e.getValue());
+			}
+			it.remove();
+		}
+	}
+
+	/** Appends the contents of a page, as of the last commit, to the rollback file. */
+	private void save(int p) throws IOException {
+		if (rollback == null) {
+			rollback = FileChannel.open(
+				rollbackPath(filename), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+			);
+			ByteBuffer h = ByteBuffer.allocate(8);
+			h.put(ROLLBACK_MAGIC).putInt(committedPages).flip();
+			while (h.hasRemaining()) { rollback.write(h); }
+		}
+		ByteBuffer e = ByteBuffer.allocate(4 + PAGE_SIZE);
+		e.putInt(p);
+		// pages not yet modified are the same in the pool and in the file
+		ByteBuffer b = pool.get(p);
+		if (b != null) { e.put(b.array()); }
+		else {
+			ByteBuffer c = ByteBuffer.allocate(PAGE_SIZE);
+			readPage(p, c);
+			e.put(c);
+		}
+		e.flip();
+		while (e.hasRemaining()) { rollback.write(e); }
+		saved.add(p);
+		rollbackPending = true;
+	}
+
+	/** Makes sure the rollback file is on disk before the store is modified. */
+	private void syncRollback() throws IOException {
+		if (rollbackPending) {
+			rollback.force(true);
+			rollbackPending = false;
+		}
+	}
+
+	/** Puts back the pages of the rollback file, if there is one. */
+	private void recover() throws IOException {
+		Path rp = rollbackPath(filename);
+		if (!Files.exists(rp)) { return; }
+		try (FileChannel r = FileChannel.open(rp, StandardOpenOption.READ)) {
+			ByteBuffer h = ByteBuffer.allocate(8);
+			while (h.hasRemaining() && r.read(h) > 0) { }
+			byte[] m = new byte[ROLLBACK_MAGIC.length];
+			h.flip();
+			// an incomplete header: the store was not modified yet
+			if (h.remaining() == 8 && Arrays.equals(get(h, m), ROLLBACK_MAGIC)) {
+				int n = h.getInt();
+				ByteBuffer e = ByteBuffer.allocate(4 + PAGE_SIZE);
+				while (true) {
+					e.clear();
+					while (e.hasRemaining() && r.read(e) > 0) { }
+					// an incomplete page was not written into the store
+					if (e.hasRemaining()) { break; }
+					e.flip();
+					int p = e.getInt();
+					writePage(p, e.slice());
+				}
+				ch.truncate((long)n*PAGE_SIZE);
+				ch.force(true);
+			}
+		}
+		Files.delete(rp);
+		Logger.getInstance().warning("Page store '" + filename + "' was restored to its last commit.");
+	}
+
+	private static byte[] get(ByteBuffer b, byte[] dst) {
+		b.get(dst);
+		return dst;
+	}
+
+	/** A free page (its contents are undefined). */
+	private int allocate() throws IOException {
+		headerChanged = true;
+		if (freeList != 0) {
+			int p = freeList;
+			freeList = page(p).getInt(4);
+			return p;
+		}
+		return pages++;
+	}
+
+	private void free(int p) throws IOException {
+		ByteBuffer b = modify(p);
+		b.put(0, FREE);
+		b.putInt(4, freeList);
+		freeList = p;
+		headerChanged = true;
+	}
+
+	/**
+	 * @brief Makes the changes permanent.
+	 *
+	 * Writes the pages modified and deletes the rollback file.
+	 * @throws IOException When the pages could not be written. The changes
+	 * are undone the next time the store is opened.
+	 */
+	public synchronized void commit() throws IOException {
+		if (dirty.isEmpty() && !headerChanged && rollback == null) { return; }
+		if (!saved.contains(0)) { save(0); }
+		syncRollback();
+		for (int p : dirty) {
+			writePage(p, pool.get(p));
+		}
+		dirty.clear();
+		writeHeader();
+		ch.force(true);
+		headerChanged = false;
+
+		// commit point
+		if (rollback != null) {
+			rollback.close();
+			rollback = null;
+			Files.delete(rollbackPath(filename));
+		}
+		saved.clear();
+		committedPages = pages;
+	}
+
+	// -------------------------------------------------------------------------
+	// The tree
+
+	private static int leafKey(ByteBuffer b, int i) { return b.getInt(PAGE_HEADER + 4*i); }
+	private static long leafValue(ByteBuffer b, int i) { return b.getLong(PAGE_HEADER + 4*LEAF_KEYS + 8*i); }
+	private static int innerChild(ByteBuffer b, int i) { return b.getInt(PAGE_HEADER + 4*i); }
+	private static int innerKey(ByteBuffer b, int i) { return b.getInt(PAGE_HEADER + 4*(INNER_KEYS + 1) + 4*i); }
+	private static int count(ByteBuffer b) { return b.getShort(2); }
+
+	/** Index of the child of an inner node where a key is. */
+	private static int childIndex(ByteBuffer b, int key) {
+		int lo = 0, hi = count(b);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (innerKey(b, mid) <= key) { lo = mid + 1; }
+			else { hi = mid; }
+		}
+		return lo;
+	}
+
+	/** Index of a key in a leaf, or -(insertion point) - 1. */
+	private static int leafIndex(ByteBuffer b, int key) {
+		int lo = 0, hi = count(b) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int k = leafKey(b, mid);
+			if (k < key) { lo = mid + 1; }
+			else if (k > key) { hi = mid - 1; }
+			else { return mid; }
+		}
+		return -lo - 1;
+	}
+
+	/** The leaf where a key is. */
+	private int findLeaf(int key) throws IOException {
+		int p = root;
+		for (int h = height; h > 1; --h) {
+			ByteBuffer b = page(p);
+			p = innerChild(b, childIndex(b, key));
+		}
+		return p;
+	}
+
+	/** Location of the record of a key, or -1. */
+	private long lookup(int key) throws IOException {
+		ByteBuffer b = page(findLeaf(key));
+		int i = leafIndex(b, key);
+		return i < 0 ? -1 : leafValue(b, i);
+	}
+
+	private static void writeLeaf(ByteBuffer b, int[] keys, long[] values, int from, int to, int next) {
+		b.put(0, LEAF);
+		b.putShort(2, (short)(to - from));
+		b.putInt(4, next);
+		for (int i = from; i < to; ++i) {
+			b.putInt(PAGE_HEADER + 4*(i - from), keys[i]);
+			b.putLong(PAGE_HEADER + 4*LEAF_KEYS + 8*(i - from), values[i]);
+		}
+	}
+
+	private static void writeInner(ByteBuffer b, int[] keys, int[] children, int from, int to) {
+		b.put(0, INNER);
+		b.putShort(2, (short)(to - from));
+		for (int i = from; i < to; ++i) {
+			b.putInt(PAGE_HEADER + 4*(INNER_KEYS + 1) + 4*(i - from), keys[i]);
+		}
+		for (int i = from; i <= to; ++i) {
+			b.putInt(PAGE_HEADER + 4*(i - from), children[i]);
+		}
+	}
+
+	/** Sets the location of the record of a key. */
+	private void insert(int key, long value) throws IOException {
+		int[] path = new int[height];
+		int p = root;
+		for (int h = height; h > 1; --h) {
+			path[height - h] = p;
+			ByteBuffer b = page(p);
+			p = innerChild(b, childIndex(b, key));
+		}
+		path[height - 1] = p;
+
+		ByteBuffer leaf = modify(p);
+		int i = leafIndex(leaf, key);
+		if (i >= 0) {
+			leaf.putLong(PAGE_HEADER + 4*LEAF_KEYS + 8*i, value);
+			return;
+		}
+		i = -i - 1;
+		int n = count(leaf);
+		int[] keys = new int[n + 1];
+		long[] values = new long[n + 1];
+		for (int j = 0, k = 0; j <= n; ++j) {
+			if (j == i) {
+				keys[j] = key;
+				values[j] = value;
+			}
+			else {
+				keys[j] = leafKey(leaf, k);
+				values[j] = leafValue(leaf, k);
+				++k;
+			}
+		}
+		if (n < LEAF_KEYS) {
+			writeLeaf(leaf, keys, values, 0, n + 1, leaf.getInt(4));
+			return;
+		}
+
+		// split the leaf, and add the first key of the new one to its parent
+		int half = (n + 1)/2;
+		int right = allocate();
+		ByteBuffer r = modify(right);
+		writeLeaf(r, keys, values, half, n + 1, leaf.getInt(4));
+		writeLeaf(leaf, keys, values, 0, half, right);
+		int sep = keys[half];
+
+		for (int level = height - 2; level >= 0; --level) {
+			ByteBuffer b = modify(path[level]);
+			int m = count(b);
+			int c = childIndex(b, sep);
+			int[] ks = new int[m + 1];
+			int[] cs = new int[m + 2];
+			for (int j = 0, k = 0; j <= m; ++j) {
+				if (j == c) { ks[j] = sep; }
+				else { ks[j] = innerKey(b, k++); }
+			}
+			for (int j = 0, k = 0; j <= m + 1; ++j) {
+				if (j == c + 1) { cs[j] = right; }
+				else { cs[j] = innerChild(b, k++); }
+			}
+			if (m < INNER_KEYS) {
+				writeInner(b, ks, cs, 0, m + 1);
+				return;
+			}
+			// the middle key goes up
+			int mid = (m + 1)/2;
+			right = allocate();
+			ByteBuffer nb = modify(right);
+			writeInner(nb, ks, cs, mid + 1, m + 1);
+			writeInner(b, ks, cs, 0, mid);
+			sep = ks[mid];
+		}
+
+		// the root was split
+		int newRoot = allocate();
+		ByteBuffer b = modify(newRoot);
+		writeInner(b, new int[]{ sep }, new int[]{ root, right }, 0, 1);
+		root = newRoot;
+		++height;
+		headerChanged = true;
+	}
+
+	/** Removes a key. Returns the location of its record, or -1. */
+	private long remove(int key) throws IOException {
+		int p = findLeaf(key);
+		ByteBuffer b = page(p);
+		int i = leafIndex(b, key);
+		if (i < 0) { return -1; }
+		long loc = leafValue(b, i);
+		b = modify(p);
+		int n = count(b);
+		for (int j = i; j < n - 1; ++j) {
+			b.putInt(PAGE_HEADER + 4*j, leafKey(b, j + 1));
+			b.putLong(PAGE_HEADER + 4*LEAF_KEYS + 8*j, leafValue(b, j + 1));
+		}
+		b.putShort(2, (short)(n - 1));
+		return loc;
+	}
+
+	// -------------------------------------------------------------------------
+	// Records
+
+	private static int slotOffset(ByteBuffer b, int s) { return b.getShort(PAGE_HEADER + 4*s) & 0xffff; }
+	private static int slotLength(ByteBuffer b, int s) { return b.getShort(PAGE_HEADER + 4*s + 2) & 0xffff; }
+	private static int slots(ByteBuffer b) { return b.getShort(2) & 0xffff; }
+	/** Start of the records of a heap page (they are at its end). */
+	private static int dataStart(ByteBuffer b) { return b.getShort(4) & 0xffff; }
+
+	private static void setSlot(ByteBuffer b, int s, int offset, int length) {
+		b.putShort(PAGE_HEADER + 4*s, (short)offset);
+		b.putShort(PAGE_HEADER + 4*s + 2, (short)length);
+	}
+
+	private static long location(int page, int slot) { return ((long)page << 16) | slot; }
+	private static int locationPage(long loc) { return (int)(loc >>> 16); }
+	private static int locationSlot(long loc) { return (int)(loc & 0xffff); }
+
+	private byte[] readRecord(long loc) throws IOException {
+		int p = locationPage(loc);
+		int s = locationSlot(loc);
+		if (s != OVERFLOW_SLOT) {
+			ByteBuffer b = page(p);
+			if (b.get(0) != HEAP || s >= slots(b) || slotOffset(b, s) == 0) {
+				throw new IOException("Malformed page store (page " + p + "): no record in slot " + s);
+			}
+			byte[] r = new byte[slotLength(b, s)];
+			ByteBuffer d = b.duplicate();
+			d.position(slotOffset(b, s));
+			d.get(r);
+			return r;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while (p != 0) {
+			ByteBuffer b = page(p);
+			if (b.get(0) != OVERFLOW) {
+				throw new IOException("Malformed page store (page " + p + "): not an overflow page");
+			}
+			out.write(b.array(), OVERFLOW_HEADER, b.getInt(8));
+			p = b.getInt(4);
+		}
+		return out.toByteArray();
+	}
+
+	/** Frees the space of a record. */
+	private void freeRecord(long loc) throws IOException {
+		int p = locationPage(loc);
+		int s = locationSlot(loc);
+		if (s == OVERFLOW_SLOT) {
+			while (p != 0) {
+				int next = page(p).getInt(4);
+				free(p);
+				p = next;
+			}
+			return;
+		}
+		ByteBuffer b = modify(p);
+		setSlot(b, s, 0, 0);
+		boolean empty = true;
+		for (int i = 0; i < slots(b) && empty; ++i) {
+			empty = slotOffset(b, i) == 0;
+		}
+		if (empty && p != heapPage) { free(p); }
+	}
+
+	/** Free space of a heap page, once compacted (counting a new slot). */
+	private static int freeSpace(ByteBuffer b) {
+		int used = PAGE_HEADER + 4*(slots(b) + 1);
+		for (int i = 0; i < slots(b); ++i) {
+			used += slotLength(b, i);
+		}
+		return PAGE_SIZE - used;
+	}
+
+	/** Moves the records of a heap page to its end. */
+	private static void compact(ByteBuffer b) {
+		byte[] copy = b.array().clone();
+		int end = PAGE_SIZE;
+		for (int i = 0; i < slots(b); ++i) {
+			int o = slotOffset(b, i);
+			if (o == 0) { continue; }
+			int len = slotLength(b, i);
+			end -= len;
+			System.arraycopy(copy, o, b.array(), end, len);
+			setSlot(b, i, end, len);
+		}
+		b.putShort(4, (short)end);
+	}
+
+	/** Stores a record in a heap page with enough space. Returns its slot. */
+	private static int place(ByteBuffer b, byte[] r, int slot) {
+		int n = slots(b);
+		if (slot < 0) {
+			for (int i = 0; i < n && slot < 0; ++i) {
+				if (slotOffset(b, i) == 0) { slot = i; }
+			}
+		}
+		if (slot < 0) {
+			slot = n;
+			b.putShort(2, (short)(n + 1));
+			setSlot(b, slot, 0, 0);
+		}
+		if (dataStart(b) - r.length < PAGE_HEADER + 4*slots(b)) { compact(b); }
+		int o = dataStart(b) - r.length;
+		System.arraycopy(r, 0, b.array(), o, r.length);
+		setSlot(b, slot, o, r.length);
+		b.putShort(4, (short)o);
+		return slot;
+	}
+
+	/**
+	 * @brief Stores a record.
+	 * @param r The record.
+	 * @param old Location of the previous version of the record, or -1.
+	 * @return Returns the location of the record.
+	 */
+	private long writeRecord(byte[] r, long old) throws IOException {
+		if (old != -1 && locationSlot(old) != OVERFLOW_SLOT && r.length <= MAX_INLINE) {
+			// in place, if the page has room for it
+			int p = locationPage(old);
+			int s = locationSlot(old);
+			ByteBuffer b = modify(p);
+			int len = slotLength(b, s);
+			if (r.length <= len) {
+				System.arraycopy(r, 0, b.array(), slotOffset(b, s), r.length);
+				setSlot(b, s, slotOffset(b, s), r.length);
+				return old;
+			}
+			if (freeSpace(b) + 4 + len >= r.length) {
+				setSlot(b, s, 0, 0);
+				place(b, r, s);
+				return old;
+			}
+		}
+		if (old != -1) { freeRecord(old); }
+
+		if (r.length <= MAX_INLINE) {
+			ByteBuffer b = (heapPage == 0 ? null : page(heapPage));
+			if (b == null || freeSpace(b) < r.length) {
+				heapPage = allocate();
+				b = modify(heapPage);
+				b.put(0, HEAP);
+				b.putShort(2, (short)0);
+				b.putShort(4, (short)PAGE_SIZE);
+				headerChanged = true;
+			}
+			else {
+				b = modify(heapPage);
+			}
+			return location(heapPage, place(b, r, -1));
+		}
+
+		// a chain of overflow pages
+		int first = 0, prev = 0;
+		for (int o = 0; o < r.length; o += PAGE_SIZE - OVERFLOW_HEADER) {
+			int len = Math.min(PAGE_SIZE - OVERFLOW_HEADER, r.length - o);
+			int p = allocate();
+			ByteBuffer b = modify(p);
+			b.put(0, OVERFLOW);
+			b.putInt(4, 0);
+			b.putInt(8, len);
+			System.arraycopy(r, o, b.array(), OVERFLOW_HEADER, len);
+			if (prev == 0) { first = p; }
+			else { modify(prev).putInt(4, p); }
+			prev = p;
+		}
+		return location(first, OVERFLOW_SLOT);
+	}
+
+	// -------------------------------------------------------------------------
+	// Encoding of the records
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if (n < 0) { return null; }
+		byte[] b = new byte[n];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] encodeTask(Task t) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_TASK);
+		writeString(out, t.getId());
+		writeString(out, t.getParentTask() == null ? null : t.getParentTask().getId());
+		writeString(out, t.getName());
+		writeString(out, t.getDescription());
+		writeString(out, t.getCompDate());
+		writeString(out, t.getPrettyDate());
+		ArrayList<TaskState> changes = t.peekChanges();
+		out.writeInt(changes.size());
+		for (TaskState s : changes) {
+			out.writeByte(s.getState().ordinal());
+			writeString(out, s.getAuthor());
+			writeString(out, s.getComparableDate());
+			writeString(out, s.getPrettyDate());
+			writeString(out, s.getReason());
+			writeString(out, s.getPreviousTaskName());
+			writeString(out, s.getNextTaskName());
+			writeString(out, s.getPreviousTaskDescription());
+			writeString(out, s.getNextTaskDescription());
+		}
+		out.writeInt(t.getSubtasks().size());
+		for (Task st : t.getSubtasks()) {
+			writeString(out, st.getId());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/** A task decoded from its record, with the ids of its parent and subtasks. */
+	private static class Record {
+		Task task;
+		String parent;
+		String[] subtasks;
+	}
+
+	private Record decodeTask(byte[] r, boolean detached) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(r));
+		if (in.readByte() != RECORD_TASK) {
+			throw new IOException("Malformed page store '" + filename + "': not a task record");
+		}
+		Record rec = new Record();
+		String id = readString(in);
+		rec.parent = readString(in);
+		String name = readString(in);
+		String descr = readString(in);
+		String cdate = readString(in);
+		String pdate = readString(in);
+		int n = in.readInt();
+		if (n <= 0) {
+			throw new IOException("Malformed page store '" + filename + "': task '" + id + "' has no changes");
+		}
+		ArrayList<TaskState> changes = new ArrayList<>(n);
+		TaskStateEnum[] states = TaskStateEnum.values();
+		for (int i = 0; i < n; ++i) {
+			int s = in.readByte();
+			if (s < 0 || s >= states.length) {
+				throw new IOException("Malformed page store '" + filename + "': unknown state " + s);
+			}
+			String a = readString(in), cd = readString(in), pd = readString(in), why = readString(in);
+			String pTN = readString(in), nTN = readString(in), pTD = readString(in), nTD = readString(in);
+			changes.add(new TaskState(a, cd, pd, why, pTN, nTN, pTD, nTD, states[s]));
+		}
+		rec.subtasks = new String[in.readInt()];
+		for (int i = 0; i < rec.subtasks.length; ++i) {
+			rec.subtasks[i] = readString(in);
+		}
+		rec.task = new Task(changes.get(0).getAuthor(), key(id), name, descr, cdate, pdate);
+		rec.task.hardSetChanges(changes);
+		if (detached) { rec.task.setDetached(); }
+		return rec;
+	}
+
+	private static byte[] encodeList(List<Task> ts) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 8*ts.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_LIST);
+		out.writeInt(ts.size());
+		for (Task t : ts) {
+			writeString(out, t.getId());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private List<String> decodeList(int key) throws IOException {
+		ArrayList<String> ids = new ArrayList<>();
+		long loc = lookup(key);
+		if (loc == -1) { return ids; }
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecord(loc)));
+		if (in.readByte() != RECORD_LIST) {
+			throw new IOException("Malformed page store '" + filename + "': not a list record");
+		}
+		int n = in.readInt();
+		ids.ensureCapacity(n);
+		for (int i = 0; i < n; ++i) {
+			ids.add(readString(in));
+		}
+		return ids;
+	}
+
+	/** The key of a task id. */
+	private static int key(String id) throws IOException {
+		int k = Task.parseId(id);
+		if (k == -1) { throw new IOException("Task id '" + id + "' is not a number."); }
+		return k;
+	}
+
+	// -------------------------------------------------------------------------
+	// Tasks
+
+	/**
+	 * @brief Reads a single task.
+	 *
+	 * The task is detached (see @ref Task.isDetached), and it has its
+	 * state changes but neither its parent nor its subtasks (see
+	 * @ref getParentId and @ref getSubtaskIds).
+	 * @param id Id of the task.
+	 * @return Returns the task, or null if there is no task with that id.
+	 * @throws IOException When the task could not be read.
+	 */
+	public synchronized Task getTask(String id) throws IOException {
+		Record r = record(id);
+		return r == null ? null : r.task;
+	}
+
+	/** Id of the parent of a task (null for top-level tasks and unknown tasks). */
+	public synchronized String getParentId(String id) throws IOException {
+		Record r = record(id);
+		return r == null ? null : r.parent;
+	}
+
+	/** Ids of the subtasks of a task (empty for unknown tasks). */
+	public synchronized List<String> getSubtaskIds(String id) throws IOException {
+		Record r = record(id);
+		return r == null ? new ArrayList<>() : Arrays.asList(r.subtasks);
+	}
+
+	public synchronized List<String> getHighPriorIds() throws IOException { return decodeList(HIGH_KEY); }
+	public synchronized List<String> getMedPriorIds() throws IOException { return decodeList(MED_KEY); }
+	public synchronized List<String> getLowPriorIds() throws IOException { return decodeList(LOW_KEY); }
+
+	private Record record(String id) throws IOException {
+		long loc = lookup(key(id));
+		return loc == -1 ? null : decodeTask(readRecord(loc), true);
+	}
+
+	/**
+	 * @brief Stores a single task, replacing its previous version.
+	 *
+	 * Its subtasks are not stored. The change is permanent after
+	 * @ref commit.
+	 * @param t The task.
+	 * @throws IOException When the task could not be stored.
+	 */
+	public synchronized void putTask(Task t) throws IOException {
+		storeTask(t);
+	}
+
+	/** Stores a task. Returns the length of its record. */
+	private int storeTask(Task t) throws IOException {
+		byte[] r = encodeTask(t);
+		int k = t.getNumericId();
+		long old = lookup(k);
+		long loc = writeRecord(r, old);
+		if (loc != old) { insert(k, loc); }
+		if (old == -1) { ++tasks; }
+		if (k > maximumID) { maximumID = k; }
+		headerChanged = true;
+		return r.length;
+	}
+
+	/**
+	 * @brief Removes a single task (not its subtasks).
+	 * @param id Id of the task.
+	 * @return Returns false if there was no task with that id.
+	 * @throws IOException When the task could not be removed.
+	 */
+	public synchronized boolean deleteTask(String id) throws IOException {
+		return removeTask(key(id));
+	}
+
+	private boolean removeTask(int k) throws IOException {
+		long loc = remove(k);
+		if (loc == -1) { return false; }
+		freeRecord(loc);
+		--tasks;
+		headerChanged = true;
+		return true;
+	}
+
+	/**
+	 * @brief Stores the lists of top-level tasks.
+	 *
+	 * Only their ids are stored (see @ref putTask).
+	 */
+	public synchronized void putPriorities(List<Task> high, List<Task> med, List<Task> low) throws IOException {
+		storePriorities(high, med, low);
+	}
+
+	/** Stores the lists of top-level tasks. Returns the length of their records. */
+	private int storePriorities(List<Task> high, List<Task> med, List<Task> low) throws IOException {
+		int[] keys = { HIGH_KEY, MED_KEY, LOW_KEY };
+		List<List<Task>> lists = Arrays.asList(high, med, low);
+		int bytes = 0;
+		for (int i = 0; i < 3; ++i) {
+			byte[] r = encodeList(lists.get(i));
+			long old = lookup(keys[i]);
+			long loc = writeRecord(r, old);
+			if (loc != old) { insert(keys[i], loc); }
+			bytes += r.length;
+		}
+		return bytes;
+	}
+
+	/** Visits the keys and locations of all the records, in order. */
+	private void scan(BiConsumer<Integer, Long> f) throws IOException {
+		int p = root;
+		for (int h = height; h > 1; --h) {
+			p = innerChild(page(p), 0);
+		}
+		while (p != 0) {
+			ByteBuffer b = page(p);
+			int n = count(b);
+			int next = b.getInt(4);
+			for (int i = 0; i < n; ++i) {
+				f.accept(leafKey(b, i), leafValue(b, i));
+			}
+			p = next;
+		}
+	}
+
+	/**
+	 * @brief Reads all the tasks.
+	 *
+	 * The records are read in the order of the tree, and then linked.
+	 * @return Returns the tasks, in a task file without generation.
+	 * @throws IOException When the store is malformed.
+	 */
+	synchronized TaskFile readAll() throws IOException {
+		ArrayList<Long> locs = new ArrayList<>();
+		scan((k, loc) -> { if (k >= 0) { locs.add(loc); } });
+		HashMap<String, Record> records = new HashMap<>(2*locs.size());
+		for (long loc : locs) {
+			Record r = decodeTask(readRecord(loc), false);
+			records.put(r.task.getId(), r);
+		}
+		for (Record r : records.values()) {
+			ArrayList<Task> subtasks = new ArrayList<>(r.subtasks.length);
+			for (String id : r.subtasks) {
+				Record s = records.get(id);
+				if (s == null) {
+					throw new IOException("Malformed page store '" + filename + "': task '" + id + "' is missing");
+				}
+				subtasks.add(s.task);
+			}
+			r.task.hardSetSubtasks(subtasks);
+		}
+
+		TaskFile f = new TaskFile();
+		f.maximumID = maximumID;
+		List<List<String>> ids = Arrays.asList(getHighPriorIds(), getMedPriorIds(), getLowPriorIds());
+		List<ArrayList<Task>> lists = Arrays.asList(f.high, f.med, f.low);
+		for (int i = 0; i < 3; ++i) {
+			for (String id : ids.get(i)) {
+				Record r = records.get(id);
+				if (r == null) {
+					throw new IOException("Malformed page store '" + filename + "': task '" + id + "' is missing");
+				}
+				lists.get(i).add(r.task);
+			}
+		}
+		changed.clear();
+		listChanged = false;
+		allChanged = false;
+		return f;
+	}
+
+	// -------------------------------------------------------------------------
+	// Changes of the Task Manager
+
+	/** Marks a task as changed. */
+	void markChanged(Task t) { changed.put(t.getId(), t); }
+
+	/** Marks a task and all its subtasks as changed. */
+	void markTreeChanged(Task t) {
+		changed.put(t.getId(), t);
+		for (Task st : t.getSubtasks()) { markTreeChanged(st); }
+	}
+
+	/** Marks the lists of top-level tasks as changed. */
+	void markListChanged() { listChanged = true; }
+
+	/** Marks all tasks as changed (e.g., when the store is new). */
+	void markAllChanged() { allChanged = true; }
+
+	/** Is a task (still) among the tasks of the Task Manager? */
+	private static boolean isPresent(Task t, IdentityHashMap<Task, Boolean> top) {
+		while (t.getParentTask() != null) {
+			Task p = t.getParentTask();
+			boolean child = false;
+			for (Task st : p.getSubtasks()) { child = child || st == t; }
+			if (!child) { return false; }
+			t = p;
+		}
+		return top.containsKey(t);
+	}
+
+	/**
+	 * @brief Saves the changes of the Task Manager into the store.
+	 *
+	 * Stores the tasks changed, removes the tasks deleted and commits.
+	 * @param high High priority tasks.
+	 * @param med Medium priority tasks.
+	 * @param low Low priority tasks.
+	 * @return Returns the number of bytes of the records written.
+	 * @throws IOException When the store could not be written. In this
+	 * case it keeps the contents of the last save.
+	 */
+	synchronized long save(ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low)
+	throws IOException
+	{
+		IdentityHashMap<Task, Boolean> top = new IdentityHashMap<>();
+		for (ArrayList<Task> list : Arrays.asList(high, med, low)) {
+			for (Task t : list) {
+				top.put(t, true);
+				if (allChanged) { markTreeChanged(t); }
+			}
+		}
+		if (changed.isEmpty() && !listChanged && !allChanged) { return 0; }
+
+		long bytes = 0;
+		try {
+			HashSet<Integer> present = new HashSet<>();
+			for (Task t : changed.values()) {
+				if (isPresent(t, top)) {
+					bytes += storeTask(t);
+					present.add(t.getNumericId());
+				}
+			}
+			HashSet<Integer> removed = new HashSet<>();
+			for (Task t : changed.values()) {
+				if (!present.contains(t.getNumericId())) { removed.add(t.getNumericId()); }
+			}
+			if (allChanged) {
+				// tasks stored before that are not present anymore
+				scan((k, loc) -> { if (k >= 0 && !present.contains(k)) { removed.add(k); } });
+			}
+			for (int k : removed) { removeTask(k); }
+			if (listChanged || allChanged) {
+				bytes += storePriorities(high, med, low);
+			}
+			commit();
+		}
+		catch (IOException ex) {
+			abort();
+			throw ex;
+		}
+		changed.clear();
+		listChanged = false;
+		allChanged = false;
+		return bytes;
+	}
+
+	/** Undoes the changes made after the last commit. */
+	private void abort() {
+		try {
+			if (rollback != null) {
+				rollback.close();
+				rollback = null;
+			}
+			pool.clear();
+			dirty.clear();
+			saved.clear();
+			rollbackPending = false;
+			recover();
+			readHeader();
+		}
+		catch (IOException ex) {
+			Logger.getInstance().error("Could not undo the changes of page store '" + filename + "'.");
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.text.ParseException;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * @brief A query on the tasks.
+ *
+ * A query is a list of terms separated by blanks. A term is either a
+ * word, which the tasks must contain (see @ref TaskManager.searchTasks),
+ * or a predicate written as key:value. A task satisfies the query when
+ * it contains all the words and satisfies all the predicates. Values
+ * with blanks are written between double quotes. The keys are:
+ * - id: ids of the tasks, separated by commas (id:12,40).
+ * - state: current states of the tasks, separated by commas
+ *   (state:Working,PutOnHold).
+ * - author: author of the current state of the tasks (author:Lluís).
+ * - created: creation date of the tasks, a date or a range of dates
+ *   from..to where either end may be missing (created:2019.09..2019.10).
+ *   Dates are written like year.month.day, and may stop at any field:
+ *   2019.09 is every date of September 2019.
+ * - changed: date of some state change of the tasks, like created.
+ * - prior: priority of the tasks (prior:high, prior:med, prior:low).
+ * - depth: number of ancestors of the tasks, a number or a range
+ *   (depth:0 are the top-level tasks, depth:1.. are the subtasks).
+ * - text: words, as if they were written without key.
+ *
+ * Repeating a key restricts the query further. Keys unknown are taken
+ * as words. Queries are answered by @ref TaskManager.query.
+ * @author Lluís Alemany Puig
+ */
+public final class TaskQuery {
+	
+	/** Priorities of the tasks, as written in the queries. */
+	private static final String[] PRIORITIES = {"high", "med", "low"};
+	/** Valid dates in the queries (after replacing '-' and '/' by '.'). */
+	private static final Pattern DATE = Pattern.compile("\\d{4}(\\.\\d{2}){0,5}");
+	
+	/** Ids of the tasks (null if any). */
+	private Set<Integer> ids = null;
+	/** Current states of the tasks (null if any). */
+	private EnumSet<TaskStateEnum> states = null;
+	/** Author of the current state of the tasks (null if any). */
+	private String author = null;
+	/** First creation date of the tasks (null if any). */
+	private String createdFrom = null;
+	/** Last creation date of the tasks (null if any). Dates that start
+	 * with it are not later than it. */
+	private String createdTo = null;
+	/** First date of a state change of the tasks (null if any). */
+	private String changedFrom = null;
+	/** Last date of a state change of the tasks (null if any). */
+	private String changedTo = null;
+	/** Priority of the tasks (null if any). */
+	private String priority = null;
+	/** Least number of ancestors of the tasks. */
+	private int minDepth = 0;
+	/** Largest number of ancestors of the tasks. */
+	private int maxDepth = Integer.MAX_VALUE;
+	/** Words of the tasks (null if any). */
+	private String text = null;
+	/** Do the predicates contradict each other? */
+	private boolean contradictory = false;
+	
+	private TaskQuery() { }
+	
+	/**
+	 * @brief Parses a query.
+	 * @param q Text of the query (see @ref TaskQuery).
+	 * @return Returns the query.
+	 * @throws ParseException If a quote is not closed, a predicate has no
+	 * value, or a value is not valid for its key.
+	 */
+	public static TaskQuery parse(String q) throws ParseException {
+		TaskQuery res = new TaskQuery();
+		StringBuilder words = new StringBuilder();
+		int i = 0;
+		while (i < q.length()) {
+			if (Character.isWhitespace(q.charAt(i))) {
+				++i;
+				continue;
+			}
+			int start = i;
+			
+			String key = null;
+			int j = i;
+			while (j < q.length() && Character.isLetter(q.charAt(j))) { ++j; }
+			if (j > i && j < q.length() && q.charAt(j) == ':') {
+				key = q.substring(i, j).toLowerCase();
+				if (isKey(key)) { i = j + 1; }
+				else { key = null; }
+			}
+			
+			String value;
+			if (i < q.length() && q.charAt(i) == '"') {
+				int end = q.indexOf('"', i + 1);
+				if (end == -1) { throw new ParseException("Quote not closed", i); }
+				value = q.substring(i + 1, end);
+				i = end + 1;
+			}
+			else {
+				int end = i;
+				while (end < q.length() && !Character.isWhitespace(q.charAt(end))) { ++end; }
+				value = q.substring(i, end);
+				i = end;
+			}
+			
+			if (key == null || key.equals("text")) {
+				words.append(' ').append(value);
+			}
+			else if (value.isEmpty()) {
+				throw new ParseException("Missing value of '" + key + "'", start);
+			}
+			else {
+				res.restrict(key, value, start);
+			}
+		}
+		String w = words.toString().trim();
+		res.text = (w.isEmpty() ? null : w);
+		return res;
+	}
+	
+	private static boolean isKey(String key) {
+		switch (key) {
+			case "id": case "state": case "author": case "created":
+			case "changed": case "prior": case "depth": case "text":
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/** Adds the predicate key:value, found at position @e pos. */
+	private void restrict(String key, String value, int pos) throws ParseException {
+		switch (key) {
+			case "id": {
+				Set<Integer> s = new HashSet<>();
+				for (String v : value.split(",")) {
+					int id = Task.parseId(v);
+					if (id == -1) { throw new ParseException("Invalid id '" + v + "'", pos); }
+					s.add(id);
+				}
+				if (ids != null) { s.retainAll(ids); }
+				ids = s;
+				break;
+			}
+			case "state": {
+				EnumSet<TaskStateEnum> s = EnumSet.noneOf(TaskStateEnum.class);
+				for (String v : value.split(",")) {
+					TaskStateEnum e = stateOf(v);
+					if (e == null) { throw new ParseException("Invalid state '" + v + "'", pos); }
+					s.add(e);
+				}
+				if (states != null) { s.retainAll(states); }
+				states = s;
+				break;
+			}
+			case "author":
+				if (author != null && !author.equals(value)) { contradictory = true; }
+				author = value;
+				break;
+			case "created": {
+				String[] r = dates(value, pos);
+				createdFrom = later(createdFrom, r[0]);
+				createdTo = earlier(createdTo, r[1]);
+				break;
+			}
+			case "changed": {
+				String[] r = dates(value, pos);
+				changedFrom = later(changedFrom, r[0]);
+				changedTo = earlier(changedTo, r[1]);
+				break;
+			}
+			case "prior": {
+				String p = value.toLowerCase();
+				if (p.equals("medium")) { p = "med"; }
+				if (!p.equals(PRIORITIES[0]) && !p.equals(PRIORITIES[1]) && !p.equals(PRIORITIES[2])) {
+					throw new ParseException("Invalid priority '" + value + "'", pos);
+				}
+				if (priority != null && !priority.equals(p)) { contradictory = true; }
+				priority = p;
+				break;
+			}
+			case "depth": {
+				int r = value.indexOf("..");
+				String from = (r == -1 ? value : value.substring(0, r));
+				String to = (r == -1 ? value : value.substring(r + 2));
+				if (!from.isEmpty()) { minDepth = Math.max(minDepth, depth(from, pos)); }
+				if (!to.isEmpty()) { maxDepth = Math.min(maxDepth, depth(to, pos)); }
+				break;
+			}
+		}
+	}
+	
+	private static TaskStateEnum stateOf(String s) {
+		for (TaskStateEnum e : TaskStateEnum.values()) {
+			if (e.toString().equalsIgnoreCase(s)) { return e; }
+		}
+		return null;
+	}
+	
+	/** A date of a query, as the prefix of a comparable date. */
+	private static String date(String s, int pos) throws ParseException {
+		String d = s.replace('-', '.').replace('/', '.');
+		if (!DATE.matcher(d).matches()) { throw new ParseException("Invalid date '" + s + "'", pos); }
+		return d;
+	}
+	
+	private static int depth(String s, int pos) throws ParseException {
+		int d = Task.parseId(s);
+		if (d == -1) { throw new ParseException("Invalid depth '" + s + "'", pos); }
+		return d;
+	}
+	
+	/** The ends of a range of dates (null if missing). */
+	private static String[] dates(String s, int pos) throws ParseException {
+		int r = s.indexOf("..");
+		String from = (r == -1 ? s : s.substring(0, r));
+		String to = (r == -1 ? s : s.substring(r + 2));
+		return new String[]{
+			from.isEmpty() ? null : date(from, pos),
+			to.isEmpty() ? null : date(to, pos)
+		};
+	}
+	
+	/** The later of two first dates (either may be null). */
+	private static String later(String a, String b) {
+		if (a == null) { return b; }
+		if (b == null) { return a; }
+		return a.compareTo(b) >= 0 ? a : b;
+	}
+	
+	/** The earlier of two last dates (either may be null). Dates that
+	 * start with a last date are not later than it. */
+	private static String earlier(String a, String b) {
+		if (a == null) { return b; }
+		if (b == null) { return a; }
+		return a.startsWith(b) || (!b.startsWith(a) && a.compareTo(b) < 0) ? a : b;
+	}
+	
+	/** Ids of the tasks (null if any). */
+	public Set<Integer> getIds() { return ids; }
+	/** Current states of the tasks (null if any). */
+	public Set<TaskStateEnum> getStates() { return states; }
+	/** Author of the current state of the tasks (null if any). */
+	public String getAuthor() { return author; }
+	/** First date of a state change of the tasks (null if any). */
+	public String getChangedFrom() { return changedFrom; }
+	/** Last date of a state change of the tasks (null if any). */
+	public String getChangedTo() { return changedTo; }
+	/** Priority of the tasks: "high", "med" or "low" (null if any). */
+	public String getPriority() { return priority; }
+	public int getMinDepth() { return minDepth; }
+	public int getMaxDepth() { return maxDepth; }
+	/** Words of the tasks (null if any). */
+	public String getText() { return text; }
+	/** Is it certain that no task satisfies the query? */
+	public boolean isContradictory() {
+		return contradictory || minDepth > maxDepth
+			|| (ids != null && ids.isEmpty()) || (states != null && states.isEmpty());
+	}
+	/** Has the query predicates other than words? */
+	public boolean hasFilters() {
+		return ids != null || states != null || author != null
+			|| createdFrom != null || createdTo != null
+			|| changedFrom != null || changedTo != null || priority != null
+			|| minDepth > 0 || maxDepth < Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * @brief Does a task satisfy the predicates on its own fields?
+	 *
+	 * Its words, changes and priority are not checked: they depend on
+	 * the indexes and lists of the Task Manager.
+	 */
+	boolean matches(Task t) {
+		int n = 0;
+		if (minDepth > 0 || maxDepth < Integer.MAX_VALUE) {
+			for (Task p = t.getParentTask(); p != null && n <= maxDepth; p = p.getParentTask()) { ++n; }
+		}
+		return matches(t.getNumericId(), t.currentState(), t.getCompDate(), n);
+	}
+	
+	/**
+	 * Same as @ref matches(Task), on the fields of a task: its id, its
+	 * current state, its date of creation and its depth.
+	 */
+	boolean matches(int id, TaskState s, String d, int depth) {
+		if (ids != null && !ids.contains(id)) { return false; }
+		if (states != null && !states.contains(s.getState())) { return false; }
+		if (author != null && !author.equals(s.getAuthor())) { return false; }
+		if (createdFrom != null && d.compareTo(createdFrom) < 0) { return false; }
+		if (createdTo != null && d.compareTo(createdTo) > 0 && !d.startsWith(createdTo)) { return false; }
+		return depth >= minDepth && depth <= maxDepth;
+	}
+	
+}
@@ -0,0 +1,794 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * @brief Streaming reader of task files.
+ *
+ * Builds the tasks straight from a UTF-8 byte stream, token by token,
+ * without building the file's contents into a String nor into a JSON
+ * DOM first. The changes of every task are kept as bytes (see
+ * TaskHistory) except for the first one and the current state.
+ * @author Lluís Alemany Puig
+ */
+class TaskReader {
+
+	private static final int BUFFER_SIZE = 64*1024;
+
+	/** Stream the tasks are read from. */
+	private final InputStream in;
+	/** Bytes read from the stream. */
+	private final byte[] buf;
+	/** Position of the next byte to be consumed. */
+	private int pos;
+	/** Number of valid bytes in @ref buf. */
+	private int lim;
+	/** Number of bytes consumed before the current contents of @ref buf. */
+	private long consumed;
+
+	/** Bytes (in UTF-8) of the string being read. */
+	private byte[] str;
+	/** Length of the string being read. */
+	private int strLen;
+	/** High surrogate of an escaped pair waiting for its low surrogate. */
+	private int pendingHigh;
+
+	/** Bytes captured so far (see @ref startCapture). */
+	private byte[] cap;
+	/** Number of valid bytes in @ref cap. */
+	private int capLen;
+	/** Position in @ref buf where the capture continues (-1 if not capturing). */
+	private int capFrom;
+	/** Offsets, within the captured bytes, of the changes being read. */
+	private int[] changeOffsets;
+
+	/** Arrays of tasks larger than this are read in parallel (0: never). */
+	private int splitSize;
+
+	/** Largest task id found so far. */
+	private int maximumID;
+	/** Generation of the task file (0 if the file does not have one). */
+	private long generation;
+	/** Generation of the journal folded into the task file. */
+	private long baseGeneration;
+	/** Number of journal records folded into the task file. */
+	private long baseRecords;
+
+	/**
+	 * @brief Constructor.
+	 * @param _in Stream to read from. It does not need to be buffered.
+	 */
+	TaskReader(InputStream _in) {
+		in = _in;
+		buf = new byte[BUFFER_SIZE];
+		pos = 0;
+		lim = 0;
+		consumed = 0;
+		str = new byte[256];
+		strLen = 0;
+		pendingHigh = -1;
+		cap = null;
+		capLen = 0;
+		capFrom = -1;
+		changeOffsets = null;
+		splitSize = 0;
+		maximumID = -1;
+		generation = 0;
+		baseGeneration = 0;
+		baseRecords = 0;
+	}
+
+	/**
+	 * @brief Constructor to read from bytes in memory.
+	 * @param data The bytes.
+	 * @param offset Where to start reading.
+	 */
+	TaskReader(byte[] data, int offset) {
+		this(data, offset, data.length);
+	}
+
+	/**
+	 * @brief Constructor to read from some of the bytes of an array.
+	 * @param data The bytes.
+	 * @param offset Where to start reading.
+	 * @param end Where to stop reading.
+	 */
+	TaskReader(byte[] data, int offset, int end) {
+		in = null;
+		buf = data;
+		pos = offset;
+		lim = end;
+		consumed = 0;
+		str = new byte[256];
+		strLen = 0;
+		pendingHigh = -1;
+		capFrom = -1;
+		maximumID = -1;
+	}
+
+	/**
+	 * @brief Reads the arrays of tasks in parallel.
+	 *
+	 * Only for readers of bytes in memory. The elements of the arrays
+	 * of tasks are delimited without being decoded, and groups of about
+	 * @e size bytes are decoded by fork/join tasks, each with its own
+	 * reader. Tasks larger than @e size split their subtasks in the same
+	 * way. The tasks read are the same as when reading sequentially.
+	 * @param size Size of the groups, in bytes (0 to read sequentially).
+	 */
+	void setSplitSize(int size) {
+		if (in != null && size > 0) {
+			throw new IllegalStateException("Only tasks in memory can be read in parallel");
+		}
+		splitSize = size;
+	}
+
+	/** Largest task id read so far (-1 if no task was read). */
+	int getMaximumID() { return maximumID; }
+	/** Generation of the task file read (0 if it does not have one). */
+	long getGeneration() { return generation; }
+	/** Generation of the journal folded into the task file. */
+	long getBaseGeneration() { return baseGeneration; }
+	/** Number of records of that journal folded into the task file (0 if none). */
+	long getBaseRecords() { return baseRecords; }
+
+	/**
+	 * @brief Reads the contents of a whole task file.
+	 * @param high High priority tasks are added here.
+	 * @param med Medium priority tasks are added here.
+	 * @param low Low priority tasks are added here.
+	 * @throws IOException When the stream could not be read, or when its
+	 * contents are not a valid task file.
+	 */
+	void readTasks(ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low)
+	throws IOException
+	{
+		skipByteOrderMark();
+		expect('{');
+		if (!consumeIf('}')) {
+			do {
+				String key = readKey();
+				switch (key) {
+					case "low_prior_tasks": readTaskArray(low); break;
+					case "med_prior_tasks": readTaskArray(med); break;
+					case "high_prior_tasks": readTaskArray(high); break;
+					case "generation": generation = readLong(); break;
+					case "base_generation": baseGeneration = readLong(); break;
+					case "base_records": baseRecords = readLong(); break;
+					default:
+						skipValue();
+				}
+			}
+			while (consumeIf(','));
+			expect('}');
+		}
+		if (peek() != -1) {
+			throw error("unexpected contents after the main object");
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	private void readTaskArray(ArrayList<Task> tasks) throws IOException {
+		if (splitSize > 0) {
+			readTaskArrayParallel(tasks);
+			return;
+		}
+		expect('[');
+		if (consumeIf(']')) { return; }
+		do {
+			tasks.add(readTask());
+		}
+		while (consumeIf(','));
+		expect(']');
+	}
+
+	/**
+	 * @brief Decodes consecutive tasks of an array in another thread.
+	 *
+	 * The result is the list of tasks, and the largest id among them
+	 * is left in @ref maximumID.
+	 */
+	private static class ArrayPart extends RecursiveTask<ArrayList<Task>> {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] data;
+		/** Offset of the first task. */
+		private final int offset;
+		/** End of the bytes of the file in @ref data. */
+		private final int end;
+		/** Number of tasks. */
+		private final int count;
+		/** Split size of the reader of the tasks. */
+		private final int split;
+		private int maximumID = -1;
+
+		ArrayPart(byte[] _data, int _offset, int _end, int _count, int _split) {
+			data = _data;
+			offset = _offset;
+			end = _end;
+			count = _count;
+			split = _split;
+		}
+
+		@Override
+		protected ArrayList<Task> compute() {
+			TaskReader r = new TaskReader(data, offset, end);
+			r.splitSize = split;
+			ArrayList<Task> tasks = new ArrayList<>(count);
+			try {
+				for (int i = 0; i < count; ++i) {
+					if (i > 0) { r.expect(','); }
+					tasks.add(r.readTask());
+				}
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			maximumID = r.maximumID;
+			return tasks;
+		}
+	}
+
+	/** Reads an array of tasks with fork/join tasks (see @ref setSplitSize). */
+	private void readTaskArrayParallel(ArrayList<Task> tasks) throws IOException {
+		ArrayList<ArrayPart> parts = new ArrayList<>();
+		expect('[');
+		if (!consumeIf(']')) {
+			// delimit the tasks, and start decoding them meanwhile
+			int from = -1;
+			int count = 0;
+			do {
+				peek();
+				int start = pos;
+				skipValue();
+				if (pos - start >= splitSize) {
+					// a large task splits its own subtasks
+					if (count > 0) { parts.add(fork(new ArrayPart(buf, from, lim, count, 0))); }
+					parts.add(fork(new ArrayPart(buf, start, lim, 1, splitSize)));
+					count = 0;
+				}
+				else {
+					if (count == 0) { from = start; }
+					++count;
+					if (pos - from >= splitSize) {
+						parts.add(fork(new ArrayPart(buf, from, lim, count, 0)));
+						count = 0;
+					}
+				}
+			}
+			while (consumeIf(','));
+			if (count > 0) { parts.add(fork(new ArrayPart(buf, from, lim, count, 0))); }
+			expect(']');
+		}
+
+		// in the order of the file, whichever finished first
+		IOException error = null;
+		for (ArrayPart p : parts) {
+			try {
+				tasks.addAll(p.join());
+				maximumID = (maximumID < p.maximumID ? p.maximumID : maximumID);
+			}
+			catch (UncheckedIOException ex) {
+				if (error == null) { error = ex.getCause(); }
+			}
+		}
+		if (error != null) { throw error; }
+	}
+
+	private static ArrayPart fork(ArrayPart p) {
+		p.fork();
+		return p;
+	}
+
+	private Task readTask() throws IOException {
+		String id = null;
+		String name = null;
+		String descr = null;
+		String comp_date = null;
+		String pretty_date = null;
+		TaskHistory history = null;
+		boolean hasChanges = false;
+		TaskState[] known = new TaskState[2];
+		ArrayList<TaskState> changes = new ArrayList<>();
+		ArrayList<Task> subtasks = new ArrayList<>();
+
+		expect('{');
+		if (!consumeIf('}')) {
+			do {
+				String key = readKey();
+				switch (key) {
+					case "id": id = readNullableString(); break;
+					case "name": name = readNullableString(); break;
+					case "description": descr = readNullableString(); break;
+					case "comparable_date": comp_date = readNullableString(); break;
+					case "pretty_date": pretty_date = readNullableString(); break;
+					case "changes":
+						history = readHistory(known, changes);
+						hasChanges = (known[0] != null);
+						break;
+					case "subtasks": readSubtasks(subtasks); break;
+					default:
+						skipValue();
+				}
+			}
+			while (consumeIf(','));
+			expect('}');
+		}
+		if (!hasChanges) {
+			throw error("task '" + id + "' has no changes");
+		}
+
+		int thisTaskId = Task.parseId(id);
+		if (thisTaskId == -1) {
+			throw error("task id '" + id + "' is not a number");
+		}
+		Task t = new Task(known[0].getAuthor(), thisTaskId, name, descr, comp_date, pretty_date);
+		if (history == null) { t.hardSetChanges(changes); }
+		else { t.setHistory(history, known[0], known[1]); }
+		t.hardSetSubtasks(subtasks);
+
+		maximumID = (maximumID < thisTaskId ? thisTaskId : maximumID);
+		return t;
+	}
+
+	private void readSubtasks(ArrayList<Task> subtasks) throws IOException {
+		if (splitSize > 0) {
+			readTaskArrayParallel(subtasks);
+			return;
+		}
+		expect('[');
+		if (consumeIf(']')) { return; }
+		do {
+			subtasks.add(readTask());
+		}
+		while (consumeIf(','));
+		expect(']');
+	}
+
+	/**
+	 * @brief Reads the array of changes of a task without decoding it.
+	 *
+	 * The bytes of the array are kept. Only the first change and the
+	 * current state are decoded. Short arrays are decoded completely.
+	 * @param known The first change and the current state are stored here.
+	 * @param changes All changes are stored here if they are decoded.
+	 * @return Returns the changes kept encoded, or null if they were
+	 * decoded.
+	 */
+	private TaskHistory readHistory(TaskState[] known, ArrayList<TaskState> changes) throws IOException {
+		peek();
+		startCapture();
+		expect('[');
+		int n = 0;
+		if (!consumeIf(']')) {
+			do {
+				peek();
+				if (changeOffsets == null || n == changeOffsets.length) {
+					changeOffsets = (n == 0 ? new int[16] : Arrays.copyOf(changeOffsets, 2*n));
+				}
+				changeOffsets[n] = capLen + (pos - capFrom);
+				// the first changes are decoded in any case
+				if (n < TaskHistory.EAGER_SIZE) { changes.add(readTaskState()); }
+				else { skipValue(); }
+				++n;
+			}
+			while (consumeIf(','));
+			expect(']');
+		}
+		byte[] bytes = endCapture(n > TaskHistory.EAGER_SIZE);
+		known[0] = (n == 0 ? null : changes.get(0));
+		if (n <= TaskHistory.EAGER_SIZE) {
+			// not worth keeping them encoded
+			return null;
+		}
+
+		known[1] = null;
+		for (int i = n - 1; i >= TaskHistory.EAGER_SIZE && known[1] == null; --i) {
+			TaskState s = stateAt(bytes, changeOffsets[i]);
+			if (Task.isStateChange(s.getState())) { known[1] = s; }
+		}
+		for (int i = TaskHistory.EAGER_SIZE - 1; i > 0 && known[1] == null; --i) {
+			if (Task.isStateChange(changes.get(i).getState())) { known[1] = changes.get(i); }
+		}
+		if (known[1] == null) { known[1] = known[0]; }
+		changes.clear();
+		return new TaskHistory.JSON(bytes, n);
+	}
+
+	/** Decodes the change at an offset of an array of changes. */
+	private static TaskState stateAt(byte[] bytes, int offset) throws IOException {
+		return new TaskReader(bytes, offset).readTaskState();
+	}
+
+	/** Reads an array of changes. */
+	void readChangeArray(ArrayList<TaskState> changes) throws IOException {
+		readChanges(changes);
+	}
+
+	private void readChanges(ArrayList<TaskState> changes) throws IOException {
+		expect('[');
+		if (consumeIf(']')) { return; }
+		do {
+			changes.add(readTaskState());
+		}
+		while (consumeIf(','));
+		expect(']');
+	}
+
+	private TaskState readTaskState() throws IOException {
+		String cdate = null;
+		String pdate = null;
+		String reason = null;
+		String state = null;
+		String author = null;
+		String pTN = null;
+		String nTN = null;
+		String pTD = null;
+		String nTD = null;
+
+		expect('{');
+		if (!consumeIf('}')) {
+			do {
+				String key = readKey();
+				switch (key) {
+					case "comparable_date": cdate = readNullableString(); break;
+					case "pretty_date": pdate = readNullableString(); break;
+					case "reason": reason = readNullableString(); break;
+					case "state": state = readNullableString(); break;
+					case "author": author = readNullableString(); break;
+					case "pTN": pTN = readNullableString(); break;
+					case "nTN": nTN = readNullableString(); break;
+					case "pTD": pTD = readNullableString(); break;
+					case "nTD": nTD = readNullableString(); break;
+					default:
+						skipValue();
+				}
+			}
+			while (consumeIf(','));
+			expect('}');
+		}
+		if (state == null) {
+			throw error("state change without state");
+		}
+		return new TaskState(
+			author, cdate, pdate, reason,
+			pTN, nTN, pTD, nTD,
+			TaskStateEnum.fromString(state)
+		);
+	}
+
+	// -------------------------------------------------------------------------
+	// Tokens
+
+	/** Position in the stream of the next byte to be consumed. */
+	private long position() { return consumed + pos; }
+
+	private IOException error(String msg) {
+		return new IOException("Malformed task file (byte " + position() + "): " + msg);
+	}
+
+	/** Starts keeping the bytes consumed from now on. */
+	private void startCapture() {
+		capLen = 0;
+		capFrom = pos;
+	}
+
+	/** Stops keeping the bytes consumed. Returns a copy of them if @e keep. */
+	private byte[] endCapture(boolean keep) {
+		appendCap(capFrom, pos);
+		capFrom = -1;
+		return keep ? Arrays.copyOf(cap, capLen) : null;
+	}
+
+	private void appendCap(int from, int to) {
+		int n = to - from;
+		if (cap == null || capLen + n > cap.length) {
+			int len = Math.max(capLen + n, cap == null ? 4096 : 2*cap.length);
+			cap = (cap == null ? new byte[len] : Arrays.copyOf(cap, len));
+		}
+		System.arraycopy(buf, from, cap, capLen, n);
+		capLen += n;
+	}
+
+	private boolean fill() throws IOException {
+		if (capFrom != -1) {
+			appendCap(capFrom, lim);
+			capFrom = 0;
+		}
+		consumed += lim;
+		pos = 0;
+		lim = 0;
+		if (in == null) { return false; }
+		int n = in.read(buf, 0, buf.length);
+		while (n == 0) { n = in.read(buf, 0, buf.length); }
+		if (n < 0) { return false; }
+		lim = n;
+		return true;
+	}
+
+	/** Next raw byte (-1 at the end of the stream). */
+	private int read() throws IOException {
+		if (pos == lim && !fill()) { return -1; }
+		return buf[pos++] & 0xff;
+	}
+
+	/** Next byte that is not a whitespace, without consuming it. */
+	private int peek() throws IOException {
+		while (true) {
+			if (pos == lim && !fill()) { return -1; }
+			byte b = buf[pos];
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') { return b & 0xff; }
+			++pos;
+		}
+	}
+
+	private boolean consumeIf(char c) throws IOException {
+		if (peek() == c) {
+			++pos;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(char c) throws IOException {
+		int b = peek();
+		if (b != c) {
+			throw error("expected '" + c + "' but found " + describe(b));
+		}
+		++pos;
+	}
+
+	private static String describe(int b) {
+		return b == -1 ? "end of file" : "'" + (char) b + "'";
+	}
+
+	private void skipByteOrderMark() throws IOException {
+		if (pos == lim && !fill()) { return; }
+		if (lim - pos >= 3 &&
+			(buf[pos] & 0xff) == 0xef && (buf[pos + 1] & 0xff) == 0xbb && (buf[pos + 2] & 0xff) == 0xbf)
+		{
+			pos += 3;
+		}
+	}
+
+	private String readKey() throws IOException {
+		if (peek() != '"') {
+			throw error("expected a key but found " + describe(peek()));
+		}
+		String key = readString();
+		expect(':');
+		return key;
+	}
+
+	/** Reads a string value, or the literal null. */
+	private String readNullableString() throws IOException {
+		int b = peek();
+		if (b == '"') { return readString(); }
+		if (b == 'n') {
+			readLiteral("null");
+			return null;
+		}
+		throw error("expected a string but found " + describe(b));
+	}
+
+	private long readLong() throws IOException {
+		// only the whitespace before the number is skipped: the sign
+		// and the digits must be contiguous
+		boolean negative = (peek() == '-');
+		if (negative) { ++pos; }
+		long v = 0;
+		int digits = 0;
+		while (pos < lim || fill()) {
+			byte b = buf[pos];
+			if (b < '0' || b > '9') { break; }
+			v = v*10 + (b - '0');
+			++digits;
+			++pos;
+		}
+		if (digits == 0) { throw error("expected a number"); }
+		return negative ? -v : v;
+	}
+
+	private void readLiteral(String lit) throws IOException {
+		for (int i = 0; i < lit.length(); ++i) {
+			if (read() != lit.charAt(i)) {
+				throw error("expected literal '" + lit + "'");
+			}
+		}
+	}
+
+	private void appendStr(byte b) {
+		if (strLen == str.length) {
+			byte[] bigger = new byte[str.length*2];
+			System.arraycopy(str, 0, bigger, 0, strLen);
+			str = bigger;
+		}
+		str[strLen++] = b;
+	}
+
+	private void appendCodePoint(int cp) {
+		if (cp < 0x80) {
+			appendStr((byte) cp);
+		}
+		else if (cp < 0x800) {
+			appendStr((byte) (0xc0 | (cp >> 6)));
+			appendStr((byte) (0x80 | (cp & 0x3f)));
+		}
+		else if (cp < 0x10000) {
+			appendStr((byte) (0xe0 | (cp >> 12)));
+			appendStr((byte) (0x80 | ((cp >> 6) & 0x3f)));
+			appendStr((byte) (0x80 | (cp & 0x3f)));
+		}
+		else {
+			appendStr((byte) (0xf0 | (cp >> 18)));
+			appendStr((byte) (0x80 | ((cp >> 12) & 0x3f)));
+			appendStr((byte) (0x80 | ((cp >> 6) & 0x3f)));
+			appendStr((byte) (0x80 | (cp & 0x3f)));
+		}
+	}
+
+	private int readHex4() throws IOException {
+		int v = 0;
+		for (int i = 0; i < 4; ++i) {
+			int b = read();
+			int d = Character.digit(b, 16);
+			if (b == -1 || d == -1) { throw error("invalid unicode escape"); }
+			v = (v << 4) | d;
+		}
+		return v;
+	}
+
+	/** Appends a high surrogate that was not followed by a low one. */
+	private void flushPendingHigh() {
+		if (pendingHigh != -1) {
+			appendCodePoint(pendingHigh);
+			pendingHigh = -1;
+		}
+	}
+
+	private void readEscape() throws IOException {
+		int b = read();
+		if (b != 'u') { flushPendingHigh(); }
+		switch (b) {
+			case '"': appendStr((byte) '"'); break;
+			case '\\': appendStr((byte) '\\'); break;
+			case '/': appendStr((byte) '/'); break;
+			case 'b': appendStr((byte) '\b'); break;
+			case 'f': appendStr((byte) '\f'); break;
+			case 'n': appendStr((byte) '\n'); break;
+			case 'r': appendStr((byte) '\r'); break;
+			case 't': appendStr((byte) '\t'); break;
+			case 'u':
+				int c = readHex4();
+				if (pendingHigh != -1 && Character.isLowSurrogate((char) c)) {
+					appendCodePoint(Character.toCodePoint((char) pendingHigh, (char) c));
+					pendingHigh = -1;
+				}
+				else if (Character.isHighSurrogate((char) c)) {
+					flushPendingHigh();
+					pendingHigh = c;
+				}
+				else {
+					flushPendingHigh();
+					appendCodePoint(c);
+				}
+				return;
+			default:
+				throw error("invalid escape sequence");
+		}
+	}
+
+	/** Reads a string. The next non-whitespace byte must be '"'. */
+	private String readString() throws IOException {
+		expect('"');
+		strLen = 0;
+		pendingHigh = -1;
+		while (true) {
+			if (pos == lim && !fill()) { throw error("unterminated string"); }
+			// copy the run of plain bytes in one go
+			int start = pos;
+			while (pos < lim && buf[pos] != '"' && buf[pos] != '\\') { ++pos; }
+			int n = pos - start;
+			if (n > 0) {
+				flushPendingHigh();
+				if (strLen + n > str.length) {
+					byte[] bigger = new byte[Math.max(str.length*2, strLen + n)];
+					System.arraycopy(str, 0, bigger, 0, strLen);
+					str = bigger;
+				}
+				System.arraycopy(buf, start, str, strLen, n);
+				strLen += n;
+			}
+			if (pos == lim) { continue; }
+
+			byte b = buf[pos++];
+			if (b == '"') {
+				flushPendingHigh();
+				return new String(str, 0, strLen, StandardCharsets.UTF_8);
+			}
+			readEscape();
+		}
+	}
+
+	/** Skips a string without decoding it. */
+	private void skipString() throws IOException {
+		expect('"');
+		while (true) {
+			if (pos == lim && !fill()) { throw error("unterminated string"); }
+			while (pos < lim && buf[pos] != '"' && buf[pos] != '\\') { ++pos; }
+			if (pos == lim) { continue; }
+			if (buf[pos++] == '"') { return; }
+			read();
+		}
+	}
+
+	/** Skips any JSON value, however deep it is. */
+	private void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			int b = peek();
+			switch (b) {
+				case '"': skipString(); break;
+				case '{':
+				case '[':
+					++depth;
+					++pos;
+					break;
+				case '}':
+				case ']':
+					--depth;
+					++pos;
+					break;
+				case ',':
+				case ':':
+					if (depth == 0) { throw error("expected a value"); }
+					++pos;
+					break;
+				case -1:
+					throw error("unexpected end of file");
+				default:
+					// numbers and literals
+					while (b != -1 && b != ',' && b != '}' && b != ']' &&
+						   b != ' ' && b != '\n' && b != '\r' && b != '\t')
+					{
+						++pos;
+						if (pos == lim && !fill()) { b = -1; }
+						else { b = buf[pos] & 0xff; }
+					}
+			}
+		}
+		while (depth > 0);
+	}
+}
@@ -0,0 +1,122 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * @brief New contents of the task file, written by some other program.
+ *
+ * Read with TaskManager::readChangesOnDisk and applied with
+ * TaskManager::applyReload, which compares them, by task id, with the
+ * tasks in the Task Manager. The tasks added, removed and modified are
+ * then available so that only those have to be updated.
+ * @author Lluís Alemany Puig
+ */
+public class TaskReload {
+	/** Task file read. */
+	final String tasksFile;
+	/** Stamp of the task file when it was read. */
+	final TaskFileStamp stamp;
+	/** Contents of the task file. */
+	final TaskFile contents;
+	/** Journal of the task file, already applied to @ref contents. */
+	final TaskJournal journal;
+
+	/** Ids of the tasks that were not in the Task Manager. */
+	private final Set<String> added = new HashSet<>();
+	/** Ids of the tasks that are no longer in the task file. */
+	private final Set<String> removed = new HashSet<>();
+	/** Ids of the tasks whose contents changed (not their subtasks). */
+	private final Set<String> modified = new HashSet<>();
+
+	TaskReload(String _tasksFile, TaskFileStamp _stamp, TaskFile _contents, TaskJournal _journal) {
+		tasksFile = _tasksFile;
+		stamp = _stamp;
+		contents = _contents;
+		journal = _journal;
+	}
+
+	/** Ids of the tasks that were not in the Task Manager. */
+	public Set<String> getAddedTasks() { return Collections.unmodifiableSet(added); }
+	/** Ids of the tasks that are no longer in the task file. */
+	public Set<String> getRemovedTasks() { return Collections.unmodifiableSet(removed); }
+	/** Ids of the tasks whose name, description or history changed. */
+	public Set<String> getModifiedTasks() { return Collections.unmodifiableSet(modified); }
+	public boolean isModified(String id) { return modified.contains(id); }
+
+	/**
+	 * @brief Compares the new contents with the current tasks.
+	 * @param high Current high priority tasks.
+	 * @param med Current medium priority tasks.
+	 * @param low Current low priority tasks.
+	 */
+	void compare(ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low) {
+		HashMap<String, Task> before = new HashMap<>();
+		index(high, before);
+		index(med, before);
+		index(low, before);
+		HashMap<String, Task> after = new HashMap<>();
+		index(contents.high, after);
+		index(contents.med, after);
+		index(contents.low, after);
+
+		after.forEach((id, t) -> {
+			Task old = before.remove(id);
+			if (old == null) { added.add(id); }
+			else if (!sameContents(old, t)) { modified.add(id); }
+		});
+		removed.addAll(before.keySet());
+	}
+
+	private static void index(ArrayList<Task> ts, HashMap<String, Task> ids) {
+		ts.forEach((t) -> {
+			ids.put(t.getId(), t);
+			index(t.getSubtasks(), ids);
+		});
+	}
+
+	/**
+	 * Do both tasks look the same? Histories only grow, so they are
+	 * compared by their size and their current state, without decoding.
+	 */
+	private static boolean sameContents(Task a, Task b) {
+		TaskState sa = a.currentState();
+		TaskState sb = b.currentState();
+		return
+			Objects.equals(a.getName(), b.getName()) &&
+			Objects.equals(a.getDescription(), b.getDescription()) &&
+			Objects.equals(a.getCompDate(), b.getCompDate()) &&
+			a.changeCount() == b.changeCount() &&
+			sa.getState() == sb.getState() &&
+			Objects.equals(sa.getComparableDate(), sb.getComparableDate());
+	}
+}
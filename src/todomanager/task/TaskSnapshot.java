@@ -0,0 +1,166 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @brief What the queries need of the tasks, copied from them.
+ *
+ * Made in the thread that modifies the tasks and read in any other (see
+ * @ref TaskManager.newQuery): a snapshot does not change once it is made.
+ * The tasks are in the order of the tree, every task followed by its
+ * subtasks, and the tasks of each priority after those of the previous
+ * one.
+ * @author Lluís Alemany Puig
+ */
+final class TaskSnapshot {
+
+	/** Priorities, in the order of their tasks. */
+	private static final String[] PRIORITIES = {"high", "med", "low"};
+
+	/** Position of the first task of each priority, and number of tasks. */
+	private final int[] starts = new int[PRIORITIES.length + 1];
+	/** Ids of the tasks. */
+	private final int[] ids;
+	/** Current states of the tasks. */
+	private final TaskState[] states;
+	/** Dates of creation of the tasks. */
+	private final String[] created;
+	/** Depths of the tasks (0 for the top-level ones). */
+	private final int[] depths;
+	/** Positions of the tasks, by id. */
+	private final Positions positions = new Positions();
+
+	/** Positions in the snapshot, by task id. */
+	private static final class Positions extends IntKeyTable<int[]> {
+		Positions() { super(16); }
+
+		@Override
+		int[] newValues(int length) { return new int[length]; }
+
+		@Override
+		void copy(int[] from, int i, int[] to, int j) { to[j] = from[i]; }
+
+		/** Position of a task (-1 if it is not in the snapshot). */
+		int get(int id) {
+			int i = find(id);
+			return i == -1 ? -1 : values[i];
+		}
+
+		void put(int id, int p) {
+			int i = insert(id);
+			values[i] = p;
+		}
+	}
+
+	/**
+	 * @brief Copies some tasks and their subtasks.
+	 * @param lists The top-level tasks of each priority.
+	 * @param n Number of tasks in the lists, at any depth.
+	 */
+	TaskSnapshot(List<ArrayList<Task>> lists, int n) {
+		ids = new int[n];
+		states = new TaskState[n];
+		created = new String[n];
+		depths = new int[n];
+		int k = 0;
+		for (int p = 0; p < PRIORITIES.length; ++p) {
+			starts[p] = k;
+			for (Task t : lists.get(p)) { k = copy(t, 0, k); }
+		}
+		starts[PRIORITIES.length] = k;
+	}
+
+	private int copy(Task t, int depth, int k) {
+		ids[k] = t.getNumericId();
+		states[k] = t.currentState();
+		created[k] = t.getCompDate();
+		depths[k] = depth;
+		positions.put(ids[k], k);
+		++k;
+		for (Task st : t.getSubtasks()) { k = copy(st, depth + 1, k); }
+		return k;
+	}
+
+	/**
+	 * @brief The tasks that satisfy a query.
+	 *
+	 * The tasks are taken from the smallest of the sets that the query
+	 * allows: the tasks with its words, with its ids, changed within its
+	 * dates, or those of its priority. Only those that satisfy the rest of
+	 * the query are returned.
+	 * @param q The query.
+	 * @param hits Ids of the tasks with the words of the query, best
+	 * first (null if it has no words).
+	 * @param changed Ids of the tasks changed within the dates of the
+	 * query (null if it has no such dates).
+	 * @param max Maximum number of tasks returned (all if not positive).
+	 * @return Returns the ids of the tasks, best matches first if the
+	 * query has words, in the order of the tree otherwise.
+	 */
+	ArrayList<Integer> query(TaskQuery q, List<Integer> hits, Set<Integer> changed, int max) {
+		ArrayList<Integer> res = new ArrayList<>();
+		if (q.isContradictory()) { return res; }
+		int p = (q.getPriority() == null ? -1 : Arrays.asList(PRIORITIES).indexOf(q.getPriority()));
+		int from = (p == -1 ? 0 : starts[p]);
+		int to = (p == -1 ? starts[PRIORITIES.length] : starts[p + 1]);
+
+		Collection<Integer> some = hits;
+		if (some == null) {
+			some = q.getIds();
+			if (changed != null && (some == null || changed.size() < some.size())) { some = changed; }
+		}
+		if (some == null || (hits == null && some.size() >= to - from)) {
+			for (int i = from; i < to && (max <= 0 || res.size() < max); ++i) {
+				if (matches(q, i, changed)) { res.add(ids[i]); }
+			}
+			return res;
+		}
+
+		int[] ps = new int[some.size()];
+		int k = 0;
+		for (int id : some) {
+			int i = positions.get(id);
+			if (i >= from && i < to) { ps[k++] = i; }
+		}
+		// the words give their own order
+		if (hits == null) { Arrays.sort(ps, 0, k); }
+		for (int j = 0; j < k && (max <= 0 || res.size() < max); ++j) {
+			if (matches(q, ps[j], changed)) { res.add(ids[ps[j]]); }
+		}
+		return res;
+	}
+
+	private boolean matches(TaskQuery q, int i, Set<Integer> changed) {
+		if (changed != null && !changed.contains(ids[i])) { return false; }
+		return q.matches(ids[i], states[i], created[i], depths[i]);
+	}
+}
@@ -25,7 +25,9 @@
 
 package todomanager.task;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 import todomanager.util.Translate;
 
 /**
@@ -44,7 +46,23 @@ public enum TaskStateEnum {
 	
 	Edited,				// The name and or the description were edited
 	PriorityChanged,	// The task priority changed
-	AddedSubtask;		// A subtask was added// A subtask was added
+	AddedSubtask;		// A subtask was added
+	
+	/**
+	 * @brief The bit of this state in a mask of states.
+	 *
+	 * A set of states is a mask with the bits of its states set. Whether
+	 * a state is in a set is then a single bit operation, and so is
+	 * whether all the states of many tasks are in it.
+	 */
+	public int bit() { return 1 << ordinal(); }
+	
+	/** The mask of the states in @e ls */
+	public static int maskOf(Set<TaskStateEnum> ls) {
+		int m = 0;
+		for (TaskStateEnum e : ls) { m |= e.bit(); }
+		return m;
+	}
 	
 	public static String translateState(TaskStateEnum e) {
 		Translate tr = Translate.getInstance();
@@ -83,159 +101,140 @@ public enum TaskStateEnum {
 		}
 	}
 	
+	// Preconditions of the state changes, built once from the switches
+	// below. They are indexed by the ordinal of the new state.
+	
+	private static final int N = values().length;
+	private static final int[] CURTASK_MASK = new int[N];
+	private static final int[] ASK_SUBTASKS_MASK = new int[N];
+	private static final int[] CHANGE_SUBTASKS_MASK = new int[N];
+	private static final Set<TaskStateEnum>[] CURTASK = newSets();
+	private static final Set<TaskStateEnum>[] ASK_SUBTASKS = newSets();
+	private static final Set<TaskStateEnum>[] CHANGE_SUBTASKS = newSets();
+	
+	static {
+		for (TaskStateEnum s : values()) {
+			int i = s.ordinal();
+			CURTASK[i] = Collections.unmodifiableSet(curtask(s));
+			ASK_SUBTASKS[i] = Collections.unmodifiableSet(askSubtasks(s));
+			CHANGE_SUBTASKS[i] = Collections.unmodifiableSet(changeSubtasks(s));
+			CURTASK_MASK[i] = maskOf(CURTASK[i]);
+			ASK_SUBTASKS_MASK[i] = maskOf(ASK_SUBTASKS[i]);
+			CHANGE_SUBTASKS_MASK[i] = maskOf(CHANGE_SUBTASKS[i]);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Set<TaskStateEnum>[] newSets() { return (Set<TaskStateEnum>[]) new Set<?>[N]; }
+	
 	/**
 	 * @brief The states a task needs to be in for it to be changed to state 's'.
 	 * @param s A task state
-	 * @return Returns the preconditional states to state @e s.
+	 * @return Returns the preconditional states to state @e s (read-only).
+	 */
+	public static Set<TaskStateEnum> precondCurtask(TaskStateEnum s) {
+		return CURTASK[s.ordinal()];
+	}
+	/** Mask of @ref precondCurtask */
+	public static int precondCurtaskMask(TaskStateEnum s) {
+		return CURTASK_MASK[s.ordinal()];
+	}
+	
+	/**
+	 * @brief The states that the subtasks of a task need to be in for
+	 * the task to be changed to state 's'.
+	 * @param s A task state
+	 * @return Returns the preconditional states to state @e s (read-only).
+	 */
+	public static Set<TaskStateEnum> precondAskStateChangeSubtasks(TaskStateEnum s) {
+		return ASK_SUBTASKS[s.ordinal()];
+	}
+	/** Mask of @ref precondAskStateChangeSubtasks */
+	public static int precondAskStateChangeSubtasksMask(TaskStateEnum s) {
+		return ASK_SUBTASKS_MASK[s.ordinal()];
+	}
+	
+	/**
+	 * @brief The states a subtask needs to be in for the subtask to be
+	 * changed to state 's'.
+	 * @param s A task state
+	 * @return Returns the preconditional states to state @e s (read-only).
 	 */
-	public static ArrayList<TaskStateEnum> precondCurtask(TaskStateEnum s) {
-		ArrayList<TaskStateEnum> arr = new ArrayList<>();
+	public static Set<TaskStateEnum> precondStateChangeSubtasks(TaskStateEnum s) {
+		return CHANGE_SUBTASKS[s.ordinal()];
+	}
+	/** Mask of @ref precondStateChangeSubtasks */
+	public static int precondStateChangeSubtasksMask(TaskStateEnum s) {
+		return CHANGE_SUBTASKS_MASK[s.ordinal()];
+	}
+	
+	// -------------------------------------------------------------------------
+	
+	private static EnumSet<TaskStateEnum> curtask(TaskStateEnum s) {
 		switch (s) {
 			case Opened:
-				arr.add(TaskStateEnum.Done);
-				break;
+				return EnumSet.of(Done);
 			case Done:
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.OnRevision);
-				break;
+				return EnumSet.of(Working, OnRevision);
 			case Working:
-				arr.add(TaskStateEnum.Opened);
-				arr.add(TaskStateEnum.OnRevision);
-				arr.add(TaskStateEnum.PutOnHold);
-				arr.add(TaskStateEnum.Done);
-				break;
+				return EnumSet.of(Opened, OnRevision, PutOnHold, Done);
 			case PutOnHold:
-				arr.add(TaskStateEnum.Working);
-				break;
+				return EnumSet.of(Working);
 			case Deleted:
-				arr.add(TaskStateEnum.Done);
-				break;
+				return EnumSet.of(Done);
 			case Cancelled:
-				arr.add(TaskStateEnum.Opened);
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.OnRevision);
-				break;
+				return EnumSet.of(Opened, Working, OnRevision);
 			case OnRevision:
-				arr.add(TaskStateEnum.PendingRevision);
-				arr.add(TaskStateEnum.Working);
-				break;
+				return EnumSet.of(PendingRevision, Working);
 			case PendingRevision:
-				arr.add(TaskStateEnum.Working);
-				break;
+				return EnumSet.of(Working);
 		}
-		return arr;
+		return EnumSet.noneOf(TaskStateEnum.class);
 	}
 	
-	/**
-	 * @brief The states that the subtasks of a task need to be in for
-	 * the task to be changed to state 's'.
-	 * @param s A task state
-	 * @return Returns the preconditional states to state @e s.
-	 */
-	public static ArrayList<TaskStateEnum> precondAskStateChangeSubtasks(TaskStateEnum s) {
-		ArrayList<TaskStateEnum> arr = new ArrayList<>();
+	private static EnumSet<TaskStateEnum> askSubtasks(TaskStateEnum s) {
 		switch (s) {
 			case Opened:
-				// no preconditions, so add all stats
-				arr.add(TaskStateEnum.Opened);
-				arr.add(TaskStateEnum.Done);
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.PutOnHold);
-				arr.add(TaskStateEnum.Deleted);
-				arr.add(TaskStateEnum.Cancelled);
-				arr.add(TaskStateEnum.OnRevision);
-				arr.add(TaskStateEnum.PendingRevision);
-				arr.add(TaskStateEnum.Edited);
-				arr.add(TaskStateEnum.PriorityChanged);
-				arr.add(TaskStateEnum.AddedSubtask);
-				break;
+				// no preconditions, so add all states
+				return EnumSet.allOf(TaskStateEnum.class);
 			case Done:
-				arr.add(TaskStateEnum.Done);
-				arr.add(TaskStateEnum.Cancelled);
-				arr.add(TaskStateEnum.Deleted);
-				break;
+				return EnumSet.of(Done, Cancelled, Deleted);
 			case Working:
-				arr.add(TaskStateEnum.Done);
-				arr.add(TaskStateEnum.Opened);
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.OnRevision);
-				arr.add(TaskStateEnum.PutOnHold);
-				break;
+				return EnumSet.of(Done, Opened, Working, OnRevision, PutOnHold);
 			case PutOnHold:
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.PutOnHold);
-				break;
+				return EnumSet.of(Working, PutOnHold);
 			case Deleted:
-				arr.add(TaskStateEnum.Done);
-				arr.add(TaskStateEnum.Deleted);
-				break;
+				return EnumSet.of(Done, Deleted);
 			case Cancelled:
-				arr.add(TaskStateEnum.Opened);
-				arr.add(TaskStateEnum.Cancelled);
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.OnRevision);
-				break;
+				return EnumSet.of(Opened, Cancelled, Working, OnRevision);
 			case OnRevision:
-				arr.add(TaskStateEnum.OnRevision);
-				arr.add(TaskStateEnum.PendingRevision);
-				arr.add(TaskStateEnum.Working);
-				break;
+				return EnumSet.of(OnRevision, PendingRevision, Working);
 			case PendingRevision:
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.PendingRevision);
-				break;
+				return EnumSet.of(Working, PendingRevision);
 		}
-		return arr;
+		return EnumSet.noneOf(TaskStateEnum.class);
 	}
 	
-	/**
-	 * @brief The states a subtask needs to be in for the subtask to be
-	 * changed to state 's'.
-	 * @param s A task state
-	 * @return Returns the preconditional states to state @e s.
-	 */
-	public static ArrayList<TaskStateEnum> precondStateChangeSubtasks(TaskStateEnum s) {
-		ArrayList<TaskStateEnum> arr = new ArrayList<>();
+	private static EnumSet<TaskStateEnum> changeSubtasks(TaskStateEnum s) {
 		switch (s) {
 			case Opened:
 				// do not change
 				break;
 			case Done:
-				arr.add(TaskStateEnum.Done);
-				arr.add(TaskStateEnum.Cancelled);
-				arr.add(TaskStateEnum.Deleted);
-				break;
+				return EnumSet.of(Done, Cancelled, Deleted);
 			case Working:
-				//arr.add(TaskStateEnum.Done);
-				arr.add(TaskStateEnum.Opened);
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.OnRevision);
-				arr.add(TaskStateEnum.PutOnHold);
-				break;
+				return EnumSet.of(Opened, Working, OnRevision, PutOnHold);
 			case PutOnHold:
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.PutOnHold);
-				break;
+				return EnumSet.of(Working, PutOnHold);
 			case Deleted:
-				arr.add(TaskStateEnum.Done);
-				arr.add(TaskStateEnum.Deleted);
-				break;
+				return EnumSet.of(Done, Deleted);
 			case Cancelled:
-				arr.add(TaskStateEnum.Opened);
-				arr.add(TaskStateEnum.Cancelled);
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.OnRevision);
-				break;
+				return EnumSet.of(Opened, Cancelled, Working, OnRevision);
 			case OnRevision:
-				arr.add(TaskStateEnum.OnRevision);
-				arr.add(TaskStateEnum.PendingRevision);
-				arr.add(TaskStateEnum.Working);
-				break;
+				return EnumSet.of(OnRevision, PendingRevision, Working);
 			case PendingRevision:
-				arr.add(TaskStateEnum.Working);
-				arr.add(TaskStateEnum.PendingRevision);
-				break;
+				return EnumSet.of(Working, PendingRevision);
 		}
-		return arr;
+		return EnumSet.noneOf(TaskStateEnum.class);
 	}
 }
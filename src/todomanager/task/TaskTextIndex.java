@@ -0,0 +1,352 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @brief Inverted index of the words of the tasks.
+ *
+ * Maps every word in the names, descriptions and reasons of the state
+ * changes of the tasks to the tasks that contain it. Words are compared
+ * without case nor accents (see @ref tokenize), so that "codi" finds
+ * "Còdi" and "informacion" finds "información".
+ *
+ * Every task has a weight for each of its words: the times the word
+ * appears in its name, description and reasons, the name counting more
+ * than the description and the description more than the reasons.
+ * @author Lluís Alemany Puig
+ */
+class TaskTextIndex {
+
+	/** Weight of a word in the name of a task. */
+	static final int NAME_WEIGHT = 4;
+	/** Weight of a word in the description of a task. */
+	static final int DESCRIPTION_WEIGHT = 2;
+	/** Weight of a word in the reason of a state change. */
+	static final int REASON_WEIGHT = 1;
+
+	/** Tasks of every word (sorted, to find the words with a prefix). */
+	private final TreeMap<String, Postings> words = new TreeMap<>();
+	/** Words of every task in the index, by task id. */
+	private final HashMap<Integer, Entry> entries = new HashMap<>();
+	/** Last prefix looked for (see @ref withPrefix), while the index
+	 * does not change: queries typed one letter at a time repeat it. */
+	private String lastPrefix = null;
+	/** Tasks of the words that start with @ref lastPrefix. */
+	private Postings lastPrefixPostings = null;
+
+	/** The words of a task and their weights. */
+	private static final class Entry {
+		String[] words;
+		int[] weights;
+	}
+
+	/** Weights of the tasks that contain a word, by task id. */
+	private static final class Postings extends IntKeyTable<int[]> {
+		Postings() { super(4); }
+
+		@Override
+		int[] newValues(int length) { return new int[length]; }
+
+		@Override
+		void copy(int[] from, int i, int[] to, int j) { to[j] = from[i]; }
+
+		/** Weight of a task (0 if it does not contain the word). */
+		int get(int id) {
+			int i = find(id);
+			return i == -1 ? 0 : values[i];
+		}
+
+		/** Adds @e w to the weight of a task; entries of weight 0 are removed. */
+		void add(int id, int w) {
+			int i = insert(id);
+			values[i] += w;
+			if (values[i] <= 0) { removeAt(i); }
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * @brief The words of a text, as they are indexed.
+	 *
+	 * Words are maximal sequences of letters and digits. They are
+	 * lower-cased and stripped of accents and other diacritics (the
+	 * text is decomposed and its combining marks dropped). The Catalan
+	 * middle dot does not split words: "col·lecció" is "colleccio".
+	 */
+	static ArrayList<String> tokenize(String s) {
+		ArrayList<String> tokens = new ArrayList<>();
+		if (s == null) { return tokens; }
+		String n = Normalizer.normalize(s, Normalizer.Form.NFD);
+		StringBuilder w = new StringBuilder();
+		for (int i = 0; i < n.length(); ) {
+			int c = n.codePointAt(i);
+			i += Character.charCount(c);
+			if (Character.getType(c) == Character.NON_SPACING_MARK || c == '\u00b7') {
+				continue;
+			}
+			if (Character.isLetterOrDigit(c)) {
+				w.appendCodePoint(Character.toLowerCase(c));
+			}
+			else if (w.length() > 0) {
+				tokens.add(w.toString());
+				w.setLength(0);
+			}
+		}
+		if (w.length() > 0) { tokens.add(w.toString()); }
+		return tokens;
+	}
+
+	private static void count(HashMap<String, Integer> counts, String text, int w) {
+		for (String t : tokenize(text)) { counts.merge(t, w, Integer::sum); }
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Ids of the tasks added or removed since the index started to be
+	 * built from copies (null when it is not being built).
+	 */
+	private HashSet<Integer> touched = null;
+
+	/** The index is about to be built from copies (see @ref add(TaskCopy)). */
+	synchronized void building() { touched = new HashSet<>(); }
+	/** All the copies have been added. */
+	synchronized void built() { touched = null; }
+
+	private void touch(int id) {
+		if (touched != null) { touched.add(id); }
+	}
+
+	/** Number of tasks in the index. */
+	synchronized int size() { return entries.size(); }
+
+	/** Adds a task (not its subtasks), replacing it if it was indexed. */
+	synchronized void add(Task t) {
+		touch(t.getNumericId());
+		List<TaskState> changes;
+		try {
+			changes = t.peekChanges();
+		}
+		catch (IOException ex) {
+			// only the name and the description are indexed
+			changes = new ArrayList<>();
+		}
+		index(t.getNumericId(), t.getName(), t.getDescription(), changes);
+	}
+
+	/**
+	 * Adds a copied task while the index is being built, unless the task
+	 * was added or removed since the copy was made.
+	 */
+	void add(TaskCopy c) {
+		// decoded without holding the lock
+		List<TaskState> changes = c.changes();
+		synchronized (this) {
+			if (touched != null && touched.contains(c.id)) { return; }
+			index(c.id, c.name, c.description, changes);
+		}
+	}
+
+	private void index(int id, String name, String description, List<TaskState> changes) {
+		unindex(id);
+		lastPrefix = null;
+
+		HashMap<String, Integer> counts = new HashMap<>();
+		count(counts, name, NAME_WEIGHT);
+		count(counts, description, DESCRIPTION_WEIGHT);
+		for (TaskState s : changes) {
+			// reasons not given are written as "null"
+			if (!"null".equals(s.getReason())) { count(counts, s.getReason(), REASON_WEIGHT); }
+		}
+		Entry e = new Entry();
+		e.words = new String[counts.size()];
+		e.weights = new int[counts.size()];
+		int k = 0;
+		for (Map.Entry<String, Integer> c : counts.entrySet()) {
+			e.words[k] = c.getKey();
+			e.weights[k] = c.getValue();
+			words.computeIfAbsent(c.getKey(), (x) -> new Postings()).add(id, c.getValue());
+			++k;
+		}
+		entries.put(id, e);
+	}
+
+	/** Removes the task with an id, if it is indexed. */
+	synchronized void remove(int id) {
+		touch(id);
+		unindex(id);
+	}
+
+	private void unindex(int id) {
+		Entry e = entries.remove(id);
+		if (e == null) { return; }
+		lastPrefix = null;
+		for (int k = 0; k < e.words.length; ++k) {
+			Postings p = words.get(e.words[k]);
+			p.add(id, -e.weights[k]);
+			if (p.size == 0) { words.remove(e.words[k]); }
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * @brief The tasks that contain all the words of a query, best first.
+	 *
+	 * The last word of the query also matches the words it is a prefix
+	 * of, so that a query can be run while it is being typed. The score
+	 * of a task adds, for every word of the query, its weight in the
+	 * task times the inverse document frequency of the word: rare words
+	 * count more than words found in most tasks.
+	 * @param query Words to look for.
+	 * @param max Maximum number of tasks returned (all of them if it is
+	 * not positive).
+	 * @return Returns the ids of the tasks, from highest to lowest score
+	 * (tasks with the same score in increasing order of id).
+	 */
+	synchronized ArrayList<Integer> search(String query, int max) {
+		ArrayList<Integer> res = new ArrayList<>();
+		ArrayList<String> terms = tokenize(query);
+		if (terms.isEmpty()) { return res; }
+
+		int n = terms.size();
+		Postings[] ps = new Postings[n];
+		for (int i = 0; i < n; ++i) {
+			ps[i] = (i < n - 1 ? words.get(terms.get(i)) : withPrefix(terms.get(i)));
+			if (ps[i] == null) { return res; }
+		}
+		// go through the tasks of the rarest word
+		int rarest = 0;
+		for (int i = 1; i < n; ++i) {
+			if (ps[i].size < ps[rarest].size) { rarest = i; }
+		}
+		double[] idf = new double[n];
+		for (int i = 0; i < n; ++i) {
+			idf[i] = Math.log(1.0 + ((double) entries.size())/ps[i].size);
+		}
+
+		// the best tasks found so far, in a heap with the worst at the top
+		// (or just all of them, when all are wanted)
+		long[] heap = new long[max > 0 ? Math.min(max, ps[rarest].size) : ps[rarest].size];
+		int h = 0;
+		Postings r = ps[rarest];
+		for (int k = 0; k < r.keys.length; ++k) {
+			int id = r.keys[k];
+			if (id == Postings.EMPTY) { continue; }
+			double score = 0;
+			for (int i = 0; i < n && score >= 0; ++i) {
+				int w = (i == rarest ? r.values[k] : ps[i].get(id));
+				score = (w == 0 ? -1 : score + w*idf[i]);
+			}
+			if (score < 0) { continue; }
+			long e = rank(score, id);
+			if (max <= 0) {
+				heap[h++] = e;
+			}
+			else if (h < heap.length) {
+				heap[h] = e;
+				siftUp(heap, h++);
+			}
+			else if (e > heap[0]) {
+				heap[0] = e;
+				siftDown(heap, 0, h);
+			}
+		}
+		res.ensureCapacity(h);
+		if (max <= 0) {
+			Arrays.sort(heap, 0, h);
+			for (int i = h - 1; i >= 0; --i) { res.add((int) ~heap[i]); }
+			return res;
+		}
+		for (int i = 0; i < h; ++i) { res.add(0); }
+		while (h > 0) {
+			res.set(h - 1, (int) ~heap[0]);
+			heap[0] = heap[--h];
+			siftDown(heap, 0, h);
+		}
+		return res;
+	}
+
+	/**
+	 * A task and its score in a single number that is larger for better
+	 * tasks: the (positive) score in the high bits, which compare as the
+	 * floats do, and the complement of the id in the low bits, so that
+	 * lower ids go first.
+	 */
+	private static long rank(double score, int id) {
+		return ((long) Float.floatToIntBits((float) score) << 32) | (~id & 0xffffffffL);
+	}
+
+	private static void siftUp(long[] heap, int i) {
+		long e = heap[i];
+		while (i > 0 && heap[(i - 1)/2] > e) {
+			heap[i] = heap[(i - 1)/2];
+			i = (i - 1)/2;
+		}
+		heap[i] = e;
+	}
+
+	private static void siftDown(long[] heap, int i, int size) {
+		long e = heap[i];
+		while (2*i + 1 < size) {
+			int c = 2*i + 1;
+			if (c + 1 < size && heap[c + 1] < heap[c]) { ++c; }
+			if (heap[c] >= e) { break; }
+			heap[i] = heap[c];
+			i = c;
+		}
+		heap[i] = e;
+	}
+
+	/** The weights of the tasks for the words that start with @e prefix. */
+	private Postings withPrefix(String prefix) {
+		Postings exact = words.get(prefix);
+		String next = words.higherKey(prefix);
+		if (next == null || !next.startsWith(prefix)) { return exact; }
+		if (prefix.equals(lastPrefix)) { return lastPrefixPostings; }
+
+		Postings u = new Postings();
+		for (Postings p : words.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+			for (int k = 0; k < p.keys.length; ++k) {
+				if (p.keys[k] != Postings.EMPTY) { u.add(p.keys[k], p.values[k]); }
+			}
+		}
+		lastPrefix = prefix;
+		lastPrefixPostings = u;
+		return u;
+	}
+}
@@ -0,0 +1,444 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import todomanager.util.AtomicFile;
+import todomanager.util.BackupManager;
+import todomanager.util.Logger;
+
+/**
+ * @brief Tasks stored in a directory, one file (shard) per top-level task.
+ *
+ * A workspace is a directory (named <tt>*.tlmd</tt>) with a manifest,
+ * <tt>manifest.json</tt>, and one shard per top-level task. The manifest
+ * lists the top-level tasks of every priority, in order, and the name of
+ * the shard of each of them. A shard is a task file (in any format, see
+ * TaskFile) with a single high priority task: the top-level task and all
+ * its subtasks.
+ *
+ * Saving rewrites only the shards of the top-level tasks that changed
+ * (see @ref markChanged). Shards are never overwritten: every save writes
+ * new shards, named after the task and the number of the save, and then
+ * replaces the manifest atomically. Readers (and crashes) see either all
+ * the changes of a save or none of them. Shards no longer listed are
+ * deleted afterwards.
+ *
+ * A backup of a save (see @ref filesReplaced) is the manifest and the
+ * shards the save deletes: since shards are never overwritten, these and
+ * the shards still listed are all the files the previous manifest lists.
+ * Restoring it means restoring the manifest and then every shard it lists
+ * that is missing from its <tt>.backup</tt>.
+ * @author Lluís Alemany Puig
+ */
+public class TaskWorkspace {
+
+	/** Extension of the directories of workspaces. */
+	public static final String EXTENSION = ".tlmd";
+	/** Name of the manifest. */
+	static final String MANIFEST = "manifest.json";
+	/** Version of the manifest. */
+	private static final int VERSION = 1;
+
+	/** Directory of the workspace. */
+	private final Path dir;
+	/** Number of the last save. */
+	private long save = 0;
+	/** Shard of every top-level task, by id. */
+	private final HashMap<String, String> shards = new HashMap<>();
+	/** Top-level tasks whose shard has to be rewritten (or deleted). */
+	private final HashSet<String> changed = new HashSet<>();
+	/** Has the list of top-level tasks changed? */
+	private boolean listChanged = true;
+
+	/**
+	 * @brief Constructor.
+	 *
+	 * Until it is read, the workspace is empty and all tasks are
+	 * written by the first save.
+	 * @param _dir Directory of the workspace.
+	 */
+	TaskWorkspace(String _dir) {
+		dir = Paths.get(_dir).toAbsolutePath();
+	}
+
+	/** Is the file a workspace (or a new file that should be one)? */
+	public static boolean isWorkspace(String filename) {
+		Path p = Paths.get(filename);
+		if (Files.isDirectory(p)) { return Files.exists(p.resolve(MANIFEST)); }
+		return !Files.exists(p) && filename.endsWith(EXTENSION);
+	}
+
+	/** Directory of the workspace. */
+	String getDirectory() { return dir.toString(); }
+
+	// -------------------------------------------------------------------------
+	// Changes
+
+	/**
+	 * @brief Marks the top-level task of a task as changed.
+	 * @param t A task, at any depth.
+	 */
+	void markChanged(Task t) {
+		while (t.getParentTask() != null) { t = t.getParentTask(); }
+		changed.add(t.getId());
+	}
+
+	/** Marks the list of top-level tasks as changed. */
+	void markListChanged() { listChanged = true; }
+
+	/** Marks all shards as changed (e.g., when the format changes). */
+	void markAllChanged() {
+		changed.addAll(shards.keySet());
+		listChanged = true;
+	}
+
+	// -------------------------------------------------------------------------
+	// Reading
+
+	/** Reads a shard in another thread. */
+	private class ShardRead extends RecursiveTask<TaskFile> {
+		private static final long serialVersionUID = 1L;
+
+		private final String id;
+		private final String shard;
+
+		ShardRead(String _id, String _shard) {
+			id = _id;
+			shard = _shard;
+		}
+
+		@Override
+		protected TaskFile compute() {
+			try {
+				TaskFile f = TaskFile.read(dir.resolve(shard).toString());
+				if (f.high.size() != 1 || !f.med.isEmpty() || !f.low.isEmpty() ||
+					!f.high.get(0).getId().equals(id))
+				{
+					throw new IOException("Shard '" + shard + "' does not contain only task " + id + ".");
+				}
+				return f;
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * @brief Reads the whole workspace.
+	 *
+	 * The shards are read in parallel.
+	 * @return Returns the tasks, in a task file without generation. Its
+	 * format and compression are those of the first shard.
+	 * @throws IOException When the manifest or some shard could not be
+	 * read or are malformed.
+	 */
+	TaskFile read() throws IOException {
+		JSONObject m;
+		try {
+			m = new JSONObject(new String(Files.readAllBytes(dir.resolve(MANIFEST)), StandardCharsets.UTF_8));
+		}
+		catch (JSONException ex) {
+			throw new IOException("Malformed manifest of workspace '" + dir + "': " + ex.getMessage());
+		}
+		int version = m.optInt("workspace_version", 0);
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported version " + version + " of workspace '" + dir + "'.");
+		}
+
+		TaskFile f = new TaskFile();
+		ArrayList<ShardRead> reads = new ArrayList<>();
+		List<ArrayList<Task>> lists = new ArrayList<>();
+		try {
+			save = m.getLong("save");
+			JSONObject sh = m.getJSONObject("shards");
+			for (String k : new String[]{ "high_prior_tasks", "med_prior_tasks", "low_prior_tasks" }) {
+				JSONArray ids = m.getJSONArray(k);
+				ArrayList<Task> list = (k.startsWith("high") ? f.high : k.startsWith("med") ? f.med : f.low);
+				for (int i = 0; i < ids.length(); ++i) {
+					String id = ids.getString(i);
+					ShardRead r = new ShardRead(id, sh.getString(id));
+					shards.put(id, r.shard);
+					reads.add(r);
+					lists.add(list);
+				}
+			}
+		}
+		catch (JSONException ex) {
+			throw new IOException("Malformed manifest of workspace '" + dir + "': " + ex.getMessage());
+		}
+
+		// the shards are independent of each other
+		reads.forEach((r) -> { ForkJoinPool.commonPool().execute(r); });
+		IOException error = null;
+		for (int i = 0; i < reads.size(); ++i) {
+			try {
+				TaskFile s = reads.get(i).join();
+				lists.get(i).add(s.high.get(0));
+				f.maximumID = Math.max(f.maximumID, s.maximumID);
+				if (i == 0) {
+					f.format = s.format;
+					f.compression = s.compression;
+				}
+			}
+			catch (UncheckedIOException ex) {
+				if (error == null) { error = ex.getCause(); }
+			}
+		}
+		if (error != null) { throw error; }
+
+		changed.clear();
+		listChanged = false;
+		deleteUnlisted();
+		return f;
+	}
+
+	// -------------------------------------------------------------------------
+	// Writing
+
+	/**
+	 * @brief Saves the changes into the workspace.
+	 *
+	 * Writes the shards of the top-level tasks changed, then the manifest.
+	 * @param format Format of the new shards.
+	 * @param compression Level of compression of the new shards.
+	 * @param high High priority tasks.
+	 * @param med Medium priority tasks.
+	 * @param low Low priority tasks.
+	 * @return Returns the number of bytes written.
+	 * @throws IOException When the workspace could not be written. In
+	 * this case it keeps the contents of the last save.
+	 */
+	long write(
+		TaskFileFormat format, int compression,
+		ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low
+	)
+	throws IOException
+	{
+		if (changed.isEmpty() && !listChanged) { return 0; }
+		Files.createDirectories(dir);
+
+		long s = save + 1;
+		long bytes = 0;
+		HashMap<String, String> newShards = new HashMap<>();
+		HashSet<String> present = new HashSet<>();
+		ArrayList<Task> one = new ArrayList<>(1);
+		ArrayList<Task> none = new ArrayList<>(0);
+		try {
+			for (ArrayList<Task> list : Arrays.asList(high, med, low)) {
+				for (Task t : list) {
+					present.add(t.getId());
+					if (!changed.contains(t.getId()) && shards.containsKey(t.getId())) { continue; }
+
+					String shard = t.getId() + "." + s + ".tlm";
+					one.clear();
+					one.add(t);
+					bytes += TaskFile.write(
+						dir.resolve(shard).toString(), format, compression, 0, 0, 0, one, none, none
+					);
+					newShards.put(t.getId(), shard);
+				}
+			}
+			bytes += writeManifest(s, high, med, low, newShards);
+		}
+		catch (IOException ex) {
+			// the manifest still lists the previous shards
+			for (String shard : newShards.values()) {
+				Files.deleteIfExists(dir.resolve(shard));
+			}
+			throw ex;
+		}
+
+		// the previous versions of the shards are not needed anymore
+		ArrayList<String> old = new ArrayList<>();
+		shards.forEach((id, shard) -> {
+			if (newShards.containsKey(id) || !present.contains(id)) { old.add(shard); }
+		});
+		shards.keySet().retainAll(present);
+		shards.putAll(newShards);
+		save = s;
+		changed.clear();
+		listChanged = false;
+		for (String shard : old) {
+			try {
+				Files.deleteIfExists(dir.resolve(shard));
+			}
+			catch (IOException ex) {
+				Logger.getInstance().warning("Could not delete shard '" + shard + "'.");
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @brief The files the next save replaces or deletes.
+	 *
+	 * The manifest and the shards of the top-level tasks changed or no
+	 * longer in the lists. The other shards are not touched by the save.
+	 * @param high High priority tasks.
+	 * @param med Medium priority tasks.
+	 * @param low Low priority tasks.
+	 * @return Returns no files if the save replaces none: there is
+	 * nothing to save or the workspace does not exist yet.
+	 */
+	String[] filesReplaced(ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low) {
+		if (changed.isEmpty() && !listChanged) { return new String[0]; }
+		if (!Files.exists(dir.resolve(MANIFEST))) { return new String[0]; }
+		HashSet<String> present = new HashSet<>();
+		for (ArrayList<Task> list : Arrays.asList(high, med, low)) {
+			for (Task t : list) { present.add(t.getId()); }
+		}
+		ArrayList<String> files = new ArrayList<>();
+		files.add(dir.resolve(MANIFEST).toString());
+		shards.forEach((id, shard) -> {
+			if (changed.contains(id) || !present.contains(id)) {
+				files.add(dir.resolve(shard).toString());
+			}
+		});
+		return files.toArray(new String[files.size()]);
+	}
+
+	/**
+	 * @brief Deletes the backups of shards that no backup of the manifest
+	 * lists.
+	 *
+	 * Every shard has a name of its own, so the rotation of the backups
+	 * never drops theirs: they are dropped here once the generation of
+	 * the manifest that needed them is gone. If some backup of the
+	 * manifest cannot be read, all of them are kept.
+	 */
+	void deleteUnusedBackups() {
+		String manifest = dir.resolve(MANIFEST).toString();
+		HashSet<String> used = new HashSet<>();
+		for (int g : BackupManager.getInstance().listBackups(manifest)) {
+			try {
+				JSONObject sh = new JSONObject(new String(
+					Files.readAllBytes(BackupManager.backupPath(manifest, g)), StandardCharsets.UTF_8
+				)).getJSONObject("shards");
+				for (String id : sh.keySet()) { used.add(sh.getString(id)); }
+			}
+			catch (IOException | JSONException ex) {
+				Logger.getInstance().warning("Could not read backup " + g + " of the manifest of workspace '" + dir + "'.");
+				return;
+			}
+		}
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.tlm.backup")) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				if (!used.contains(name.substring(0, name.length() - ".backup".length()))) {
+					Files.deleteIfExists(p);
+				}
+			}
+		}
+		catch (IOException ex) {
+			Logger.getInstance().warning("Could not delete the old backups of workspace '" + dir + "'.");
+		}
+	}
+
+	/** Replaces the manifest. Returns the number of bytes written. */
+	private long writeManifest(
+		long s, ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low,
+		HashMap<String, String> newShards
+	)
+	throws IOException
+	{
+		JSONObject m = new JSONObject();
+		m.put("workspace_version", VERSION);
+		m.put("save", s);
+		JSONObject sh = new JSONObject();
+		m.put("high_prior_tasks", ids(high, sh, newShards));
+		m.put("med_prior_tasks", ids(med, sh, newShards));
+		m.put("low_prior_tasks", ids(low, sh, newShards));
+		m.put("shards", sh);
+
+		AtomicFile file = new AtomicFile(dir.resolve(MANIFEST).toString());
+		OutputStream out = file.startWrite();
+		try {
+			out.write(m.toString().getBytes(StandardCharsets.UTF_8));
+			file.finishWrite(out);
+		}
+		catch (IOException ex) {
+			file.failWrite(out);
+			throw ex;
+		}
+		return file.getBytesWritten();
+	}
+
+	private JSONArray ids(ArrayList<Task> ts, JSONObject sh, HashMap<String, String> newShards) {
+		JSONArray a = new JSONArray();
+		for (Task t : ts) {
+			a.put(t.getId());
+			String shard = newShards.get(t.getId());
+			sh.put(t.getId(), shard != null ? shard : shards.get(t.getId()));
+		}
+		return a;
+	}
+
+	/**
+	 * @brief Deletes the shards left behind.
+	 *
+	 * Shards of previous saves that could not be deleted, and shards
+	 * of saves that did not finish (e.g., a crash). Only shards numbered
+	 * up to the last save are deleted: a program saving the workspace
+	 * right now writes shards with larger numbers.
+	 */
+	private void deleteUnlisted() {
+		HashSet<String> listed = new HashSet<>(shards.values());
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.tlm")) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				String[] parts = name.split("\\.");
+				if (listed.contains(name) || parts.length != 3 || !parts[1].matches("[0-9]{1,18}")) {
+					continue;
+				}
+				if (Long.parseLong(parts[1]) <= save) { Files.deleteIfExists(p); }
+			}
+		}
+		catch (IOException ex) {
+			Logger.getInstance().warning("Could not clean workspace '" + dir + "'.");
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.task;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * @brief Streaming writer of task files.
+ *
+ * Writes the tasks in JSON format straight into a (buffered) writer. The
+ * output is the same as the one produced with org.json's JSONWriter, but
+ * without its per-value temporary strings.
+ * @author Lluís Alemany Puig
+ */
+class TaskWriter {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Where the tasks are written to. */
+	private final Writer out;
+
+	/**
+	 * @brief Constructor.
+	 * @param _out Where to write to. It should be buffered.
+	 */
+	TaskWriter(Writer _out) {
+		out = _out;
+	}
+
+	/**
+	 * @brief Writes the contents of a whole task file.
+	 * @param generation Generation of the file. Not written when 0.
+	 * @param baseGeneration Generation of the journal folded into the
+	 * file.
+	 * @param baseRecords Number of records of that journal folded into
+	 * the file. Neither is written when this is 0.
+	 * @param high High priority tasks.
+	 * @param med Medium priority tasks.
+	 * @param low Low priority tasks.
+	 * @throws IOException When the underlying writer fails, or the history
+	 * of a task could not be decoded.
+	 */
+	void writeTasks(
+		long generation, long baseGeneration, long baseRecords,
+		ArrayList<Task> high, ArrayList<Task> med, ArrayList<Task> low
+	)
+	throws IOException
+	{
+		out.write("{\"low_prior_tasks\":");
+		writeTaskArray(low);
+		out.write(",\"med_prior_tasks\":");
+		writeTaskArray(med);
+		out.write(",\"high_prior_tasks\":");
+		writeTaskArray(high);
+		if (generation != 0) {
+			out.write(",\"generation\":");
+			out.write(Long.toString(generation));
+		}
+		if (baseRecords != 0) {
+			out.write(",\"base_generation\":");
+			out.write(Long.toString(baseGeneration));
+			out.write(",\"base_records\":");
+			out.write(Long.toString(baseRecords));
+		}
+		out.write('}');
+	}
+
+	private void writeTaskArray(ArrayList<Task> ts) throws IOException {
+		out.write('[');
+		for (int i = 0; i < ts.size(); ++i) {
+			if (i > 0) { out.write(','); }
+			writeTask(ts.get(i));
+		}
+		out.write(']');
+	}
+
+	private void writeTask(Task t) throws IOException {
+		out.write("{\"id\":");
+		writeString(t.getId());
+		out.write(",\"name\":");
+		writeString(t.getName());
+		out.write(",\"description\":");
+		writeString(t.getDescription());
+		out.write(",\"comparable_date\":");
+		writeString(t.getCompDate());
+		out.write(",\"pretty_date\":");
+		writeString(t.getPrettyDate());
+
+		// write state changes
+		out.write(",\"changes\":[");
+		ArrayList<TaskState> changes = t.peekChanges();
+		for (int i = 0; i < changes.size(); ++i) {
+			if (i > 0) { out.write(','); }
+			writeTaskState(changes.get(i));
+		}
+
+		// write subtasks
+		out.write("],\"subtasks\":");
+		writeTaskArray(t.getSubtasks());
+		out.write('}');
+	}
+
+	private void writeTaskState(TaskState ts) throws IOException {
+		out.write("{\"comparable_date\":");
+		writeString(ts.getComparableDate());
+		out.write(",\"pretty_date\":");
+		writeString(ts.getPrettyDate());
+		out.write(",\"reason\":");
+		writeString(ts.getReason());
+		out.write(",\"state\":");
+		writeString(ts.getState() == null ? null : ts.getState().name());
+		out.write(",\"author\":");
+		writeString(ts.getAuthor());
+		out.write(",\"pTN\":");
+		writeString(ts.getPreviousTaskName() == null ? "" : ts.getPreviousTaskName());
+		out.write(",\"nTN\":");
+		writeString(ts.getNextTaskName() == null ? "" : ts.getNextTaskName());
+		out.write(",\"pTD\":");
+		writeString(ts.getPreviousTaskDescription() == null ? "" : ts.getPreviousTaskDescription());
+		out.write(",\"nTD\":");
+		writeString(ts.getNextTaskDescription() == null ? "" : ts.getNextTaskDescription());
+		out.write('}');
+	}
+
+	/** Writes a quoted string (or the literal null), escaped like org.json does. */
+	private void writeString(String s) throws IOException {
+		if (s == null) {
+			out.write("null");
+			return;
+		}
+		out.write('"');
+		int len = s.length();
+		// start of the run of characters that need no escaping
+		int run = 0;
+		char prev = 0;
+		for (int i = 0; i < len; ++i) {
+			char c = s.charAt(i);
+			boolean plain =
+				c >= ' ' && c != '"' && c != '\\' &&
+				!(c == '/' && prev == '<') &&
+				!(c >= 0x80 && c < 0xa0) &&
+				!(c >= 0x2000 && c < 0x2100);
+			prev = c;
+			if (plain) { continue; }
+
+			out.write(s, run, i - run);
+			run = i + 1;
+			switch (c) {
+				case '"':
+				case '\\':
+				case '/':
+					out.write('\\');
+					out.write(c);
+					break;
+				case '\b': out.write("\\b"); break;
+				case '\t': out.write("\\t"); break;
+				case '\n': out.write("\\n"); break;
+				case '\f': out.write("\\f"); break;
+				case '\r': out.write("\\r"); break;
+				default:
+					out.write("\\u");
+					out.write(HEX[(c >> 12) & 0xf]);
+					out.write(HEX[(c >> 8) & 0xf]);
+					out.write(HEX[(c >> 4) & 0xf]);
+					out.write(HEX[c & 0xf]);
+			}
+		}
+		out.write(s, run, len - run);
+		out.write('"');
+	}
+}
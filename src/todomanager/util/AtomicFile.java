@@ -0,0 +1,164 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.util;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * @brief Class to replace the contents of a file atomically.
+ *
+ * The new contents are written through a large buffer into a temporary
+ * file in the same directory as the target file. Once everything has
+ * been written, the temporary file is synced to disk and renamed over
+ * the target. Readers (and crashes) see either the old contents or the
+ * new contents, never a truncated file.
+ * @author Lluís Alemany Puig
+ */
+public class AtomicFile {
+
+	/** Size of the buffer used to write into the temporary file. */
+	private static final int BUFFER_SIZE = 1024*1024;
+
+	/** File whose contents are replaced. */
+	private final Path target;
+	/** Temporary file where the new contents are written. */
+	private Path temp = null;
+	/** Stream writing into the temporary file. */
+	private FileOutputStream fileStream = null;
+	/** Number of bytes written into the temporary file. */
+	private long bytesWritten = 0;
+
+	public AtomicFile(String filename) {
+		target = Paths.get(filename).toAbsolutePath();
+	}
+
+	public Path getTarget() { return target; }
+	/** Bytes written by the last successful call to @ref finishWrite. */
+	public long getBytesWritten() { return bytesWritten; }
+
+	/**
+	 * @brief Starts writing new contents.
+	 * @return Returns a buffered stream. Once all data has been written,
+	 * call @ref finishWrite, or @ref failWrite to abort.
+	 * @throws IOException If the temporary file could not be created.
+	 */
+	public OutputStream startWrite() throws IOException {
+		Path dir = target.getParent();
+		String name = target.getFileName().toString();
+		temp = Files.createTempFile(dir, name + ".", ".tmp");
+
+		// keep the permissions of the file being replaced (temporary
+		// files are only readable by their owner)
+		try {
+			if (Files.exists(target)) {
+				Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+			}
+			else {
+				Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-r--r--"));
+			}
+		}
+		catch (UnsupportedOperationException | IOException ex) {
+			// not a POSIX file system: nothing to keep
+		}
+
+		fileStream = new FileOutputStream(temp.toFile());
+		return new BufferedOutputStream(fileStream, BUFFER_SIZE);
+	}
+
+	/**
+	 * @brief Commits the new contents.
+	 *
+	 * Flushes and syncs the temporary file and then renames it over
+	 * the target file.
+	 * @param out The stream returned by @ref startWrite.
+	 * @throws IOException If any of the steps failed. In this case, the
+	 * target file has not been modified and the temporary file is deleted.
+	 */
+	public void finishWrite(OutputStream out) throws IOException {
+		try {
+			out.flush();
+			fileStream.getFD().sync();
+			bytesWritten = fileStream.getChannel().position();
+			out.close();
+
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException ex) {
+			failWrite(out);
+			throw ex;
+		}
+		syncDirectory();
+		temp = null;
+		fileStream = null;
+	}
+
+	/**
+	 * @brief Discards the new contents.
+	 * @param out The stream returned by @ref startWrite.
+	 */
+	public void failWrite(OutputStream out) {
+		try {
+			out.close();
+		}
+		catch (IOException ex) {
+			// the file is deleted anyway
+		}
+		try {
+			if (temp != null) { Files.deleteIfExists(temp); }
+		}
+		catch (IOException ex) {
+			Logger.getInstance().warning("Could not delete temporary file '" + temp + "'.");
+		}
+		temp = null;
+		fileStream = null;
+	}
+
+	/** Makes the rename durable (not supported by every OS). */
+	private void syncDirectory() {
+		try (FileChannel dir = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+			dir.force(true);
+		}
+		catch (IOException ex) {
+			// e.g., directories cannot be opened on Windows
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/*********************************************************************
+ *
+ *  TodoListManager - Open-source manager of todo lists
+ *
+ *  Copyright (C) 2019
+ *
+ *  This file is part of TodoListManager.
+ *
+ *  TodoListManager is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TodoListManager is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with TodoListManager.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Contact: Lluís Alemany Puig (lluis.alemany.puig@gmail.com)
+ *
+ ********************************************************************/
+
+package todomanager.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+/**
+ * @brief Singleton class that keeps several generations of backups.
+ *
+ * Backups are made of a set of files that are backed up together (e.g.,
+ * a task file and its journal). Generation 1 is the most recent backup,
+ * and is stored in <tt>file.backup</tt>. Older generations are stored in
+ * <tt>file.backup.2</tt>, <tt>file.backup.3</tt>, ... up to the retention.
+ *
+ * Files must only be replaced atomically (see @ref AtomicFile): taking
+ * a backup only adds a hard link to the current contents of the files,
+ * which do not have to be read nor written. When hard links are not
+ * supported, the files are copied instead. Files that are appended to
+ * are always copied (see @ref backup(String[], String[])). The rotation
+ * of the generations is done in a background thread.
+ * @author Lluís Alemany Puig
+ */
+public class BackupManager {
+	/** Default number of generations kept. */
+	public static final int DEFAULT_RETENTION = 5;
+	
+	private static BackupManager instance = null;
+	
+	/** Number of generations kept. */
+	private int retention;
+	/** Thread that rotates the generations of the backups. */
+	private final ExecutorService rotator;
+	/** Last rotation submitted. */
+	private Future<?> rotation = null;
+	/** Number of backups taken so far (to name the pending files). */
+	private long taken = 0;
+	
+	private BackupManager() {
+		retention = DEFAULT_RETENTION;
+		rotator = Executors.newSingleThreadExecutor((r) -> {
+			Thread th = new Thread(r, "backup-rotation");
+			th.setDaemon(true);
+			return th;
+		});
+	}
+	
+	public static BackupManager getInstance() {
+		if (instance == null) {
+			instance = new BackupManager();
+		}
+		return instance;
+	}
+	
+	/** Number of generations of backups kept. */
+	public synchronized int getRetention() { return retention; }
+	/**
+	 * @brief Sets the number of generations of backups kept.
+	 *
+	 * Generations older than the retention are deleted the next time
+	 * a backup is taken.
+	 * @param n Number of generations, at least 1.
+	 */
+	public synchronized void setRetention(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Invalid retention " + n);
+		}
+		retention = n;
+	}
+	
+	/**
+	 * @brief The name of a generation of the backup of a file.
+	 * @param filename File backed up.
+	 * @param generation Generation, 1 being the most recent.
+	 */
+	public static Path backupPath(String filename, int generation) {
+		if (generation == 1) {
+			return Paths.get(filename + ".backup");
+		}
+		return Paths.get(filename + ".backup." + generation);
+	}
+	
+	/**
+	 * @brief Takes a backup of the current contents of a set of files.
+	 *
+	 * Only the hard links (or copies) are made before returning; the
+	 * rotation of the older generations is done in the background.
+	 * @param files The files backed up together. Files that do not exist
+	 * are absent from the new generation.
+	 * @return Returns false if some file could not be backed up.
+	 */
+	public synchronized boolean backup(String... files) {
+		return backup(files, new String[0]);
+	}
+	
+	/**
+	 * @brief Takes a backup of a set of files, some of which are appended
+	 * to.
+	 *
+	 * Same as @ref backup(String...), but the files in @e appended are
+	 * copied instead of linked, so that what is appended to them later
+	 * is not in the backup.
+	 * @param linked The files backed up that are only replaced atomically.
+	 * @param appended The files backed up that are appended to.
+	 * @return Returns false if some file could not be backed up.
+	 */
+	public synchronized boolean backup(String[] linked, String[] appended) {
+		String[] files = new String[linked.length + appended.length];
+		System.arraycopy(linked, 0, files, 0, linked.length);
+		System.arraycopy(appended, 0, files, linked.length, appended.length);
+		Path[] pending = new Path[files.length];
+		long id = taken++;
+		
+		for (int i = 0; i < files.length; ++i) {
+			Path f = Paths.get(files[i]);
+			if (!Files.exists(f)) { continue; }
+			
+			pending[i] = Paths.get(files[i] + ".backup.pending-" + id);
+			try {
+				Files.deleteIfExists(pending[i]);
+				if (i < linked.length) { link(f, pending[i]); }
+				else { Files.copy(f, pending[i], StandardCopyOption.COPY_ATTRIBUTES); }
+			}
+			catch (IOException ex) {
+				java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+				Logger.getInstance().error("Could not back up file '" + files[i] + "'.");
+				for (int j = 0; j <= i; ++j) { deletePending(pending[j]); }
+				return false;
+			}
+		}
+		
+		int n = retention;
+		rotation = rotator.submit(() -> {
+			for (int i = 0; i < files.length; ++i) {
+				rotate(files[i], pending[i], n);
+			}
+		});
+		return true;
+	}
+	
+	/** Makes a hard link to a file or, if not possible, a copy of it. */
+	private static void link(Path f, Path l) throws IOException {
+		try {
+			Files.createLink(l, f);
+		}
+		catch (FileAlreadyExistsException ex) {
+			throw ex;
+		}
+		catch (UnsupportedOperationException | IOException ex) {
+			Files.copy(f, l, StandardCopyOption.COPY_ATTRIBUTES);
+		}
+	}
+	
+	private static void deletePending(Path p) {
+		try {
+			if (p != null) { Files.deleteIfExists(p); }
+		}
+		catch (IOException ex) {
+			Logger.getInstance().warning("Could not delete file '" + p + "'.");
+		}
+	}
+	
+	/**
+	 * @brief Shifts the generations of a file and puts a new one first.
+	 * @param filename File backed up.
+	 * @param pending New generation (null if the file did not exist).
+	 * @param n Number of generations kept.
+	 */
+	private static void rotate(String filename, Path pending, int n) {
+		try {
+			// drop the generations beyond the retention
+			Path f = Paths.get(filename).toAbsolutePath();
+			String prefix = f.getFileName().toString() + ".backup.";
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(f.getParent(), prefix + "*")) {
+				for (Path p : ds) {
+					String g = p.getFileName().toString().substring(prefix.length());
+					if (g.matches("[0-9]{1,9}") && Integer.parseInt(g) >= n) {
+						Files.deleteIfExists(p);
+					}
+				}
+			}
+			if (n == 1) { Files.deleteIfExists(backupPath(filename, 1)); }
+			for (int g = n - 1; g >= 1; --g) {
+				Path from = backupPath(filename, g);
+				if (Files.exists(from)) {
+					Files.move(from, backupPath(filename, g + 1), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			if (pending != null) {
+				Files.move(pending, backupPath(filename, 1), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+			Logger.getInstance().error("Could not rotate the backups of file '" + filename + "'.");
+			deletePending(pending);
+		}
+	}
+	
+	/** Waits until the generations of the last backup have been rotated. */
+	public void waitForRotation() {
+		Future<?> r;
+		synchronized (this) { r = rotation; }
+		if (r == null) { return; }
+		try {
+			r.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException ex) {
+			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	/**
+	 * @brief The generations of the backups of a file.
+	 * @param filename File backed up.
+	 * @return Returns the generations that exist, most recent first.
+	 */
+	public List<Integer> listBackups(String filename) {
+		waitForRotation();
+		List<Integer> gens = new ArrayList<>();
+		int n = getRetention();
+		for (int g = 1; g <= n; ++g) {
+			if (Files.exists(backupPath(filename, g))) { gens.add(g); }
+		}
+		return gens;
+	}
+	
+	/**
+	 * @brief Restores a generation of the backup of a set of files.
+	 *
+	 * Each file is replaced atomically by its backup. Files that were
+	 * absent from the generation are deleted. The backup itself is kept.
+	 * @param generation Generation restored, 1 being the most recent.
+	 * @param files The files backed up together.
+	 * @return Returns false if the first file has no backup of the given
+	 * generation or if some file could not be restored.
+	 */
+	public boolean restore(int generation, String... files) {
+		waitForRotation();
+		if (files.length == 0 || !Files.exists(backupPath(files[0], generation))) {
+			Logger.getInstance().error("There is no backup " + generation + " of file '" + (files.length > 0 ? files[0] : "") + "'.");
+			return false;
+		}
+		
+		for (String f : files) {
+			Path b = backupPath(f, generation);
+			try {
+				if (Files.exists(b)) {
+					AtomicFile af = new AtomicFile(f);
+					OutputStream out = af.startWrite();
+					try (InputStream in = Files.newInputStream(b)) {
+						byte[] buf = new byte[64*1024];
+						int r;
+						while ((r = in.read(buf)) != -1) { out.write(buf, 0, r); }
+					}
+					catch (IOException ex) {
+						af.failWrite(out);
+						throw ex;
+					}
+					af.finishWrite(out);
+				}
+				else {
+					Files.deleteIfExists(Paths.get(f));
+				}
+			}
+			catch (IOException ex) {
+				java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
+				Logger.getInstance().error("Could not restore file '" + f + "' from '" + b + "'.");
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -26,7 +26,6 @@
 package todomanager.util;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -48,13 +47,6 @@ public class Tools {
 		return (new Date()).toString();
 	}
 	
-	public enum IOResult {
-		ErrorOpen,
-		ErrorRead,
-		ErrorWrite,
-		Success
-	}
-	
 	public static String readFile(String filePath) {
 		SystemInfo sysinfo = SystemInfo.getInstance();
 		StringBuilder contentBuilder = new StringBuilder();
@@ -66,35 +58,6 @@ public class Tools {
 		}
 		return contentBuilder.toString();
     }
-	public static IOResult backupFile(String filename) {
-		String old_contents = readFile(filename);
-		if (old_contents.equals("?")) { return IOResult.ErrorRead; }
-		
-		File file = new File(filename + ".backup");
-		FileWriter writer = null;
-		
-		try {
-			file.createNewFile();
-			writer = new FileWriter(file, false);
-		}
-		catch (IOException ex) {
-			ex.printStackTrace();
-			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
-			return IOResult.ErrorOpen;
-		}
-		
-		try {
-			writer.write(old_contents);
-			writer.flush();
-		}
-		catch (IOException ex) {
-			ex.printStackTrace();
-			java.util.logging.Logger.getLogger(Logger.class.getName()).log(Level.SEVERE, null, ex);
-			return IOResult.ErrorWrite;
-		}
-		return IOResult.Success;
-	}
-	
 	public static boolean fileExists(String fileName) {
 		File f = new File(fileName);
 		return f.exists();
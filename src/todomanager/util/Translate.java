@@ -51,6 +51,7 @@ public class Translate {
 	public String buttonSetAuthor;
 	public String labelAuthorName;
 	public String labelUnsavedChanges;
+	public String labelSearch;
 	
 	public String highPriorNode;
 	public String medPriorNode;
@@ -94,6 +95,7 @@ public class Translate {
 	
 	public String error_TaskStateNoneOf;
 	public String error_SubtaskStateNoneOf;
+	public String error_TaskNotFound;
 	
 	public String warning_AuthorNameNotSet;
 	public String warning_CantDeleteRootHighMedLow;
@@ -102,6 +104,9 @@ public class Translate {
 	public String warning_CantIncreasePriority;
 	public String warning_CantDecreasePriority;
 	public String warning_CantChangeTaskPriority;
+	public String warning_AutoSaveFailed;
+	public String warning_FileChangedOnDisk;
+	public String warning_SelectOnlyOneTask;
 	
 	public String change_SubtaskAdded;
 	
@@ -182,6 +187,7 @@ public class Translate {
 		buttonSetAuthor = main.getString("buttonSetAuthor");
 		labelAuthorName = main.getString("labelAuthorName");
 		labelUnsavedChanges = main.getString("labelUnsavedChanges");
+		labelSearch = main.getString("labelSearch");
 	
 		highPriorNode = main.getString("highPriorNode");
 		medPriorNode = main.getString("medPriorNode");
@@ -225,6 +231,7 @@ public class Translate {
 		
 		error_TaskStateNoneOf = main.getString("error_TaskStateNoneOf");
 		error_SubtaskStateNoneOf = main.getString("error_SubtaskStateNoneOf");
+		error_TaskNotFound = main.getString("error_TaskNotFound");
 	
 		warning_AuthorNameNotSet = main.getString("warning_AuthorNameNotSet");
 		warning_CantDeleteRootHighMedLow = main.getString("warning_CantDeleteRootHighMedLow");
@@ -233,6 +240,9 @@ public class Translate {
 		warning_CantIncreasePriority = main.getString("warning_CantIncreasePriority");
 		warning_CantDecreasePriority = main.getString("warning_CantDecreasePriority");
 		warning_CantChangeTaskPriority = main.getString("warning_CantChangeTaskPriority");
+		warning_AutoSaveFailed = main.getString("warning_AutoSaveFailed");
+		warning_FileChangedOnDisk = main.getString("warning_FileChangedOnDisk");
+		warning_SelectOnlyOneTask = main.getString("warning_SelectOnlyOneTask");
 		
 		change_SubtaskAdded = main.getString("change_SubtaskAdded");
 		